@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.bam.util;
+
+import java.util.Arrays;
+
+/**
+ * Encode unmapped reads straight into the binary BAM record layout from byte arrays,
+ * reusing one buffer for all records.
+ *
+ * The bytes are the same as BAMRecordCodec would write for a SAMRecord with the same fields:
+ * no reference, no position, no CIGAR, mapping quality 0, tags ordered by their binary value,
+ * and integer tags in the smallest type holding their value.
+ *
+ * A record is started with its name, flags, bases and qualities, its tags added in any order,
+ * then finished before being written.
+ */
+public class BAMRecordEncoder {
+
+    public static final int READ_PAIRED_FLAG = 0x1;
+    public static final int READ_UNMAPPED_FLAG = 0x4;
+    public static final int MATE_UNMAPPED_FLAG = 0x8;
+    public static final int FIRST_OF_PAIR_FLAG = 0x40;
+    public static final int SECOND_OF_PAIR_FLAG = 0x80;
+    public static final int READ_FAILS_VENDOR_QUALITY_CHECK_FLAG = 0x200;
+
+    //fixed length fields after block size: refID, pos, bin_mq_nl, flag_nc, l_seq, next_refID, next_pos, tlen
+    private static final int FIXED_FIELDS_LENGTH = 4 + 32;
+
+    private static final byte[] COMPRESSED_BASES = new byte[256];
+    static {
+        Arrays.fill(COMPRESSED_BASES, (byte) -1);
+        String bases = "=ACMGRSVTWYHKDBN";
+        for (int i = 0; i < bases.length(); i++) {
+            COMPRESSED_BASES[bases.charAt(i)] = (byte) i;
+            COMPRESSED_BASES[Character.toLowerCase(bases.charAt(i))] = (byte) i;
+        }
+        COMPRESSED_BASES['.'] = COMPRESSED_BASES['N'];
+    }
+
+    private byte[] record = new byte[1024];
+    private int length = 0;
+    private boolean finished = false;
+
+    //tags kept apart until the record is finished, to write them in order
+    private byte[] tags = new byte[256];
+    private int tagsLength = 0;
+    private int tagCount = 0;
+    private int[] tagKeys = new int[8];
+    private int[] tagStarts = new int[8];
+    private int[] tagEnds = new int[8];
+
+    /**
+     * start a new unmapped record, discarding the previous one
+     *
+     * @param readName buffer holding the read name
+     * @param nameOffset
+     * @param nameLength
+     * @param flags SAM flags, the read unmapped flag added
+     * @param bases buffer holding the bases
+     * @param quals buffer holding the phred qualities, at the same offset as bases
+     * @param offset
+     * @param readLength
+     */
+    public void startRecord(byte[] readName, int nameOffset, int nameLength, int flags,
+            byte[] bases, byte[] quals, int offset, int readLength) {
+
+        this.length = 0;
+        this.finished = false;
+        this.tagsLength = 0;
+        this.tagCount = 0;
+        this.ensureRecordCapacity(FIXED_FIELDS_LENGTH + nameLength + 1 + (readLength + 1) / 2 + readLength);
+
+        this.putInt(0);
+        this.putInt(-1);
+        this.putInt(-1);
+        this.putInt(nameLength + 1);
+        this.putInt((flags | READ_UNMAPPED_FLAG) << 16);
+        this.putInt(readLength);
+        this.putInt(-1);
+        this.putInt(-1);
+        this.putInt(0);
+
+        System.arraycopy(readName, nameOffset, this.record, this.length, nameLength);
+        this.length += nameLength;
+        this.record[this.length++] = 0;
+
+        for (int i = 0; i < readLength; i += 2) {
+            int high = compressBase(bases[offset + i]);
+            int low = (i + 1 < readLength) ? compressBase(bases[offset + i + 1]) : 0;
+            this.record[this.length++] = (byte) ((high << 4) | low);
+        }
+
+        System.arraycopy(quals, offset, this.record, this.length, readLength);
+        this.length += readLength;
+    }
+
+    private static int compressBase(byte base) {
+
+        int compressed = COMPRESSED_BASES[base & 0xFF];
+        if (compressed < 0) {
+            throw new IllegalArgumentException("Bad base passed to BAM record encoder: " + (char) base);
+        }
+        return compressed;
+    }
+
+    /**
+     * add an integer tag, in the smallest type holding its value
+     *
+     * @param tag
+     * @param value
+     */
+    public void addIntTag(String tag, int value) {
+
+        int start = this.startTag(tag, 5);
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            this.tags[this.tagsLength++] = 'c';
+            this.tags[this.tagsLength++] = (byte) value;
+        } else if (value >= 0 && value <= 0xFF) {
+            this.tags[this.tagsLength++] = 'C';
+            this.tags[this.tagsLength++] = (byte) value;
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            this.tags[this.tagsLength++] = 's';
+            this.putTagShort(value);
+        } else if (value >= 0 && value <= 0xFFFF) {
+            this.tags[this.tagsLength++] = 'S';
+            this.putTagShort(value);
+        } else {
+            this.tags[this.tagsLength++] = 'i';
+            this.putTagShort(value);
+            this.putTagShort(value >> 16);
+        }
+        this.endTag(tag, start);
+    }
+
+    /**
+     * add a string tag
+     *
+     * @param tag
+     * @param value
+     */
+    public void addStringTag(String tag, String value) {
+
+        int start = this.startTag(tag, value.length() + 2);
+        this.tags[this.tagsLength++] = 'Z';
+        for (int i = 0; i < value.length(); i++) {
+            this.tags[this.tagsLength++] = (byte) value.charAt(i);
+        }
+        this.tags[this.tagsLength++] = 0;
+        this.endTag(tag, start);
+    }
+
+    /**
+     * add a string tag from a byte array
+     *
+     * @param tag
+     * @param value
+     * @param offset
+     * @param valueLength
+     */
+    public void addStringTag(String tag, byte[] value, int offset, int valueLength) {
+
+        int start = this.startTag(tag, valueLength + 2);
+        this.tags[this.tagsLength++] = 'Z';
+        System.arraycopy(value, offset, this.tags, this.tagsLength, valueLength);
+        this.tagsLength += valueLength;
+        this.tags[this.tagsLength++] = 0;
+        this.endTag(tag, start);
+    }
+
+    /**
+     * add a string tag of phred qualities in fastq format
+     *
+     * @param tag
+     * @param quals
+     * @param offset
+     * @param valueLength
+     */
+    public void addQualityStringTag(String tag, byte[] quals, int offset, int valueLength) {
+
+        int start = this.startTag(tag, valueLength + 2);
+        this.tags[this.tagsLength++] = 'Z';
+        for (int i = 0; i < valueLength; i++) {
+            this.tags[this.tagsLength++] = (byte) (quals[offset + i] + 33);
+        }
+        this.tags[this.tagsLength++] = 0;
+        this.endTag(tag, start);
+    }
+
+    /**
+     * append the tags in order of their binary value and fill in the block size
+     *
+     * @return length of the record
+     */
+    public int finishRecord() {
+
+        if (this.finished) {
+            return this.length;
+        }
+
+        //a few tags only, insertion sort
+        for (int i = 1; i < this.tagCount; i++) {
+            for (int j = i; j > 0 && this.tagKeys[j - 1] > this.tagKeys[j]; j--) {
+                swap(this.tagKeys, j);
+                swap(this.tagStarts, j);
+                swap(this.tagEnds, j);
+            }
+        }
+
+        this.ensureRecordCapacity(this.tagsLength);
+        for (int i = 0; i < this.tagCount; i++) {
+            int tagLength = this.tagEnds[i] - this.tagStarts[i];
+            System.arraycopy(this.tags, this.tagStarts[i], this.record, this.length, tagLength);
+            this.length += tagLength;
+        }
+
+        int blockSize = this.length - 4;
+        for (int i = 0; i < 4; i++) {
+            this.record[i] = (byte) (blockSize >> (8 * i));
+        }
+        this.finished = true;
+        return this.length;
+    }
+
+    private static void swap(int[] values, int j) {
+        int value = values[j];
+        values[j] = values[j - 1];
+        values[j - 1] = value;
+    }
+
+    /**
+     * write the tag name, making room for its value
+     *
+     * @return start of the tag in the tag buffer
+     */
+    private int startTag(String tag, int valueLength) {
+
+        if (this.finished) {
+            throw new IllegalStateException("Tag added to a BAM record already finished: " + tag);
+        }
+        if (this.tagsLength + 2 + valueLength > this.tags.length) {
+            this.tags = Arrays.copyOf(this.tags, Math.max(2 * this.tags.length, this.tagsLength + 2 + valueLength));
+        }
+        int start = this.tagsLength;
+        this.tags[this.tagsLength++] = (byte) tag.charAt(0);
+        this.tags[this.tagsLength++] = (byte) tag.charAt(1);
+        return start;
+    }
+
+    /**
+     * keep the position of a tag, replacing any earlier tag with the same name
+     */
+    private void endTag(String tag, int start) {
+
+        int key = (tag.charAt(1) << 8) | tag.charAt(0);
+        int index = 0;
+        while (index < this.tagCount && this.tagKeys[index] != key) {
+            index++;
+        }
+        if (index == this.tagCount) {
+            if (this.tagCount == this.tagKeys.length) {
+                this.tagKeys = Arrays.copyOf(this.tagKeys, 2 * this.tagCount);
+                this.tagStarts = Arrays.copyOf(this.tagStarts, 2 * this.tagCount);
+                this.tagEnds = Arrays.copyOf(this.tagEnds, 2 * this.tagCount);
+            }
+            this.tagCount++;
+        }
+        this.tagKeys[index] = key;
+        this.tagStarts[index] = start;
+        this.tagEnds[index] = this.tagsLength;
+    }
+
+    private void ensureRecordCapacity(int extraLength) {
+
+        if (this.length + extraLength > this.record.length) {
+            this.record = Arrays.copyOf(this.record, Math.max(2 * this.record.length, this.length + extraLength));
+        }
+    }
+
+    private void putInt(int value) {
+        for (int i = 0; i < 4; i++) {
+            this.record[this.length++] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private void putTagShort(int value) {
+        this.tags[this.tagsLength++] = (byte) value;
+        this.tags[this.tagsLength++] = (byte) (value >> 8);
+    }
+
+    /**
+     * @return the buffer holding the finished record from its start
+     */
+    public byte[] getRecord() {
+        return record;
+    }
+
+    /**
+     * @return the length of the record so far
+     */
+    public int getLength() {
+        return length;
+    }
+}
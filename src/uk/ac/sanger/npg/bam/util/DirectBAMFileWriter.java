@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.bam.util;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.io.OutputStream;
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriterImpl;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.util.BinaryCodec;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * BAM file writer over any BGZF stream, writing the same bytes as BAMFileWriter without an index.
+ *
+ * As well as SAM records, it takes records already encoded in the BAM layout by BAMRecordEncoder,
+ * written straight to the BGZF stream when the output does not need sorting.
+ *
+ * Without a BAM header, it writes a shard of records, a BGZF file which can be appended
+ * to the BAM file of another writer block by block, without decompressing or compressing again.
+ */
+public class DirectBAMFileWriter extends SAMFileWriterImpl {
+
+    private static final byte[] BAM_MAGIC = "BAM\1".getBytes();
+
+    private static final int COPY_BUFFER_SIZE = 65536;
+
+    private final BinaryCodec outputBinaryCodec;
+    private final OutputStream rawStream;
+    private final boolean writeBAMHeader;
+    private BAMRecordCodec bamRecordCodec = null;
+    private boolean presorted = false;
+
+    /**
+     *
+     * @param stream BGZF stream the BAM file written to
+     * @param file the BAM file, for error messages
+     */
+    public DirectBAMFileWriter(OutputStream stream, File file) {
+        this(stream, null, file, true);
+    }
+
+    /**
+     *
+     * @param stream BGZF stream the BAM file written to
+     * @param rawStream stream under the BGZF stream, to append shards to, null if no shards appended
+     * @param file the BAM file or shard, for error messages
+     * @param writeBAMHeader write the BAM header, otherwise a shard of records only
+     */
+    public DirectBAMFileWriter(OutputStream stream, OutputStream rawStream, File file, boolean writeBAMHeader) {
+
+        this.outputBinaryCodec = new BinaryCodec(new DataOutputStream(stream));
+        this.outputBinaryCodec.setOutputFileName(file.getAbsolutePath());
+        this.rawStream = rawStream;
+        this.writeBAMHeader = writeBAMHeader;
+    }
+
+    /**
+     * append the records of a shard after the records written so far,
+     * copying its BGZF blocks without its end of file block
+     *
+     * @param shard a complete shard written without BAM header
+     */
+    public void appendShard(File shard) {
+
+        if (this.rawStream == null) {
+            throw new IllegalStateException("No shard can be appended to " + this.getFilename());
+        }
+        long length = checkShard(shard);
+        try {
+            //finish the current block so that the shard starts on a block boundary
+            this.outputBinaryCodec.getOutputStream().flush();
+
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            FileInputStream in = new FileInputStream(shard);
+            try {
+                long remaining = length;
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read == -1) {
+                        throw new IOException("Shard shorter than expected: " + shard);
+                    }
+                    this.rawStream.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problem to append shard " + shard + " to " + this.getFilename(), ex);
+        }
+    }
+
+    /**
+     * check a shard ends with the BGZF end of file block
+     *
+     * @param shard
+     * @return length of the shard without its end of file block
+     */
+    public static long checkShard(File shard) {
+
+        byte[] eof = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+        byte[] tail = new byte[eof.length];
+        try {
+            RandomAccessFile file = new RandomAccessFile(shard, "r");
+            try {
+                if (file.length() < tail.length) {
+                    throw new RuntimeIOException("Shard too short to be complete: " + shard);
+                }
+                file.seek(file.length() - tail.length);
+                file.readFully(tail);
+                if (!Arrays.equals(tail, eof)) {
+                    throw new RuntimeIOException("Shard not ending with BGZF end of file block: " + shard);
+                }
+                return file.length() - tail.length;
+            } finally {
+                file.close();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problem to read shard " + shard, ex);
+        }
+    }
+
+    private void prepareToWriteAlignments() {
+
+        if (this.bamRecordCodec == null) {
+            this.bamRecordCodec = new BAMRecordCodec(this.getFileHeader());
+            this.bamRecordCodec.setOutputStream(this.outputBinaryCodec.getOutputStream(), this.getFilename());
+        }
+    }
+
+    @Override
+    public void setSortOrder(SAMFileHeader.SortOrder sortOrder, boolean presorted) {
+
+        super.setSortOrder(sortOrder, presorted);
+        this.presorted = presorted;
+    }
+
+    /**
+     * @return true if records are written in the order they are added, encoded records accepted
+     */
+    public boolean isWritingInOrder() {
+        return this.presorted || this.getSortOrder() == SAMFileHeader.SortOrder.unsorted;
+    }
+
+    /**
+     * write a record finished by the encoder
+     *
+     * @param encoder
+     */
+    public void addEncodedRecord(BAMRecordEncoder encoder) {
+
+        if (!this.isWritingInOrder()) {
+            throw new IllegalStateException("Encoded records can not be sorted by the writer: " + this.getFilename());
+        }
+        int length = encoder.finishRecord();
+        try {
+            this.outputBinaryCodec.getOutputStream().write(encoder.getRecord(), 0, length);
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Problem to write encoded record to " + this.getFilename(), ex);
+        }
+    }
+
+    @Override
+    protected void writeAlignment(SAMRecord alignment) {
+
+        this.prepareToWriteAlignments();
+        this.bamRecordCodec.encode(alignment);
+    }
+
+    @Override
+    protected void writeHeader(String textHeader) {
+
+        if (!this.writeBAMHeader) {
+            return;
+        }
+        this.outputBinaryCodec.writeBytes(BAM_MAGIC);
+        this.outputBinaryCodec.writeString(textHeader, true, false);
+        this.outputBinaryCodec.writeInt(this.getFileHeader().getSequenceDictionary().size());
+        for (SAMSequenceRecord sequenceRecord : this.getFileHeader().getSequenceDictionary().getSequences()) {
+            this.outputBinaryCodec.writeString(sequenceRecord.getSequenceName(), true, true);
+            this.outputBinaryCodec.writeInt(sequenceRecord.getSequenceLength());
+        }
+    }
+
+    @Override
+    protected void finish() {
+        this.outputBinaryCodec.close();
+    }
+
+    @Override
+    protected String getFilename() {
+        return this.outputBinaryCodec.getOutputFileName();
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.bam.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * BGZF output stream deflating its blocks on a thread pool.
+ *
+ * The data is cut into blocks of the same size as BlockCompressedOutputStream,
+ * and each block is deflated the same way, so the output is byte-identical
+ * to BlockCompressedOutputStream at the same compression level.
+ * Blocks are written to the underlying stream in the order they were filled,
+ * and no more than a given number of blocks are waiting to be written at any time.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+
+    private static final int UNCOMPRESSED_BLOCK_SIZE = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE;
+    private static final int COMPRESSED_BUFFER_SIZE
+            = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+
+    //deflaters of each compression thread, by compression level, the last one for the default level
+    private static final ThreadLocal<Deflater[]> DEFLATERS = new ThreadLocal<Deflater[]>() {
+
+        @Override
+        protected Deflater[] initialValue() {
+            return new Deflater[Deflater.BEST_COMPRESSION + 2];
+        }
+    };
+
+    private final OutputStream out;
+    private final int compressionLevel;
+    private final ExecutorService executor;
+    private final int maxBlocksPending;
+
+    private final LinkedList<Future<byte[]>> pendingBlocks = new LinkedList<Future<byte[]>>();
+    private byte[] uncompressedBuffer = new byte[UNCOMPRESSED_BLOCK_SIZE];
+    private int numUncompressedBytes = 0;
+    private boolean closed = false;
+
+    /**
+     *
+     * @param out stream the compressed blocks written to
+     * @param compressionLevel deflate compression level
+     * @param executor thread pool compressing the blocks
+     * @param maxBlocksPending maximum number of blocks being compressed or waiting to be written
+     */
+    public ParallelBlockCompressedOutputStream(OutputStream out, int compressionLevel,
+            ExecutorService executor, int maxBlocksPending) {
+
+        if (maxBlocksPending < 1) {
+            throw new IllegalArgumentException("Number of blocks pending must be positive: " + maxBlocksPending);
+        }
+        this.out = out;
+        this.compressionLevel = compressionLevel;
+        this.executor = executor;
+        this.maxBlocksPending = maxBlocksPending;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int startIndex, int numBytes) throws IOException {
+
+        while (numBytes > 0) {
+            int bytesToWrite = Math.min(UNCOMPRESSED_BLOCK_SIZE - this.numUncompressedBytes, numBytes);
+            System.arraycopy(bytes, startIndex, this.uncompressedBuffer, this.numUncompressedBytes, bytesToWrite);
+            this.numUncompressedBytes += bytesToWrite;
+            startIndex += bytesToWrite;
+            numBytes -= bytesToWrite;
+            if (this.numUncompressedBytes == UNCOMPRESSED_BLOCK_SIZE) {
+                this.submitBlock();
+            }
+        }
+    }
+
+    /**
+     * compress the data buffered so far in a block and write all pending blocks
+     *
+     * @throws IOException
+     */
+    @Override
+    public void flush() throws IOException {
+
+        if (this.numUncompressedBytes > 0) {
+            this.submitBlock();
+        }
+        while (!this.pendingBlocks.isEmpty()) {
+            this.writeFirstPendingBlock();
+        }
+        this.out.flush();
+    }
+
+    /**
+     * write all data and the empty BGZF block marking the end of the file
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.flush();
+            this.out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+        } finally {
+            for (Future<byte[]> block : this.pendingBlocks) {
+                block.cancel(false);
+            }
+            this.out.close();
+        }
+    }
+
+    /**
+     * hand the current buffer to the thread pool, writing the oldest block first if too many pending
+     */
+    private void submitBlock() throws IOException {
+
+        if (this.pendingBlocks.size() >= this.maxBlocksPending) {
+            this.writeFirstPendingBlock();
+        }
+        this.pendingBlocks.add(this.executor.submit(
+                new BlockCompressor(this.uncompressedBuffer, this.numUncompressedBytes, this.compressionLevel)));
+        this.uncompressedBuffer = new byte[UNCOMPRESSED_BLOCK_SIZE];
+        this.numUncompressedBytes = 0;
+    }
+
+    private void writeFirstPendingBlock() throws IOException {
+
+        Future<byte[]> block = this.pendingBlocks.removeFirst();
+        try {
+            this.out.write(block.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing BGZF block");
+        } catch (ExecutionException ex) {
+            throw new IOException("Problem to compress BGZF block", ex.getCause());
+        }
+    }
+
+    /**
+     * compress one block into a complete BGZF block, header and footer included
+     */
+    private static class BlockCompressor implements Callable<byte[]> {
+
+        private final byte[] uncompressedBuffer;
+        private final int numUncompressedBytes;
+        private final int compressionLevel;
+
+        private BlockCompressor(byte[] uncompressedBuffer, int numUncompressedBytes, int compressionLevel) {
+            this.uncompressedBuffer = uncompressedBuffer;
+            this.numUncompressedBytes = numUncompressedBytes;
+            this.compressionLevel = compressionLevel;
+        }
+
+        @Override
+        public byte[] call() {
+
+            byte[] compressedBuffer = new byte[COMPRESSED_BUFFER_SIZE];
+            Deflater deflater = getDeflater(this.compressionLevel);
+            int compressedSize = this.deflate(deflater, compressedBuffer);
+            if (!deflater.finished()) {
+                //the data did not compress, store it without compression as BlockCompressedOutputStream does
+                deflater = getDeflater(Deflater.NO_COMPRESSION);
+                compressedSize = this.deflate(deflater, compressedBuffer);
+                if (!deflater.finished()) {
+                    throw new IllegalStateException("BGZF block too large without compression");
+                }
+            }
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(this.uncompressedBuffer, 0, this.numUncompressedBytes);
+
+            int blockSize = compressedSize + BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+                    + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+            byte[] block = new byte[blockSize];
+            int offset = 0;
+            block[offset++] = BlockCompressedStreamConstants.GZIP_ID1;
+            block[offset++] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+            block[offset++] = BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+            block[offset++] = (byte) BlockCompressedStreamConstants.GZIP_FLG;
+            offset = putInt(block, offset, 0);
+            block[offset++] = (byte) BlockCompressedStreamConstants.GZIP_XFL;
+            block[offset++] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+            offset = putShort(block, offset, BlockCompressedStreamConstants.GZIP_XLEN);
+            block[offset++] = BlockCompressedStreamConstants.BGZF_ID1;
+            block[offset++] = BlockCompressedStreamConstants.BGZF_ID2;
+            offset = putShort(block, offset, BlockCompressedStreamConstants.BGZF_LEN);
+            offset = putShort(block, offset, blockSize - 1);
+            System.arraycopy(compressedBuffer, 0, block, offset, compressedSize);
+            offset += compressedSize;
+            offset = putInt(block, offset, (int) crc32.getValue());
+            putInt(block, offset, this.numUncompressedBytes);
+            return block;
+        }
+
+        private int deflate(Deflater deflater, byte[] compressedBuffer) {
+
+            deflater.reset();
+            deflater.setInput(this.uncompressedBuffer, 0, this.numUncompressedBytes);
+            deflater.finish();
+            return deflater.deflate(compressedBuffer, 0, compressedBuffer.length);
+        }
+
+        private static Deflater getDeflater(int compressionLevel) {
+
+            Deflater[] deflaters = DEFLATERS.get();
+            int index = (compressionLevel < 0) ? deflaters.length - 1 : compressionLevel;
+            if (deflaters[index] == null) {
+                deflaters[index] = new Deflater(compressionLevel, true);
+            }
+            return deflaters[index];
+        }
+
+        private static int putShort(byte[] dst, int offset, int value) {
+            dst[offset] = (byte) value;
+            dst[offset + 1] = (byte) (value >> 8);
+            return offset + 2;
+        }
+
+        private static int putInt(byte[] dst, int offset, int value) {
+            for (int i = 0; i < 4; i++) {
+                dst[offset + i] = (byte) (value >> (8 * i));
+            }
+            return offset + 4;
+        }
+    }
+}
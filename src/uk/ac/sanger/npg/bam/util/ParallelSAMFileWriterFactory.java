@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.bam.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import net.sf.samtools.Defaults;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import net.sf.samtools.util.Md5CalculatingOutputStream;
+import net.sf.samtools.util.RuntimeIOException;
+
+/**
+ * Writer factory used by all tools, compressing BAM output on a shared thread pool
+ * when a number of compression threads is given.
+ *
+ * BAM files are written by DirectBAMFileWriter, which also takes records encoded by BAMRecordEncoder,
+ * with the same bytes as SAMFileWriterFactory at the same compression level.
+ * SAM files, and BAM files indexed while writing, are left to SAMFileWriterFactory.
+ */
+public class ParallelSAMFileWriterFactory {
+
+    private static int defaultCompressionThreads = 0;
+    private static boolean defaultCreateIndex = Defaults.CREATE_INDEX;
+    private static boolean defaultCreateMd5File = Defaults.CREATE_MD5;
+
+    private static ThreadPoolExecutor compressionPool = null;
+
+    private int compressionThreads = defaultCompressionThreads;
+    private boolean createIndex = defaultCreateIndex;
+    private boolean createMd5File = defaultCreateMd5File;
+
+    /**
+     * @param compressionThreads default number of threads compressing BAM output, none if less than 1
+     */
+    public static void setDefaultCompressionThreads(int compressionThreads) {
+        defaultCompressionThreads = compressionThreads;
+    }
+
+    /**
+     * @param createIndex default for whether to index coordinate sorted BAM output while writing
+     */
+    public static void setDefaultCreateIndex(boolean createIndex) {
+        defaultCreateIndex = createIndex;
+    }
+
+    /**
+     * @param createMd5File default for whether to write an md5 file next to the output
+     */
+    public static void setDefaultCreateMd5File(boolean createMd5File) {
+        defaultCreateMd5File = createMd5File;
+    }
+
+    /**
+     * @param compressionThreads number of threads compressing BAM output, none if less than 1
+     * @return this factory
+     */
+    public ParallelSAMFileWriterFactory setCompressionThreads(int compressionThreads) {
+        this.compressionThreads = compressionThreads;
+        return this;
+    }
+
+    /**
+     * @param createIndex whether to index coordinate sorted BAM output while writing
+     * @return this factory
+     */
+    public ParallelSAMFileWriterFactory setCreateIndex(boolean createIndex) {
+        this.createIndex = createIndex;
+        return this;
+    }
+
+    /**
+     * @param createMd5File whether to write an md5 file next to the output
+     * @return this factory
+     */
+    public ParallelSAMFileWriterFactory setCreateMd5File(boolean createMd5File) {
+        this.createMd5File = createMd5File;
+        return this;
+    }
+
+    /**
+     * @return the compressionThreads
+     */
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * create a SAM writer for file name ending with .sam, otherwise a BAM writer
+     *
+     * @param header
+     * @param presorted
+     * @param outputFile
+     * @return SAM or BAM writer
+     */
+    public SAMFileWriter makeSAMOrBAMWriter(SAMFileHeader header, boolean presorted, File outputFile) {
+
+        if (outputFile.getName().endsWith(".sam")) {
+            return this.makeSAMFileWriterFactory().makeSAMWriter(header, presorted, outputFile);
+        }
+        return this.makeBAMWriter(header, presorted, outputFile);
+    }
+
+    /**
+     * create a BAM writer with the default compression level
+     *
+     * @param header
+     * @param presorted
+     * @param outputFile
+     * @return BAM writer
+     */
+    public SAMFileWriter makeBAMWriter(SAMFileHeader header, boolean presorted, File outputFile) {
+        return this.makeBAMWriter(header, presorted, outputFile, BlockCompressedOutputStream.getDefaultCompressionLevel());
+    }
+
+    /**
+     * create a BAM writer, compressing on the shared thread pool if any compression threads
+     *
+     * @param header
+     * @param presorted
+     * @param outputFile
+     * @param compressionLevel
+     * @return BAM writer
+     */
+    public SAMFileWriter makeBAMWriter(SAMFileHeader header, boolean presorted, File outputFile, int compressionLevel) {
+
+        boolean createIndexWhileWriting = this.createIndex
+                && header.getSortOrder() == SAMFileHeader.SortOrder.coordinate;
+        if (createIndexWhileWriting) {
+            return this.makeSAMFileWriterFactory().makeBAMWriter(header, presorted, outputFile, compressionLevel);
+        }
+
+        OutputStream out = openFile(outputFile);
+        if (this.createMd5File) {
+            out = new Md5CalculatingOutputStream(out, new File(outputFile.getAbsolutePath() + ".md5"));
+        }
+
+        DirectBAMFileWriter writer = new DirectBAMFileWriter(
+                this.makeBGZFStream(out, outputFile, compressionLevel), out, outputFile, true);
+        writer.setSortOrder(header.getSortOrder(), presorted);
+        writer.setHeader(header);
+        return writer;
+    }
+
+    /**
+     * create a writer of a shard of BAM records without BAM header, in the order they are added,
+     * to be appended later to a BAM file
+     *
+     * @param header header of the BAM file the shard to be appended to
+     * @param shardFile
+     * @return shard writer taking SAM records or encoded records
+     */
+    public DirectBAMFileWriter makeBAMShardWriter(SAMFileHeader header, File shardFile) {
+
+        int compressionLevel = BlockCompressedOutputStream.getDefaultCompressionLevel();
+        OutputStream out = openFile(shardFile);
+        DirectBAMFileWriter writer = new DirectBAMFileWriter(
+                this.makeBGZFStream(out, shardFile, compressionLevel), null, shardFile, false);
+        writer.setSortOrder(header.getSortOrder(), true);
+        writer.setHeader(header);
+        return writer;
+    }
+
+    /**
+     * open a stream to write a file other than SAM or BAM,
+     * with an md5 file next to it if required
+     *
+     * @param outputFile
+     * @param blockCompressed compress in BGZF blocks, on the shared thread pool if any compression threads
+     * @return output stream, to be closed by the caller
+     */
+    public OutputStream makeOutputStream(File outputFile, boolean blockCompressed) {
+
+        OutputStream out = openFile(outputFile);
+        if (this.createMd5File) {
+            out = new Md5CalculatingOutputStream(out, new File(outputFile.getAbsolutePath() + ".md5"));
+        }
+        if (blockCompressed) {
+            out = this.makeBGZFStream(out, outputFile, BlockCompressedOutputStream.getDefaultCompressionLevel());
+        }
+        return out;
+    }
+
+    private static OutputStream openFile(File file) {
+
+        try {
+            return new FileOutputStream(file, false);
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Error opening file: " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * BGZF stream compressing on the shared thread pool if any compression threads
+     */
+    private OutputStream makeBGZFStream(OutputStream out, File file, int compressionLevel) {
+
+        if (this.compressionThreads > 0) {
+            return new ParallelBlockCompressedOutputStream(out, compressionLevel,
+                    getCompressionPool(this.compressionThreads), 2 * this.compressionThreads);
+        }
+        return new BlockCompressedOutputStream(out, file, compressionLevel);
+    }
+
+    private SAMFileWriterFactory makeSAMFileWriterFactory() {
+        return new SAMFileWriterFactory().setCreateIndex(this.createIndex).setCreateMd5File(this.createMd5File);
+    }
+
+    /**
+     * compression pool shared by all writers, grown in place if more threads requested,
+     * so that writers still open on it keep compressing
+     */
+    private static synchronized ExecutorService getCompressionPool(int threads) {
+
+        if (compressionPool == null) {
+            compressionPool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                private int count = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "bgzf-compression-" + (++count));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else if (compressionPool.getMaximumPoolSize() < threads) {
+            //maximum first, the core size never above it
+            compressionPool.setMaximumPoolSize(threads);
+            compressionPool.setCorePoolSize(threads);
+        }
+        return compressionPool;
+    }
+}
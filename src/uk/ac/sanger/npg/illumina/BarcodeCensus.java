@@ -0,0 +1,305 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import net.sf.picard.metrics.MetricBase;
+import net.sf.picard.metrics.MetricsFile;
+import net.sf.picard.metrics.StringHeader;
+
+/**
+ * Count the sequences of the index reads of a lane, to see the bar code distribution before decoding.
+ *
+ * Sequences of index read and second index read together are packed into a long,
+ * five values per base for A, C, G, T and N, and counted in an open addressing hash table of primitive arrays,
+ * so that counting allocates nothing per cluster. Sequences too long to be packed are counted in a hash map.
+ * Each tile counts its own clusters, added to the census of the lane when the tile is finished.
+ */
+public class BarcodeCensus {
+
+    //a leading 1 kept before the packed bases, so 26 bases still fit in a positive long
+    private static final int MAX_PACKED_LENGTH = 26;
+
+    private static final byte[] BASE_CODES = new byte[256];
+    private static final char[] BASES = {'A', 'C', 'G', 'T', 'N'};
+    static {
+        Arrays.fill(BASE_CODES, (byte) 4);
+        for (int i = 0; i < 4; i++) {
+            BASE_CODES[BASES[i]] = (byte) i;
+            BASE_CODES[Character.toLowerCase(BASES[i])] = (byte) i;
+        }
+    }
+
+    //empty slots have key 0
+    private long[] keys = new long[1024];
+    private long[] reads = new long[1024];
+    private long[] pfReads = new long[1024];
+    private int size = 0;
+
+    private final HashMap<String, long[]> unpackedCounts = new HashMap<String, long[]>();
+
+    private long totalReads = 0;
+    private long totalPfReads = 0;
+
+    /**
+     * count the index read sequence of one cluster
+     *
+     * @param indexChunk chunk of the index read
+     * @param index2Chunk chunk of the second index read, null if not dual indexed
+     * @param cluster index of the cluster in the chunks
+     * @param isPf
+     */
+    public void add(ReadChunk indexChunk, ReadChunk index2Chunk, int cluster, boolean isPf) {
+
+        int length = indexChunk.getReadLength() + (index2Chunk != null ? index2Chunk.getReadLength() : 0);
+        if (length > MAX_PACKED_LENGTH) {
+            String sequence = indexChunk.getBasesAsString(cluster);
+            if (index2Chunk != null) {
+                sequence += index2Chunk.getBasesAsString(cluster);
+            }
+            this.addCounts(sequence, 1, isPf ? 1 : 0);
+        } else {
+            long key = pack(1, indexChunk, cluster);
+            if (index2Chunk != null) {
+                key = pack(key, index2Chunk, cluster);
+            }
+            this.addCounts(key, 1, isPf ? 1 : 0);
+        }
+        this.totalReads++;
+        if (isPf) {
+            this.totalPfReads++;
+        }
+    }
+
+    private static long pack(long key, ReadChunk chunk, int cluster) {
+
+        byte[] bases = chunk.getBases();
+        int offset = chunk.getClusterOffset(cluster);
+        for (int i = 0; i < chunk.getReadLength(); i++) {
+            key = key * 5 + BASE_CODES[bases[offset + i] & 0xFF];
+        }
+        return key;
+    }
+
+    private static String unpack(long key) {
+
+        StringBuilder sequence = new StringBuilder();
+        while (key > 1) {
+            sequence.append(BASES[(int) (key % 5)]);
+            key /= 5;
+        }
+        return sequence.reverse().toString();
+    }
+
+    private void addCounts(long key, long readCount, long pfReadCount) {
+
+        int slot = this.findSlot(key);
+        if (this.keys[slot] == 0) {
+            if (2 * (this.size + 1) > this.keys.length) {
+                this.resize();
+                slot = this.findSlot(key);
+            }
+            this.keys[slot] = key;
+            this.size++;
+        }
+        this.reads[slot] += readCount;
+        this.pfReads[slot] += pfReadCount;
+    }
+
+    private void addCounts(String sequence, long readCount, long pfReadCount) {
+
+        long[] counts = this.unpackedCounts.get(sequence);
+        if (counts == null) {
+            counts = new long[2];
+            this.unpackedCounts.put(sequence, counts);
+        }
+        counts[0] += readCount;
+        counts[1] += pfReadCount;
+    }
+
+    /**
+     * @return slot of the key, or the empty slot where it goes
+     */
+    private int findSlot(long key) {
+
+        int mask = this.keys.length - 1;
+        int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        while (this.keys[slot] != 0 && this.keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+
+        long[] oldKeys = this.keys;
+        long[] oldReads = this.reads;
+        long[] oldPfReads = this.pfReads;
+        this.keys = new long[2 * oldKeys.length];
+        this.reads = new long[2 * oldKeys.length];
+        this.pfReads = new long[2 * oldKeys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = this.findSlot(oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.reads[slot] = oldReads[i];
+                this.pfReads[slot] = oldPfReads[i];
+            }
+        }
+    }
+
+    /**
+     * add the counts of another census, for example of a tile finished
+     *
+     * @param census
+     */
+    public synchronized void addAll(BarcodeCensus census) {
+
+        for (int i = 0; i < census.keys.length; i++) {
+            if (census.keys[i] != 0) {
+                this.addCounts(census.keys[i], census.reads[i], census.pfReads[i]);
+            }
+        }
+        for (Map.Entry<String, long[]> entry : census.unpackedCounts.entrySet()) {
+            this.addCounts(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+        this.totalReads += census.totalReads;
+        this.totalPfReads += census.totalPfReads;
+    }
+
+    /**
+     * @param maxSequences maximum number of sequences to report
+     * @return metrics of the most frequent sequences, most frequent first
+     */
+    public synchronized List<SequenceMetric> getRankedMetrics(int maxSequences) {
+
+        //the least frequent of the sequences kept at the head, to be replaced by more frequent ones
+        PriorityQueue<SequenceMetric> kept = new PriorityQueue<SequenceMetric>(Math.max(1, maxSequences),
+                Collections.reverseOrder(RANK_ORDER));
+        for (int i = 0; i < this.keys.length; i++) {
+            if (this.keys[i] != 0) {
+                this.keepMetric(kept, maxSequences, unpack(this.keys[i]), this.reads[i], this.pfReads[i]);
+            }
+        }
+        for (Map.Entry<String, long[]> entry : this.unpackedCounts.entrySet()) {
+            this.keepMetric(kept, maxSequences, entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+
+        List<SequenceMetric> ranked = new ArrayList<SequenceMetric>(kept);
+        Collections.sort(ranked, RANK_ORDER);
+        return ranked;
+    }
+
+    private void keepMetric(PriorityQueue<SequenceMetric> kept, int maxSequences, String sequence, long readCount, long pfReadCount) {
+
+        if (maxSequences < 1) {
+            return;
+        }
+        if (kept.size() == maxSequences && readCount < kept.peek().READS) {
+            return;
+        }
+        SequenceMetric metric = new SequenceMetric();
+        metric.BARCODE = sequence;
+        metric.READS = readCount;
+        metric.PF_READS = pfReadCount;
+        metric.PCT_READS = (this.totalReads > 0) ? readCount / (double) this.totalReads : 0d;
+        metric.PF_PCT_READS = (this.totalPfReads > 0) ? pfReadCount / (double) this.totalPfReads : 0d;
+        kept.add(metric);
+        if (kept.size() > maxSequences) {
+            kept.poll();
+        }
+    }
+
+    /**
+     * most reads first, then in order of sequence
+     */
+    private static final Comparator<SequenceMetric> RANK_ORDER = new Comparator<SequenceMetric>() {
+
+        @Override
+        public int compare(SequenceMetric m1, SequenceMetric m2) {
+            if (m1.READS != m2.READS) {
+                return (m1.READS > m2.READS) ? -1 : 1;
+            }
+            return m1.BARCODE.compareTo(m2.BARCODE);
+        }
+    };
+
+    /**
+     * write the most frequent sequences with their counts, most frequent first
+     *
+     * @param metrics
+     * @param reportFile
+     * @param maxSequences maximum number of sequences to report
+     */
+    public void writeReport(MetricsFile<SequenceMetric, Integer> metrics, File reportFile, int maxSequences) {
+
+        metrics.addHeader(new StringHeader(this.getSequenceCount() + " distinct index read sequences in "
+                + this.totalReads + " reads, " + this.totalPfReads + " PF reads"));
+        for (SequenceMetric metric : this.getRankedMetrics(maxSequences)) {
+            metrics.addMetric(metric);
+        }
+        metrics.write(reportFile);
+    }
+
+    /**
+     * @return the number of distinct sequences counted
+     */
+    public synchronized int getSequenceCount() {
+        return this.size + this.unpackedCounts.size();
+    }
+
+    /**
+     * @return the totalReads
+     */
+    public synchronized long getTotalReads() {
+        return totalReads;
+    }
+
+    /**
+     * @return the totalPfReads
+     */
+    public synchronized long getTotalPfReads() {
+        return totalPfReads;
+    }
+
+    /**
+     * Metrics of one index read sequence
+     */
+    public static class SequenceMetric extends MetricBase {
+
+        /** The sequence of index read, followed by second index read if any. */
+        public String BARCODE;
+        /** The total number of reads with this sequence. */
+        public long READS = 0;
+        /** The number of PF reads with this sequence. */
+        public long PF_READS = 0;
+        /** The percentage of all reads in the lane with this sequence. */
+        public double PCT_READS = 0d;
+        /** The percentage of PF reads in the lane with this sequence. */
+        public double PF_PCT_READS = 0d;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.File;
+import java.util.HashMap;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMRecord;
+import uk.ac.sanger.npg.bam.util.DirectBAMFileWriter;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
+
+/**
+ * Write reads decoded while converting to a file per bar code,
+ * named after the lane output with # and the bar code name before its extension,
+ * as the output of BamIndexDecoder with an output directory.
+ *
+ * SAM records go to the file of their read group.
+ * Tiles written in order encode their reads straight into the BAM file of their bar code.
+ */
+public class BarcodeSplitWriter implements SAMFileWriter {
+
+    private final SAMFileHeader header;
+    private final HashMap<String, SAMFileWriter> writerByReadGroup = new HashMap<String, SAMFileWriter>();
+    private final HashMap<String, SAMFileWriter> writerByBarcode = new HashMap<String, SAMFileWriter>();
+    private boolean writingInOrder = true;
+
+    /**
+     *
+     * @param indexDecoder
+     * @param laneHeader header of the lane before decoding
+     * @param programId id of the program record decoding, null to keep the program of each read group
+     * @param output lane output file
+     * @param factory
+     */
+    public BarcodeSplitWriter(InlineIndexDecoder indexDecoder, SAMFileHeader laneHeader, String programId,
+            File output, ParallelSAMFileWriterFactory factory) {
+
+        this.header = indexDecoder.decodeHeader(laneHeader, programId, null);
+
+        String outputName = output.getName();
+        int extensionStart = outputName.lastIndexOf('.');
+        if (extensionStart < 0) {
+            extensionStart = outputName.length();
+        }
+        for (String barcode : indexDecoder.getBarcodes()) {
+
+            File barcodeOutput = new File(output.getAbsoluteFile().getParentFile(),
+                    outputName.substring(0, extensionStart) + "#" + indexDecoder.getBarcodeName(barcode)
+                    + outputName.substring(extensionStart));
+            SAMFileHeader barcodeHeader = indexDecoder.decodeHeader(laneHeader, programId, barcode);
+            SAMFileWriter writer = factory.makeSAMOrBAMWriter(barcodeHeader, true, barcodeOutput);
+
+            this.writerByBarcode.put(barcode, writer);
+            this.writerByReadGroup.put(indexDecoder.getReadGroupId(barcode), writer);
+            if (!(writer instanceof DirectBAMFileWriter && ((DirectBAMFileWriter) writer).isWritingInOrder())) {
+                this.writingInOrder = false;
+            }
+        }
+    }
+
+    /**
+     * write a record to the file of its read group
+     *
+     * @param record
+     */
+    @Override
+    public void addAlignment(SAMRecord record) {
+
+        SAMFileWriter writer = this.writerByReadGroup.get((String) record.getAttribute("RG"));
+        if (writer == null) {
+            throw new IllegalArgumentException("No output for read group of record " + record.getReadName());
+        }
+        writer.addAlignment(record);
+    }
+
+    /**
+     * @param barcode
+     * @return BAM writer of the bar code, taking encoded records if writing in order
+     */
+    public DirectBAMFileWriter getDirectWriter(String barcode) {
+        return (DirectBAMFileWriter) this.writerByBarcode.get(barcode);
+    }
+
+    /**
+     * @return true if all files are BAM files taking encoded records
+     */
+    public boolean isWritingInOrder() {
+        return writingInOrder;
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return this.header;
+    }
+
+    @Override
+    public void close() {
+        for (SAMFileWriter writer : this.writerByBarcode.values()) {
+            writer.close();
+        }
+    }
+}
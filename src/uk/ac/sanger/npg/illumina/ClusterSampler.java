@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import uk.ac.sanger.npg.illumina.file.reader.PFMask;
+
+/**
+ * Select a fraction of the clusters of each tile for a quick look at a run.
+ *
+ * Each cluster is selected from a hash of the seed, tile number and cluster index only,
+ * so the same clusters are selected whatever the order or the number of threads tiles are converted in,
+ * and converting again with the same seed gives the same reads.
+ * The selection is a mask of the clusters of a tile, used the same way as the PF mask,
+ * so that clusters not selected are dropped as each cycle is read and never decoded.
+ */
+public class ClusterSampler {
+
+    private final double fraction;
+    private final long seed;
+
+    //a cluster selected if the top 53 bits of its hash below this
+    private final long threshold;
+
+    /**
+     * @param fraction fraction of clusters to select, more than 0 and at most 1
+     * @param seed
+     */
+    public ClusterSampler(double fraction, long seed) {
+
+        if (!(fraction > 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("Fraction of clusters to sample must be more than 0 and at most 1: " + fraction);
+        }
+        this.fraction = fraction;
+        this.seed = seed;
+        this.threshold = (long) Math.ceil(fraction * (1L << 53));
+    }
+
+    /**
+     * @param tileNumber
+     * @param clusterIndex index of the cluster in the tile, from 0
+     * @return true if the cluster is selected
+     */
+    public boolean isSelected(int tileNumber, int clusterIndex) {
+
+        long key = ((long) tileNumber << 32) | (clusterIndex & 0xFFFFFFFFL);
+        return (mix(this.seed ^ mix(key)) >>> 11) < this.threshold;
+    }
+
+    /**
+     * finalizer of splitmix64, every bit of the input changing about half of the output bits
+     */
+    private static long mix(long z) {
+
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * @param tileNumber
+     * @param totalClusters number of clusters in the tile
+     * @return mask of the clusters of the tile selected
+     */
+    public PFMask select(int tileNumber, int totalClusters) {
+
+        long[] bits = new long[(totalClusters + 63) >>> 6];
+        for (int i = 0; i < totalClusters; i++) {
+            if (this.isSelected(tileNumber, i)) {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        return new PFMask(bits, totalClusters);
+    }
+
+    /**
+     * @return the fraction
+     */
+    public double getFraction() {
+        return fraction;
+    }
+
+    /**
+     * @return the seed
+     */
+    public long getSeed() {
+        return seed;
+    }
+}
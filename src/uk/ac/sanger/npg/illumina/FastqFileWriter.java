@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.RuntimeIOException;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
+
+/**
+ * Write reads as FASTQ to feed aligners, instead of BAM.
+ *
+ * Reads of a paired run are interleaved in one file, read 1 then read 2 of each cluster with /1 and /2
+ * after their names, or read 2 written to its own file.
+ * The cluster index and the bar code sequences of a read are kept after its name as SAM tags
+ * separated by tabs, as they are in BAM records, which aligners can copy to their output.
+ * There is no field for the filter flag, so only PF clusters are expected.
+ *
+ * Tiles write reads straight from their chunk buffers, and SAM records added are converted the same way.
+ */
+public class FastqFileWriter implements SAMFileWriter {
+
+    /**
+     * compression of FASTQ files
+     */
+    public enum Compression {
+        NONE, GZIP, BGZF
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final SAMFileHeader header;
+    private final OutputStream out;
+    private final OutputStream secondEndOut;
+    private final String barcodeSeqTagName;
+    private final String secondBarcodeSeqTagName;
+
+    private byte[] record = new byte[1024];
+    private int length = 0;
+
+    /**
+     *
+     * @param header header of the lane, only kept for tiles writing to it
+     * @param output
+     * @param secondEndOutput file for read 2 of paired runs, null to interleave it with read 1 in the output
+     * @param compression null for gzip if the file name ends with .gz, otherwise none
+     * @param barcodeSeqTagName
+     * @param secondBarcodeSeqTagName null if no second index read
+     * @param factory
+     */
+    public FastqFileWriter(SAMFileHeader header, File output, File secondEndOutput, Compression compression,
+            String barcodeSeqTagName, String secondBarcodeSeqTagName, ParallelSAMFileWriterFactory factory) {
+
+        this.header = header;
+        this.barcodeSeqTagName = barcodeSeqTagName;
+        this.secondBarcodeSeqTagName = secondBarcodeSeqTagName;
+        this.out = openFastq(output, compression, factory);
+        this.secondEndOut = (secondEndOutput != null) ? openFastq(secondEndOutput, compression, factory) : null;
+    }
+
+    /**
+     * @param file
+     * @return true if the file name ends with .fastq or .fq, with or without .gz
+     */
+    public static boolean isFastqFile(File file) {
+
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".gz")) {
+            name = name.substring(0, name.length() - 3);
+        }
+        return name.endsWith(".fastq") || name.endsWith(".fq");
+    }
+
+    private static OutputStream openFastq(File file, Compression compression, ParallelSAMFileWriterFactory factory) {
+
+        if (compression == null) {
+            compression = file.getName().endsWith(".gz") ? Compression.GZIP : Compression.NONE;
+        }
+        if (compression == Compression.BGZF) {
+            return factory.makeOutputStream(file, true);
+        }
+        OutputStream out = factory.makeOutputStream(file, false);
+        if (compression == Compression.GZIP) {
+            try {
+                out = new GZIPOutputStream(out, BUFFER_SIZE);
+            } catch (IOException ex) {
+                throw new RuntimeIOException("Error opening file: " + file.getAbsolutePath(), ex);
+            }
+        }
+        return new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+
+    /**
+     * write one read of a cluster straight from the chunk buffers
+     *
+     * @param readName buffer holding the read name
+     * @param nameLength
+     * @param readNumber 1 or 2 for reads of a paired run, 0 otherwise
+     * @param clusterIndex
+     * @param chunk chunk of this read
+     * @param cluster index of the cluster in the chunks
+     * @param indexChunk chunk of index read, null if not for this read
+     * @param index2Chunk chunk of second index read, null if not for this read
+     */
+    public void addRead(byte[] readName, int nameLength, int readNumber, int clusterIndex,
+            ReadChunk chunk, int cluster, ReadChunk indexChunk, ReadChunk index2Chunk) {
+
+        this.startRecord(readName, nameLength, readNumber, clusterIndex);
+        if (indexChunk != null) {
+            this.addTag(this.barcodeSeqTagName, indexChunk.getBases(), indexChunk.getClusterOffset(cluster), indexChunk.getReadLength());
+        }
+        if (index2Chunk != null) {
+            this.addTag(this.secondBarcodeSeqTagName, index2Chunk.getBases(), index2Chunk.getClusterOffset(cluster), index2Chunk.getReadLength());
+        }
+        this.finishRecord(readNumber, chunk.getBases(), chunk.getQualities(), chunk.getClusterOffset(cluster), chunk.getReadLength());
+    }
+
+    /**
+     * write a SAM record converted from base calls as FASTQ
+     *
+     * @param record
+     */
+    @Override
+    public void addAlignment(SAMRecord record) {
+
+        int readNumber = 0;
+        if (record.getReadPairedFlag()) {
+            readNumber = record.getFirstOfPairFlag() ? 1 : 2;
+        }
+        byte[] readName = record.getReadName().getBytes();
+        Integer clusterIndex = (Integer) record.getAttribute("ci");
+        if (clusterIndex == null) {
+            throw new IllegalArgumentException("No cluster index for record " + record.getReadName());
+        }
+
+        this.startRecord(readName, readName.length, readNumber, clusterIndex);
+        for (String tagName : new String[] {this.barcodeSeqTagName, this.secondBarcodeSeqTagName}) {
+            String barcode = (tagName != null) ? record.getStringAttribute(tagName) : null;
+            if (barcode != null) {
+                byte[] bases = barcode.getBytes();
+                this.addTag(tagName, bases, 0, bases.length);
+            }
+        }
+        this.finishRecord(readNumber, record.getReadBases(), record.getBaseQualities(), 0, record.getReadLength());
+    }
+
+    private void startRecord(byte[] readName, int nameLength, int readNumber, int clusterIndex) {
+
+        this.length = 0;
+        this.ensureCapacity(nameLength + 24);
+        this.record[this.length++] = '@';
+        System.arraycopy(readName, 0, this.record, this.length, nameLength);
+        this.length += nameLength;
+        if (readNumber > 0) {
+            this.record[this.length++] = '/';
+            this.record[this.length++] = (byte) ('0' + readNumber);
+        }
+        this.record[this.length++] = '\t';
+        this.record[this.length++] = 'c';
+        this.record[this.length++] = 'i';
+        this.record[this.length++] = ':';
+        this.record[this.length++] = 'i';
+        this.record[this.length++] = ':';
+        byte[] digits = Integer.toString(clusterIndex).getBytes();
+        System.arraycopy(digits, 0, this.record, this.length, digits.length);
+        this.length += digits.length;
+    }
+
+    private void addTag(String tagName, byte[] value, int offset, int valueLength) {
+
+        this.ensureCapacity(valueLength + 6);
+        this.record[this.length++] = '\t';
+        this.record[this.length++] = (byte) tagName.charAt(0);
+        this.record[this.length++] = (byte) tagName.charAt(1);
+        this.record[this.length++] = ':';
+        this.record[this.length++] = 'Z';
+        this.record[this.length++] = ':';
+        System.arraycopy(value, offset, this.record, this.length, valueLength);
+        this.length += valueLength;
+    }
+
+    /**
+     * append bases and qualities in fastq format, then write the record to the file of its read
+     */
+    private void finishRecord(int readNumber, byte[] bases, byte[] quals, int offset, int readLength) {
+
+        this.ensureCapacity(2 * readLength + 4);
+        this.record[this.length++] = '\n';
+        System.arraycopy(bases, offset, this.record, this.length, readLength);
+        this.length += readLength;
+        this.record[this.length++] = '\n';
+        this.record[this.length++] = '+';
+        this.record[this.length++] = '\n';
+        for (int i = 0; i < readLength; i++) {
+            this.record[this.length++] = (byte) (quals[offset + i] + 33);
+        }
+        this.record[this.length++] = '\n';
+
+        OutputStream recordOut = (readNumber == 2 && this.secondEndOut != null) ? this.secondEndOut : this.out;
+        try {
+            recordOut.write(this.record, 0, this.length);
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Error writing FASTQ record", ex);
+        }
+    }
+
+    private void ensureCapacity(int extraLength) {
+
+        if (this.length + extraLength > this.record.length) {
+            this.record = Arrays.copyOf(this.record, Math.max(2 * this.record.length, this.length + extraLength));
+        }
+    }
+
+    @Override
+    public SAMFileHeader getFileHeader() {
+        return this.header;
+    }
+
+    @Override
+    public void close() {
+
+        try {
+            this.out.close();
+            if (this.secondEndOut != null) {
+                this.secondEndOut.close();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeIOException("Error closing FASTQ file", ex);
+        }
+    }
+}
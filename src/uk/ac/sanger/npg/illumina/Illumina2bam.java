@@ -21,16 +21,23 @@ package uk.ac.sanger.npg.illumina;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import net.sf.picard.cmdline.Option;
+import net.sf.picard.cmdline.StandardOptionDefinitions;
 import net.sf.picard.cmdline.Usage;
 import net.sf.picard.io.IoUtil;
+import net.sf.picard.metrics.MetricsFile;
 import net.sf.picard.util.Log;
 import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMReadGroupRecord;
 import net.sf.samtools.util.Iso8601Date;
+import uk.ac.sanger.npg.picard.IndexDecoder;
 import uk.ac.sanger.npg.picard.PicardCommandLine;
+import uk.ac.sanger.npg.illumina.file.reader.DecompressionPool;
 
 /**
  *
@@ -57,10 +64,13 @@ public class Illumina2bam extends PicardCommandLine {
     @Option(shortName="B", doc="Illumina basecalls directory including config xml file, and filter files, bcl, maybe scl files under lane cycle directory, using BaseCalls directory under intensities if not given. ", optional=true)
     public File BASECALLS_DIR;
     
-    @Option(shortName="L", doc="Lane number.")
+    @Option(shortName="L", doc="Lane number.", mutex={"LANES"})
     public Integer LANE;
 
-    @Option(shortName="O", doc="Output file name.")
+    @Option(doc="Lane numbers to convert in one run instead of LANE, parsing the run config once and sharing worker threads between lanes, each lane written to OUTPUT with %d replaced by its lane number.", mutex={"LANE"})
+    public List<Integer> LANES = new ArrayList<Integer>();
+
+    @Option(shortName="O", doc="Output file name, SAM if ending with .sam, FASTQ if ending with .fastq or .fq with or without .gz, otherwise BAM.")
     public File OUTPUT;
 
     @Option(shortName="E2", doc="Including second base call or not, default false.", optional=true)
@@ -130,13 +140,113 @@ public class Illumina2bam extends PicardCommandLine {
             optional = true)
         public ArrayList<Integer> FINAL_INDEX_CYCLE;
 
+    @Option(shortName="MMAP", doc="Map uncompressed BCL files into memory rather than reading them through an input stream, default true.", optional=true)
+    public boolean MEMORY_MAP_BCL = true;
+
+    @Option(shortName="CHUNK", doc="Maximum number of clusters read from base call files and transposed into reads in one go, which limits memory used per tile.", optional=true)
+    public int CLUSTER_CHUNK_SIZE = Tile.DEFAULT_CLUSTER_CHUNK_SIZE;
+
+    @Option(shortName="DT", doc="Number of threads to inflate gzipped BCL files of a tile ahead of reading them, 0 to inflate them when reading.", optional=true)
+    public int DECOMPRESSION_THREADS = 0;
+
+    @Option(shortName="DRA", doc="Number of 64KB blocks inflated ahead of reading for each gzipped BCL file when decompression threads used.", optional=true)
+    public int DECOMPRESSION_READ_AHEAD = DecompressionPool.DEFAULT_READ_AHEAD_BLOCKS;
+
+    @Option(shortName="LT", doc="Number of threads to load base call files of a chunk of clusters, one task per cycle, or per block for BGZF compressed BCL files.", optional=true)
+    public int LOADING_THREADS = 1;
+
+    @Option(shortName="PT", doc="Number of tiles opened and pre-read on a background thread ahead of the tile being written, which caps the memory held by tiles read ahead, 0 to open each tile when writing it.", optional=true)
+    public int PREFETCH_TILES = Lane.DEFAULT_PREFETCH_TILES;
+
+    @Option(shortName="TT", doc="Number of tiles converted at the same time on their own threads, written in the order of tiles, 1 to convert one tile after another.", optional=true)
+    public int TILE_THREADS = 1;
+
+    @Option(shortName="TBR", doc="Maximum number of records buffered in memory by all tiles converted at the same time when TILE_THREADS greater than 1.", optional=true)
+    public int TILE_BUFFER_RECORDS = TileWorkerPool.DEFAULT_BUFFER_RECORDS;
+
+    @Option(shortName="CHECK", doc="Check headers and sizes of filter, position, BCL and SCL files of all tiles in parallel before converting any tile, and stop if any problem found.", optional=true)
+    public boolean PREFLIGHT_CHECK = false;
+
+    @Option(shortName="CHECK_ONLY", doc="Only check headers and sizes of files of all tiles as PREFLIGHT_CHECK, without writing the output.", optional=true)
+    public boolean PREFLIGHT_ONLY = false;
+
+    @Option(shortName="SD", doc="Directory to write each group of tiles to as a shard of BAM records without header, appended block by block to the BAM output, with a journal of the shards complete for each lane.", optional=true)
+    public File SHARD_DIR;
+
+    @Option(shortName="TPS", doc="Number of tiles written to each shard in SHARD_DIR.", optional=true)
+    public int TILES_PER_SHARD = 1;
+
+    @Option(doc="Append the shards in SHARD_DIR to the output, false to only write the shards, for example with tiles split between several jobs.", optional=true)
+    public boolean MERGE_SHARDS = true;
+
+    @Option(doc="Resume from the journal of tile shards in SHARD_DIR left by an earlier run or by jobs only writing shards, reusing the shards with the length and checksum in the journal and converting the other tiles, false to convert all tiles again. Not possible when decoding barcodes.", optional=true)
+    public boolean RESUME = false;
+
+    @Option(doc="Barcode sequence to decode the index read against while converting, as BamIndexDecoder.  These must be unique, and all the same length.", mutex = {"BARCODE_FILE"}, optional=true)
+    public List<String> BARCODE = new ArrayList<String>();
+
+    @Option(doc="Tab-delimited file of barcode sequences to decode the index read against while converting, as BamIndexDecoder.  " +
+            "Barcodes must be unique, and all the same length.  Column headers must be 'barcode_sequence', " +
+            "'barcode_name', and 'library_name'.", mutex = {"BARCODE"}, optional=true)
+    public File BARCODE_FILE;
+
+    @Option(doc="Per-barcode metrics written to this file when decoding, with %d replaced by the lane number when converting LANES.", shortName = StandardOptionDefinitions.METRICS_FILE_SHORT_NAME, optional=true)
+    public File METRICS_FILE;
+
+    @Option(doc="Maximum mismatches for a barcode to be considered a match.", optional=true)
+    public int MAX_MISMATCHES = 1;
+
+    @Option(doc="Minimum difference between number of mismatches in the best and second best barcodes for a barcode to be considered a match.", optional=true)
+    public int MIN_MISMATCH_DELTA = 1;
+
+    @Option(doc="Maximum allowable number of no-calls in a barcode read before it is considered unmatchable.", optional=true)
+    public int MAX_NO_CALLS = 2;
+
+    @Option(doc="Convert low quality bases in barcode read to Ns .", optional=true)
+    public boolean CONVERT_LOW_QUALITY_TO_NO_CALL = false;
+
+    @Option(doc="Max low quality phred value to convert bases in barcode read to Ns .", optional=true)
+    public int MAX_LOW_QUALITY_TO_CONVERT = 15;
+
+    @Option(doc="Write a file per barcode when decoding, named as OUTPUT with # and the barcode name before its extension, instead of OUTPUT.", optional=true)
+    public boolean SPLIT_BY_BARCODE = false;
+
+    @Option(doc="FASTQ file for read 2 of a paired run when OUTPUT is a FASTQ file, with %d replaced by the lane number when converting LANES, read 2 interleaved with read 1 in OUTPUT if not given.", optional=true)
+    public File SECOND_END_FASTQ;
+
+    @Option(doc="Compression of FASTQ output, gzip if not given and the file name ends with .gz, none otherwise. BGZF output can be read by gzip and is compressed on COMPRESSION_THREADS.", optional=true)
+    public FastqFileWriter.Compression FASTQ_COMPRESSION;
+
+    @Option(doc="Only count the index read sequences of all tiles, reading filter files and index read BCL files only, and write the most frequent ones to this file instead of OUTPUT, with %d replaced by the lane number when converting LANES. Barcode metrics are written to METRICS_FILE as well if barcodes given.", optional=true)
+    public File BARCODE_CENSUS;
+
+    @Option(doc="Maximum number of the most frequent index read sequences written to BARCODE_CENSUS.", optional=true)
+    public int MAX_CENSUS_SEQUENCES = 1000;
+
+    @Option(doc="Fraction of clusters to convert, selected from a hash of SAMPLE_SEED, tile number and cluster index so that the same clusters are selected each time, all clusters if not given. Clusters not selected are skipped before decoding.", optional=true)
+    public Double SAMPLE_FRACTION;
+
+    @Option(doc="Seed of the selection of clusters when SAMPLE_FRACTION given.", optional=true)
+    public long SAMPLE_SEED = 1;
+
+    private IndexDecoder indexDecoder;
+
     //TODO: add command option to skip adding ci tag
     
 
     @Override
     protected int doWork() {
 
-        IoUtil.assertFileIsWritable(OUTPUT);
+        List<Integer> laneNumbers = (this.LANE != null) ? Collections.singletonList(this.LANE) : this.LANES;
+        for (int laneNumber : laneNumbers) {
+            IoUtil.assertFileIsWritable(this.getLaneFile(this.OUTPUT, laneNumber));
+            if (this.SECOND_END_FASTQ != null) {
+                IoUtil.assertFileIsWritable(this.getLaneFile(this.SECOND_END_FASTQ, laneNumber));
+            }
+            if (this.BARCODE_CENSUS != null) {
+                IoUtil.assertFileIsWritable(this.getLaneFile(this.BARCODE_CENSUS, laneNumber));
+            }
+        }
         
         IoUtil.assertDirectoryIsReadable(this.INTENSITY_DIR);
         
@@ -161,28 +271,139 @@ public class Illumina2bam extends PicardCommandLine {
            runfolderPath = this.RUN_FOLDER.getAbsolutePath();
         }   
 
-        Lane lane = new Lane(this.INTENSITY_DIR.getAbsolutePath(),
-                this.BASECALLS_DIR.getAbsolutePath(),
-                runfolderPath,
-                this.LANE,
-                this.GENERATE_SECONDARY_BASE_CALLS,
-                this.PF_FILTER,
-                this.OUTPUT,
-                this.BARCODE_SEQUENCE_TAG_NAME,
-                this.BARCODE_QUALITY_TAG_NAME);
+        List<Lane> lanes = new ArrayList<Lane>(laneNumbers.size());
+        for (int laneNumber : laneNumbers) {
+
+            Lane lane;
+            if (lanes.isEmpty()) {
+                lane = new Lane(this.INTENSITY_DIR.getAbsolutePath(),
+                        this.BASECALLS_DIR.getAbsolutePath(),
+                        runfolderPath,
+                        laneNumber,
+                        this.GENERATE_SECONDARY_BASE_CALLS,
+                        this.PF_FILTER,
+                        this.getLaneFile(this.OUTPUT, laneNumber),
+                        this.BARCODE_SEQUENCE_TAG_NAME,
+                        this.BARCODE_QUALITY_TAG_NAME);
 
         
-        if ( (this.SECOND_BARCODE_QUALITY_TAG_NAME != null && this.SECOND_BARCODE_SEQUENCE_TAG_NAME == null)
-          || (this.SECOND_BARCODE_QUALITY_TAG_NAME == null && this.SECOND_BARCODE_SEQUENCE_TAG_NAME != null) )
-        {
+                if ( (this.SECOND_BARCODE_QUALITY_TAG_NAME != null && this.SECOND_BARCODE_SEQUENCE_TAG_NAME == null)
+                  || (this.SECOND_BARCODE_QUALITY_TAG_NAME == null && this.SECOND_BARCODE_SEQUENCE_TAG_NAME != null) )
+                {
             
-            log.warn("Both SECOND_BARCODE_SEQUENCE_TAG_NAME and SECOND_BARCODE_QUALITY_TAG_NAME need to be given togeter or both missing");
-        }else if(this.SECOND_BARCODE_QUALITY_TAG_NAME != null && this.SECOND_BARCODE_SEQUENCE_TAG_NAME != null){
+                    log.warn("Both SECOND_BARCODE_SEQUENCE_TAG_NAME and SECOND_BARCODE_QUALITY_TAG_NAME need to be given togeter or both missing");
+                }else if(this.SECOND_BARCODE_QUALITY_TAG_NAME != null && this.SECOND_BARCODE_SEQUENCE_TAG_NAME != null){
             
-            lane.setSecondBarcodeSeqTagName(this.SECOND_BARCODE_SEQUENCE_TAG_NAME);
-            lane.setSecondBarcodeQualTagName(this.SECOND_BARCODE_QUALITY_TAG_NAME);
+                    lane.setSecondBarcodeSeqTagName(this.SECOND_BARCODE_SEQUENCE_TAG_NAME);
+                    lane.setSecondBarcodeQualTagName(this.SECOND_BARCODE_QUALITY_TAG_NAME);
+                }
+        
+                lane.setMemoryMapBCL(this.MEMORY_MAP_BCL);
+                lane.setClusterChunkSize(this.CLUSTER_CHUNK_SIZE);
+                lane.setDecompressionThreads(this.DECOMPRESSION_THREADS);
+                lane.setDecompressionReadAhead(this.DECOMPRESSION_READ_AHEAD);
+                lane.setLoadingThreads(this.LOADING_THREADS);
+                lane.setPrefetchTiles(this.PREFETCH_TILES);
+                lane.setTileThreads(this.TILE_THREADS);
+                lane.setTileBufferRecords(this.TILE_BUFFER_RECORDS);
+                lane.setShardDir(this.SHARD_DIR);
+                lane.setTilesPerShard(this.TILES_PER_SHARD);
+                lane.setResume(this.RESUME);
+                lane.setSplitByBarcode(this.SPLIT_BY_BARCODE);
+                lane.setFastqCompression(this.FASTQ_COMPRESSION);
+                if (this.SAMPLE_FRACTION != null) {
+                    lane.setClusterSampler(new ClusterSampler(this.SAMPLE_FRACTION, this.SAMPLE_SEED));
+                }
+            } else {
+                log.info("Lane " + laneNumber + " sharing config xml files parsed for lane " + laneNumbers.get(0));
+                lane = new Lane(lanes.get(0), laneNumber, this.getLaneFile(this.OUTPUT, laneNumber));
+            }
+
+            int status = this.setUpLane(lane, laneNumber);
+            if (status != 0) {
+                return status;
+            }
+            lanes.add(lane);
         }
 
+        if (this.PREFLIGHT_ONLY) {
+            return 0;
+        }
+
+        if (this.BARCODE_CENSUS != null) {
+            for (int i = 0; i < lanes.size(); i++) {
+                log.info("Counting index read sequences of lane " + laneNumbers.get(i));
+                File censusFile = this.getLaneFile(this.BARCODE_CENSUS, laneNumbers.get(i));
+                try {
+                    BarcodeCensus census = lanes.get(i).countIndexReads();
+                    final MetricsFile<BarcodeCensus.SequenceMetric, Integer> metrics = getMetricsFile();
+                    census.writeReport(metrics, censusFile, this.MAX_CENSUS_SEQUENCES);
+                } catch (Exception ex) {
+                    log.error(ex, "Problems to count index reads");
+                    return 1;
+                }
+                log.info("Barcode census written to: " + censusFile);
+            }
+            this.writeBarcodeMetrics(lanes, laneNumbers);
+            return 0;
+        }
+
+        if (this.SHARD_DIR != null && !this.MERGE_SHARDS) {
+            log.info("Writing tile shards only");
+            try {
+                Lane.writeTileShards(lanes);
+            } catch (Exception ex) {
+                log.error(ex, "Problems to write tile shards");
+                return 1;
+            }
+            this.writeBarcodeMetrics(lanes, laneNumbers);
+            log.info("Tile shards written to: " + this.SHARD_DIR);
+            return 0;
+        }
+
+        if (lanes.size() > 1) {
+            log.info("Writing Basecall files of " + lanes.size() + " lanes to bam");
+            try {
+                Lane.processLanes(lanes);
+            } catch (Exception ex) {
+                log.error(ex, "Problems to process lanes");
+                return 1;
+            }
+            this.writeBarcodeMetrics(lanes, laneNumbers);
+            return 0;
+        }
+        Lane lane = lanes.get(0);
+
+        log.info("Generating bam or sam file output stream with header");
+        SAMFileWriter outBam = lane.generateOutputSamStream();
+        
+        log.info("Writing Basecall files to bam");
+        try {
+            lane.processTiles(outBam);
+        } catch (Exception ex) {
+            log.error(ex, "Problems to process tiles ");
+            return 1;
+        }
+
+        outBam.close();
+        
+        log.info("BAM or SAM file generated: " + this.OUTPUT);
+
+        this.writeBarcodeMetrics(lanes, laneNumbers);
+
+        return 0;
+    }
+
+
+    /**
+     * read configs of a lane and set it up from command line options
+     *
+     * @param lane
+     * @param laneNumber
+     * @return 0 if successfully
+     */
+    private int setUpLane(Lane lane, int laneNumber) {
+
         try {
             log.info("Reading config xml files");
             lane.readConfigs();
@@ -212,11 +433,21 @@ public class Illumina2bam extends PicardCommandLine {
         String runfolderConfig = lane.getRunfolderConfig();
         String platformUnitConfig = null;
         if(runfolderConfig != null){
-            platformUnitConfig = runfolderConfig + "_" + this.LANE;
+            platformUnitConfig = runfolderConfig + "_" + laneNumber;
         }        
         Date runDateConfig   = lane.getRunDateConfig();        
         lane.setReadGroup(this.generateSamReadGroupRecord(platformUnitConfig, runDateConfig));
 
+        if (this.SECOND_END_FASTQ != null) {
+            lane.setSecondEndOutput(this.getLaneFile(this.SECOND_END_FASTQ, laneNumber));
+        }
+
+        if (this.indexDecoder != null) {
+            log.info("Decoding index reads against " + this.indexDecoder.getNamedBarcodes().size() + " barcodes");
+            lane.setIndexDecoder(new InlineIndexDecoder(new IndexDecoder(this.indexDecoder), this.READ_GROUP_ID,
+                    this.CONVERT_LOW_QUALITY_TO_NO_CALL, this.MAX_LOW_QUALITY_TO_CONVERT));
+        }
+
         if( this.FIRST_TILE != null || this.TILE_LIMIT != null ){
             if(this.FIRST_TILE != null){
                 log.info("Trying to limit the number tiles from " + this.FIRST_TILE);
@@ -227,24 +458,133 @@ public class Illumina2bam extends PicardCommandLine {
             lane.reduceTileList(this.FIRST_TILE, this.TILE_LIMIT);
         }
 
-        log.info("Generating bam or sam file output stream with header");
-        SAMFileWriter outBam = lane.generateOutputSamStream();
-        
-        log.info("Writing Basecall files to bam");
-        try {
-            lane.processTiles(outBam);
-        } catch (Exception ex) {
-            log.error(ex, "Problems to process tiles ");
-            return 1;
+        if (this.PREFLIGHT_CHECK || this.PREFLIGHT_ONLY) {
+            List<String> problems;
+            try {
+                problems = lane.checkTileFiles(Runtime.getRuntime().availableProcessors());
+            } catch (Exception ex) {
+                log.error(ex, "Problems to check tile files");
+                return 1;
+            }
+            for (String problem : problems) {
+                log.error(problem);
+            }
+            if (!problems.isEmpty()) {
+                log.error(problems.size() + " problems found in tile files");
+                return 1;
+            }
+            log.info("No problem found in tile files");
         }
 
-        outBam.close();
-        
-        log.info("BAM or SAM file generated: " + this.OUTPUT);
-
         return 0;
     }
 
+    /**
+     * @param file
+     * @param laneNumber
+     * @return the file, with %d replaced by the lane number when converting several lanes
+     */
+    private File getLaneFile(File file, int laneNumber) {
+
+        if (this.LANE != null) {
+            return file;
+        }
+        return new File(file.getPath().replace("%d", String.valueOf(laneNumber)));
+    }
+
+    /**
+     * write bar code metrics of each lane if decoding index reads
+     */
+    private void writeBarcodeMetrics(List<Lane> lanes, List<Integer> laneNumbers) {
+
+        for (int i = 0; i < lanes.size(); i++) {
+            Lane lane = lanes.get(i);
+            if (lane.getIndexDecoder() != null) {
+                File metricsFile = this.getLaneFile(this.METRICS_FILE, laneNumbers.get(i));
+                log.info("Writing barcode metrics file: " + metricsFile);
+                final MetricsFile<IndexDecoder.BarcodeMetric, Integer> metrics = getMetricsFile();
+                lane.getIndexDecoder().writeMetrics(metrics, metricsFile);
+            }
+        }
+    }
+
+    @Override
+    protected String[] customCommandLineValidation() {
+
+        final ArrayList<String> messages = new ArrayList<String>();
+
+        if (!this.LANES.isEmpty() && !this.OUTPUT.getPath().contains("%d")) {
+            messages.add("OUTPUT must include %d for the lane number when converting LANES: " + this.OUTPUT);
+        }
+        if (new HashSet<Integer>(this.LANES).size() != this.LANES.size()) {
+            messages.add("Lane given more than once in LANES: " + this.LANES);
+        }
+
+        if (this.BARCODE_CENSUS != null && !this.LANES.isEmpty() && !this.BARCODE_CENSUS.getPath().contains("%d")) {
+            messages.add("BARCODE_CENSUS must include %d for the lane number when converting LANES: " + this.BARCODE_CENSUS);
+        }
+
+        if (this.SAMPLE_FRACTION != null) {
+            if (!(this.SAMPLE_FRACTION > 0 && this.SAMPLE_FRACTION <= 1)) {
+                messages.add("SAMPLE_FRACTION must be more than 0 and at most 1: " + this.SAMPLE_FRACTION);
+            }
+            if (this.BARCODE_CENSUS != null) {
+                messages.add("SAMPLE_FRACTION can not be used with BARCODE_CENSUS");
+            }
+        }
+
+        if (this.RESUME && this.SHARD_DIR == null) {
+            messages.add("RESUME needs SHARD_DIR to resume from the tile shards written there");
+        }
+
+        if (FastqFileWriter.isFastqFile(this.OUTPUT)) {
+            if (this.SHARD_DIR != null) {
+                messages.add("FASTQ output can not be written with SHARD_DIR");
+            }
+            if (this.SPLIT_BY_BARCODE) {
+                messages.add("SPLIT_BY_BARCODE can not be used with FASTQ output");
+            }
+            if (!this.PF_FILTER) {
+                messages.add("FASTQ output has no filter flag, PF_FILTER must be true");
+            }
+            if (this.SECOND_END_FASTQ != null && !this.LANES.isEmpty() && !this.SECOND_END_FASTQ.getPath().contains("%d")) {
+                messages.add("SECOND_END_FASTQ must include %d for the lane number when converting LANES: " + this.SECOND_END_FASTQ);
+            }
+        } else if (this.SECOND_END_FASTQ != null || this.FASTQ_COMPRESSION != null) {
+            messages.add("SECOND_END_FASTQ and FASTQ_COMPRESSION only used when OUTPUT is a FASTQ file: " + this.OUTPUT);
+        }
+
+        if (!this.BARCODE.isEmpty() || this.BARCODE_FILE != null) {
+            if (this.BARCODE_FILE != null) {
+                this.indexDecoder = new IndexDecoder(this.BARCODE_FILE);
+            } else {
+                this.indexDecoder = new IndexDecoder(this.BARCODE);
+            }
+            this.indexDecoder.setMaxMismatches(this.MAX_MISMATCHES);
+            this.indexDecoder.setMaxNoCalls(this.MAX_NO_CALLS);
+            this.indexDecoder.setMinMismatchDelta(this.MIN_MISMATCH_DELTA);
+            this.indexDecoder.prepareDecode(messages);
+
+            if (this.METRICS_FILE == null) {
+                messages.add("METRICS_FILE must be given when decoding barcodes");
+            } else if (!this.LANES.isEmpty() && !this.METRICS_FILE.getPath().contains("%d")) {
+                messages.add("METRICS_FILE must include %d for the lane number when converting LANES: " + this.METRICS_FILE);
+            }
+            if (this.SPLIT_BY_BARCODE && this.SHARD_DIR != null) {
+                messages.add("SPLIT_BY_BARCODE can not be used with SHARD_DIR");
+            }
+            if (this.RESUME) {
+                messages.add("RESUME can not be used when decoding barcodes, the barcode metrics would miss the reads of reused shards");
+            }
+        } else if (this.SPLIT_BY_BARCODE) {
+            messages.add("SPLIT_BY_BARCODE needs BARCODE or BARCODE_FILE to decode");
+        }
+
+        if (messages.isEmpty()) {
+            return null;
+        }
+        return messages.toArray(new String[messages.size()]);
+    }
 
     /**
      * Generate read group record
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import net.sf.picard.metrics.MetricsFile;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMReadGroupRecord;
+import uk.ac.sanger.npg.picard.IndexDecoder;
+
+/**
+ * Decode the index read of each cluster of a lane while converting tiles,
+ * marking reads the same way as BamIndexDecoder does for a BAM file:
+ * bar code name appended to the read name and the read group id after #,
+ * with a read group for each bar code in the header, 0 for reads not matching any bar code.
+ *
+ * Each tile decodes with its own IndexDecoder created from the lane one,
+ * and adds its metrics to the lane metrics when finished.
+ */
+public class InlineIndexDecoder {
+
+    private final IndexDecoder indexDecoder;
+    private final String readGroupId;
+    private final boolean convertLowQualityToNoCall;
+    private final int maxLowQualityToConvert;
+    private final int barcodeLength;
+
+    //bar codes in upper case, empty for no match, in the order of bar code names
+    private final List<String> barcodes = new ArrayList<String>();
+    private final HashMap<String, String> barcodeNames = new HashMap<String, String>();
+    private final HashMap<String, String> readGroupIds = new HashMap<String, String>();
+    private final HashMap<String, byte[]> readNameSuffixes = new HashMap<String, byte[]>();
+
+    /**
+     *
+     * @param indexDecoder decoder with its bar codes prepared
+     * @param readGroupId id of the read group of the lane
+     * @param convertLowQualityToNoCall convert low quality bases in the index read to N before decoding
+     * @param maxLowQualityToConvert max low quality phred value to convert
+     */
+    public InlineIndexDecoder(IndexDecoder indexDecoder, String readGroupId,
+            boolean convertLowQualityToNoCall, int maxLowQualityToConvert) {
+
+        this.indexDecoder = indexDecoder;
+        this.readGroupId = readGroupId;
+        this.convertLowQualityToNoCall = convertLowQualityToNoCall;
+        this.maxLowQualityToConvert = maxLowQualityToConvert;
+        this.barcodeLength = indexDecoder.getBarcodeLength();
+
+        List<IndexDecoder.NamedBarcode> namedBarcodes = indexDecoder.getNamedBarcodes();
+        for (int count = 0; count <= namedBarcodes.size(); count++) {
+
+            String barcode = "";
+            String barcodeName = null;
+            if (count != 0) {
+                barcode = namedBarcodes.get(count - 1).barcode.toUpperCase();
+                barcodeName = namedBarcodes.get(count - 1).barcodeName;
+            }
+            if (barcodeName == null || barcodeName.equals("")) {
+                barcodeName = Integer.toString(count);
+            }
+            this.barcodes.add(barcode);
+            this.barcodeNames.put(barcode, barcodeName);
+            this.readGroupIds.put(barcode, readGroupId + "#" + barcodeName);
+            this.readNameSuffixes.put(barcode, ("#" + barcodeName).getBytes());
+        }
+    }
+
+    /**
+     * read groups of the header replaced by a read group for each bar code, as BamIndexDecoder
+     *
+     * @param header header of the lane
+     * @param programId id of the program record decoding, null to keep the program of each read group
+     * @param barcode only the read groups of this bar code, null for all bar codes
+     * @return new header
+     */
+    public SAMFileHeader decodeHeader(SAMFileHeader header, String programId, String barcode) {
+
+        List<IndexDecoder.NamedBarcode> namedBarcodes = this.indexDecoder.getNamedBarcodes();
+        List<SAMReadGroupRecord> readGroupList = new ArrayList<SAMReadGroupRecord>();
+        for (int count = 0; count < this.barcodes.size(); count++) {
+
+            if (barcode != null && !barcode.equals(this.barcodes.get(count))) {
+                continue;
+            }
+            String barcodeName = this.barcodeNames.get(this.barcodes.get(count));
+            IndexDecoder.NamedBarcode namedBarcode = (count != 0) ? namedBarcodes.get(count - 1) : null;
+
+            for (SAMReadGroupRecord r : header.getReadGroups()) {
+                SAMReadGroupRecord newReadGroupRecord = new SAMReadGroupRecord(r.getId() + "#" + barcodeName, r);
+                if (programId != null) {
+                    newReadGroupRecord.setAttribute("PG", programId);
+                }
+                String pu = newReadGroupRecord.getPlatformUnit();
+                if (pu != null) {
+                    newReadGroupRecord.setPlatformUnit(pu + "#" + barcodeName);
+                }
+                if (namedBarcode != null) {
+                    if (namedBarcode.libraryName != null && !namedBarcode.libraryName.equals("")) {
+                        newReadGroupRecord.setLibrary(namedBarcode.libraryName);
+                    }
+                    if (namedBarcode.sampleName != null && !namedBarcode.sampleName.equals("")) {
+                        newReadGroupRecord.setSample(namedBarcode.sampleName);
+                    }
+                    if (namedBarcode.description != null && !namedBarcode.description.equals("")) {
+                        newReadGroupRecord.setDescription(namedBarcode.description);
+                    }
+                }
+                readGroupList.add(newReadGroupRecord);
+            }
+        }
+
+        SAMFileHeader decodedHeader = header.clone();
+        decodedHeader.setReadGroups(readGroupList);
+        return decodedHeader;
+    }
+
+    /**
+     * @return a decoder for one tile, its metrics to be added back by addTileMetrics
+     */
+    public IndexDecoder newTileDecoder() {
+        return new IndexDecoder(this.indexDecoder);
+    }
+
+    /**
+     * @param tileDecoder decoder of a tile finished
+     */
+    public void addTileMetrics(IndexDecoder tileDecoder) {
+        this.indexDecoder.addMetrics(tileDecoder);
+    }
+
+    /**
+     * decode the index read of one cluster
+     *
+     * @param tileDecoder decoder of the tile
+     * @param indexChunk chunk of the index read
+     * @param cluster index of the cluster in the chunk
+     * @param isPf
+     * @return bar code matched in upper case, empty if no match
+     */
+    public String decode(IndexDecoder tileDecoder, ReadChunk indexChunk, int cluster, boolean isPf) {
+
+        if (indexChunk.getReadLength() < this.barcodeLength) {
+            throw new RuntimeException("The barcode read length is less than barcode length: " + indexChunk.getReadLength());
+        }
+        byte[] bases = indexChunk.getBases();
+        byte[] quals = indexChunk.getQualities();
+        int offset = indexChunk.getClusterOffset(cluster);
+
+        char[] barcodeRead = new char[this.barcodeLength];
+        for (int i = 0; i < this.barcodeLength; i++) {
+            if (this.convertLowQualityToNoCall && quals[offset + i] <= this.maxLowQualityToConvert) {
+                barcodeRead[i] = 'N';
+            } else {
+                barcodeRead[i] = (char) bases[offset + i];
+            }
+        }
+
+        IndexDecoder.BarcodeMatch match = tileDecoder.extractBarcode(new String(barcodeRead), isPf);
+        if (match.isMatched()) {
+            return match.getBarcode().toUpperCase();
+        }
+        return "";
+    }
+
+    /**
+     * write bar code metrics of all tiles finished
+     *
+     * @param metrics
+     * @param metricsFile
+     */
+    public void writeMetrics(MetricsFile<IndexDecoder.BarcodeMetric, Integer> metrics, File metricsFile) {
+        this.indexDecoder.writeMetrics(metrics, metricsFile);
+    }
+
+    /**
+     * @return bar codes with their names and the decoding thresholds, one bar code per line,
+     *         all of which change the records and metrics of a lane
+     */
+    public String getDecodingSettings() {
+
+        StringBuilder settings = new StringBuilder();
+        settings.append("maxMismatches=").append(this.indexDecoder.getMaxMismatches())
+                .append(" minMismatchDelta=").append(this.indexDecoder.getMinMismatchDelta())
+                .append(" maxNoCalls=").append(this.indexDecoder.getMaxNoCalls())
+                .append(" convertLowQualityToNoCall=").append(this.convertLowQualityToNoCall)
+                .append(" maxLowQualityToConvert=").append(this.maxLowQualityToConvert).append('\n');
+        for (String barcode : this.barcodes) {
+            settings.append("barcode\t").append(barcode).append('\t').append(this.barcodeNames.get(barcode)).append('\n');
+        }
+        return settings.toString();
+    }
+
+    /**
+     * @return bar codes in upper case, the first one empty for reads not matching any bar code
+     */
+    public List<String> getBarcodes() {
+        return barcodes;
+    }
+
+    /**
+     * @param barcode
+     * @return the bar code name
+     */
+    public String getBarcodeName(String barcode) {
+        return this.barcodeNames.get(barcode);
+    }
+
+    /**
+     * @param barcode
+     * @return read group id of reads with this bar code
+     */
+    public String getReadGroupId(String barcode) {
+        return this.readGroupIds.get(barcode);
+    }
+
+    /**
+     * @param barcode
+     * @return # and bar code name appended to read names
+     */
+    public byte[] getReadNameSuffix(String barcode) {
+        return this.readNameSuffixes.get(barcode);
+    }
+
+    /**
+     * @return the readGroupId of the lane
+     */
+    public String getReadGroupId() {
+        return readGroupId;
+    }
+}
@@ -19,11 +19,19 @@
 package uk.ac.sanger.npg.illumina;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Map.Entry;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -35,6 +43,10 @@ import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
+import uk.ac.sanger.npg.bam.util.DirectBAMFileWriter;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
+import uk.ac.sanger.npg.illumina.file.reader.CBCLFileReader;
+import uk.ac.sanger.npg.illumina.file.reader.DecompressionPool;
 
 /**
  * Process an illumina run lane
@@ -44,6 +56,11 @@ import org.xml.sax.SAXException;
 public class Lane {
     
     private final Log log = Log.getInstance(Lane.class);
+
+    /**
+     * default number of tiles opened ahead of the tile being written
+     */
+    public static final int DEFAULT_PREFETCH_TILES = 1;
     
     //fields must be given about input data
     private final String intensityDir;
@@ -64,6 +81,24 @@ public class Lane {
     
     private String secondBarcodeSeqTagName;
     private String secondBarcodeQualTagName;
+    
+    private boolean memoryMapBCL = true;
+    private int clusterChunkSize = Tile.DEFAULT_CLUSTER_CHUNK_SIZE;
+    private int decompressionThreads = 0;
+    private int decompressionReadAhead = DecompressionPool.DEFAULT_READ_AHEAD_BLOCKS;
+    private int loadingThreads = 1;
+    private int prefetchTiles = DEFAULT_PREFETCH_TILES;
+    private int tileThreads = 1;
+    private int tileBufferRecords = TileWorkerPool.DEFAULT_BUFFER_RECORDS;
+    private File shardDir = null;
+    private int tilesPerShard = 1;
+    private boolean resume = false;
+    private InlineIndexDecoder indexDecoder = null;
+    private ClusterSampler clusterSampler = null;
+    private boolean splitByBarcode = false;
+    private File secondEndOutput = null;
+    private FastqFileWriter.Compression fastqCompression = null;
+    private final Map<String, CBCLFileReader.Header> cbclHeaders = new ConcurrentHashMap<String, CBCLFileReader.Header>();
 
   
     //config xml file name and XML Documetns
@@ -160,6 +195,59 @@ public class Lane {
         this.initConfigsDoc();
     }
 
+    /**
+     * another lane of the same run with the same options as the given lane,
+     * sharing the config xml files already parsed instead of parsing them again.
+     * Its configs still to be read.
+     *
+     * @param lane a lane of the run
+     * @param laneNumber lane number
+     * @param output Output file
+     */
+    public Lane(Lane lane, int laneNumber, File output){
+
+        this.intensityDir      = lane.intensityDir;
+        this.baseCallDir       = lane.baseCallDir;
+        this.runFolder         = lane.runFolder;
+        this.laneNumber        = laneNumber;
+        this.includeSecondCall = lane.includeSecondCall;
+        this.pfFilter          = lane.pfFilter;
+        this.output            = output;
+        this.barcodeSeqTagName  = lane.barcodeSeqTagName;
+        this.barcodeQualTagName = lane.barcodeQualTagName;
+        this.secondBarcodeSeqTagName  = lane.secondBarcodeSeqTagName;
+        this.secondBarcodeQualTagName = lane.secondBarcodeQualTagName;
+
+        this.memoryMapBCL           = lane.memoryMapBCL;
+        this.clusterChunkSize       = lane.clusterChunkSize;
+        this.decompressionThreads   = lane.decompressionThreads;
+        this.decompressionReadAhead = lane.decompressionReadAhead;
+        this.loadingThreads         = lane.loadingThreads;
+        this.prefetchTiles          = lane.prefetchTiles;
+        this.tileThreads            = lane.tileThreads;
+        this.tileBufferRecords      = lane.tileBufferRecords;
+        this.shardDir               = lane.shardDir;
+        this.tilesPerShard          = lane.tilesPerShard;
+        this.resume                 = lane.resume;
+        this.splitByBarcode         = lane.splitByBarcode;
+        this.fastqCompression       = lane.fastqCompression;
+        this.clusterSampler         = lane.clusterSampler;
+
+        this.baseCallsConfig   = lane.baseCallsConfig;
+        this.intensityConfig   = lane.intensityConfig;
+        this.runParametersFile = lane.runParametersFile;
+        this.runInfoFile       = lane.runInfoFile;
+
+        this.baseCallsConfigDoc = lane.baseCallsConfigDoc;
+        this.intensityConfigDoc = lane.intensityConfigDoc;
+        this.runParametersDoc   = lane.runParametersDoc;
+        this.runInfoDoc         = lane.runInfoDoc;
+        this.runConfigXmlNode   = lane.runConfigXmlNode;
+
+        XPathFactory factory = XPathFactory.newInstance();
+        xpath = factory.newXPath();
+    }
+
     /**
      * Read both config XML files under BaseCalls and Intensities.
      * And RunInfo and runParameters xml under runfolder.
@@ -188,9 +276,18 @@ public class Lane {
      */
     public SAMFileWriter generateOutputSamStream(){
 
-        SAMFileWriterFactory factory = new SAMFileWriterFactory();
+        ParallelSAMFileWriterFactory factory = new ParallelSAMFileWriterFactory();
 
-        SAMFileHeader header = this.generateHeader();
+        if (this.indexDecoder != null && this.splitByBarcode) {
+            return new BarcodeSplitWriter(this.indexDecoder, this.generateHeader(), this.getIllumina2bamProgramId(), output, factory);
+        }
+
+        SAMFileHeader header = this.generateOutputHeader();
+
+        if (FastqFileWriter.isFastqFile(output)) {
+            return new FastqFileWriter(header, output, this.secondEndOutput, this.fastqCompression,
+                    this.barcodeSeqTagName, this.secondBarcodeSeqTagName, factory);
+        }
 
         SAMFileWriter outputSam = factory.makeSAMOrBAMWriter(header, false, output);
 
@@ -206,31 +303,440 @@ public class Lane {
      */
     public boolean processTiles(SAMFileWriter outputSam) throws Exception{
 
+        if (this.shardDir != null) {
+            this.appendTileShards(this.writeTileShards(), outputSam);
+            return true;
+        }
+
+        DecompressionPool decompressionPool = this.createDecompressionPool();
+        ExecutorService loadingExecutor = this.createLoadingExecutor();
+        try {
+            List<Tile> tiles = this.createTiles(decompressionPool, loadingExecutor);
+            this.writeTiles(tiles, outputSam, null, this.tileBufferRecords);
+        } finally {
+            shutdownPools(decompressionPool, loadingExecutor);
+        }
+
+        return true;
+    }
+
+    /**
+     * convert several lanes of the same run, each lane written to its own output one lane after another.
+     * The tiles of all lanes are converted on one pool of as many threads as tile threads,
+     * or each lane converts its tiles one after another when no more than one tile thread,
+     * so the number of threads does not grow with the number of lanes.
+     * With a shard directory, the shards of all lanes are written first, then appended to the output of each lane.
+     *
+     * @param lanes lanes with their configs read, all with the same options
+     * @throws Exception the first problem converting a lane, in the order of the lanes
+     */
+    public static void processLanes(List<Lane> lanes) throws Exception {
+
+        Lane firstLane = lanes.get(0);
+        if (firstLane.shardDir != null) {
+            List<List<File>> shardsByLane = writeTileShards(lanes);
+            for (int i = 0; i < lanes.size(); i++) {
+                SAMFileWriter outputSam = lanes.get(i).generateOutputSamStream();
+                lanes.get(i).appendTileShards(shardsByLane.get(i), outputSam);
+                outputSam.close();
+            }
+            return;
+        }
+
+        DecompressionPool decompressionPool = firstLane.createDecompressionPool();
+        ExecutorService loadingExecutor = firstLane.createLoadingExecutor();
+        ExecutorService tileExecutor = null;
+        if (firstLane.tileThreads > 1) {
+            tileExecutor = TileWorkerPool.newExecutor(firstLane.tileThreads);
+        }
+        firstLane.log.info("Converting " + lanes.size() + " lanes one after another");
+
+        try {
+            for (Lane lane : lanes) {
+                List<Tile> tiles = lane.createTiles(decompressionPool, loadingExecutor);
+                SAMFileWriter outputSam = lane.generateOutputSamStream();
+                lane.writeTiles(tiles, outputSam, tileExecutor, lane.tileBufferRecords);
+                outputSam.close();
+                lane.log.info("Lane " + lane.laneNumber + " written to: " + lane.output);
+            }
+        } finally {
+            if (tileExecutor != null) {
+                tileExecutor.shutdownNow();
+            }
+            shutdownPools(decompressionPool, loadingExecutor);
+        }
+    }
+
+    /**
+     * count the sequences of the index reads of all tiles, reading only the filter files and BCL files of index reads,
+     * as many tiles at the same time as tile threads. Index reads are decoded as well if a decoder set.
+     *
+     * @return census of the index read sequences of this lane
+     * @throws Exception
+     */
+    public BarcodeCensus countIndexReads() throws Exception {
+
+        DecompressionPool decompressionPool = this.createDecompressionPool();
+        ExecutorService loadingExecutor = this.createLoadingExecutor();
+        ExecutorService tileExecutor = TileWorkerPool.newExecutor(Math.max(1, this.tileThreads));
+        final BarcodeCensus census = new BarcodeCensus();
+
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>(this.tileList.length);
+            for (final Tile tile : this.createTiles(decompressionPool, loadingExecutor)) {
+                results.add(tileExecutor.submit(new Callable<Object>() {
+
+                    @Override
+                    public Object call() throws Exception {
+                        log.info("Counting index reads of tile " + tile.getTileNumber());
+                        try {
+                            tile.openIndexBaseCallFiles();
+                            census.addAll(tile.countIndexReads());
+                        } finally {
+                            tile.closeBaseCallFiles();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            waitForAll(results);
+        } finally {
+            tileExecutor.shutdownNow();
+            shutdownPools(decompressionPool, loadingExecutor);
+        }
+        return census;
+    }
+
+    /**
+     * write tiles in order to the output, several tiles converted at the same time if more than one tile thread
+     *
+     * @param tiles
+     * @param outputSam
+     * @param tileExecutor executor shared with other lanes to convert tiles, null to use its own
+     * @param bufferRecords maximum number of records buffered by tiles converted at the same time
+     * @throws Exception
+     */
+    private void writeTiles(List<Tile> tiles, SAMFileWriter outputSam,
+            ExecutorService tileExecutor, int bufferRecords) throws Exception {
+
+        if (this.tileThreads > 1) {
+            TileWorkerPool workerPool = new TileWorkerPool(tiles, this.tileThreads, bufferRecords);
+            if (tileExecutor != null) {
+                workerPool.writeTiles(outputSam, tileExecutor);
+            } else {
+                workerPool.writeTiles(outputSam);
+            }
+            return;
+        }
+
+        TilePrefetcher prefetcher = null;
+        if (this.prefetchTiles > 0) {
+            prefetcher = new TilePrefetcher(tiles, this.prefetchTiles);
+            prefetcher.start();
+        }
+
+        try {
+            for(int i = 0; i < tiles.size(); i++){
+
+                Tile tile;
+                if (prefetcher != null) {
+                    tile = prefetcher.nextTile();
+                    log.info("Tile: " + tile.getTileNumber());
+                } else {
+                    tile = tiles.get(i);
+                    log.info("Tile: " + tile.getTileNumber());
+                    log.info("Opening all basecall files");
+                    tile.openBaseCallFiles();
+                }
+
+                log.info("Reading all base call files");
+                tile.processTile(outputSam);
+
+                log.info("Closing base call files");
+                tile.closeBaseCallFiles();
+            }
+        } finally {
+            if (prefetcher != null) {
+                prefetcher.shutdown();
+            }
+        }
+    }
+
+    private DecompressionPool createDecompressionPool() {
+
+        if (this.decompressionThreads > 0) {
+            return new DecompressionPool(this.decompressionThreads, this.decompressionReadAhead);
+        }
+        return null;
+    }
+
+    private ExecutorService createLoadingExecutor() {
+
+        if (this.loadingThreads > 1) {
+            log.info("Loading base call files with " + this.loadingThreads + " threads");
+            return Executors.newFixedThreadPool(this.loadingThreads);
+        }
+        return null;
+    }
+
+    private static void shutdownPools(DecompressionPool decompressionPool, ExecutorService loadingExecutor) {
+
+        if (decompressionPool != null) {
+            decompressionPool.shutdown();
+        }
+        if (loadingExecutor != null) {
+            loadingExecutor.shutdown();
+        }
+    }
+
+    /**
+     * wait for all tasks, in order
+     *
+     * @throws Exception the problem of the first task failed
+     */
+    private static void waitForAll(List<Future<Object>> results) throws Exception {
+
+        for (Future<Object> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof Exception) {
+                    throw (Exception) ex.getCause();
+                }
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * append tile shards block by block to the BAM output
+     */
+    private void appendTileShards(List<File> shards, SAMFileWriter outputSam) {
+
+        if (!(outputSam instanceof DirectBAMFileWriter)) {
+            throw new IllegalArgumentException("Tile shards can only be appended to BAM output: " + this.output);
+        }
+        for (File shard : shards) {
+            log.info("Appending tile shard: " + shard.getName());
+            ((DirectBAMFileWriter) outputSam).appendShard(shard);
+        }
+    }
+
+    /**
+     * write each group of tiles of this lane in the shard directory as a shard of BAM records without BAM header
+     *
+     * @return shard files in the order of the tile list
+     * @throws Exception
+     */
+    public List<File> writeTileShards() throws Exception {
+        return writeTileShards(Collections.singletonList(this)).get(0);
+    }
+
+    /**
+     * write each group of tiles of several lanes in the shard directory as a shard of BAM records without BAM header,
+     * converting as many shards of all lanes at the same time as tile threads.
+     * A shard is written under a temporary name, renamed once complete and added to the journal of its lane,
+     * so that when resuming, shards completed by an earlier run or another process are reused
+     * and only the other tiles converted.
+     *
+     * @param lanes lanes with their configs read, all with the same options
+     * @return shard files of each lane in the order of its tile list
+     * @throws Exception
+     */
+    public static List<List<File>> writeTileShards(List<Lane> lanes) throws Exception {
+
+        Lane firstLane = lanes.get(0);
+        DecompressionPool decompressionPool = firstLane.createDecompressionPool();
+        ExecutorService loadingExecutor = firstLane.createLoadingExecutor();
+        int threads = Math.max(1, firstLane.tileThreads);
+        firstLane.log.info("Writing tile shards to " + firstLane.shardDir + " with " + threads + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<TileShardJournal> journals = new ArrayList<TileShardJournal>(lanes.size());
+
+        try {
+            List<List<File>> shardsByLane = new ArrayList<List<File>>(lanes.size());
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for (final Lane lane : lanes) {
+
+                if (!lane.shardDir.isDirectory() && !lane.shardDir.mkdirs()) {
+                    throw new IOException("Failed to create tile shard directory: " + lane.shardDir);
+                }
+                final SAMFileHeader header = lane.generateOutputHeader();
+                final TileShardJournal journal = new TileShardJournal(
+                        new File(lane.shardDir, "s_" + lane.laneNumber + ".journal"),
+                        lane.getShardSettings(header), lane.resume);
+                journals.add(journal);
+                List<Tile> tiles = lane.createTiles(decompressionPool, loadingExecutor);
+                List<File> shards = new ArrayList<File>();
+                for (int start = 0; start < tiles.size(); start += lane.tilesPerShard) {
+
+                    final List<Tile> group = tiles.subList(start, Math.min(start + lane.tilesPerShard, tiles.size()));
+                    final File shard = new File(lane.shardDir, lane.getShardName(group));
+                    shards.add(shard);
+                    if (lane.resume && journal.isComplete(shard)) {
+                        lane.log.info("Reusing complete tile shard: " + shard.getName());
+                        continue;
+                    }
+                    results.add(executor.submit(new Callable<Object>() {
+
+                        @Override
+                        public Object call() throws Exception {
+                            lane.writeTileShard(group, header, shard);
+                            journal.addShard(shard, group.size());
+                            return null;
+                        }
+                    }));
+                }
+                shardsByLane.add(shards);
+            }
+            waitForAll(results);
+            return shardsByLane;
+        } finally {
+            executor.shutdownNow();
+            shutdownPools(decompressionPool, loadingExecutor);
+            for (TileShardJournal journal : journals) {
+                journal.close();
+            }
+        }
+    }
+
+    /**
+     * @param header header of the output
+     * @return header without program records, read cycles, options changing the records written to shards
+     *         and bar codes with decoding thresholds if decoding, which must be the same to resume from shards written earlier
+     */
+    private String getShardSettings(SAMFileHeader header) {
+
+        StringWriter headerText = new StringWriter();
+        new SAMTextHeaderCodec().encode(headerText, header);
+
+        StringBuilder settings = new StringBuilder();
+        for (String line : headerText.toString().split("\n")) {
+            if (!line.startsWith("@PG")) {
+                settings.append(line).append('\n');
+            }
+        }
+        for (Map.Entry<String, int[]> entry : new TreeMap<String, int[]>(this.cycleRangeByRead).entrySet()) {
+            settings.append(entry.getKey()).append('\t')
+                    .append(entry.getValue()[0]).append('-').append(entry.getValue()[1]).append('\n');
+        }
+        settings.append("pfFilter=").append(this.pfFilter)
+                .append(" includeSecondCall=").append(this.includeSecondCall)
+                .append(" tags=").append(this.barcodeSeqTagName).append(',').append(this.barcodeQualTagName)
+                .append(',').append(this.secondBarcodeSeqTagName).append(',').append(this.secondBarcodeQualTagName)
+                .append(" tilesPerShard=").append(this.tilesPerShard);
+        if (this.clusterSampler != null) {
+            settings.append(" sampleFraction=").append(this.clusterSampler.getFraction())
+                    .append(" sampleSeed=").append(this.clusterSampler.getSeed());
+        }
+        if (this.indexDecoder != null) {
+            settings.append('\n').append(this.indexDecoder.getDecodingSettings());
+        }
+        return settings.toString();
+    }
+
+    /**
+     * convert a group of tiles one after another into a shard
+     */
+    private void writeTileShard(List<Tile> group, SAMFileHeader header, File shard) throws Exception {
+
+        File partFile = new File(shard.getPath() + ".part");
+        DirectBAMFileWriter shardWriter = new ParallelSAMFileWriterFactory().makeBAMShardWriter(header, partFile);
+        try {
+            for (Tile tile : group) {
+                log.info("Writing tile " + tile.getTileNumber() + " to shard " + shard.getName());
+                tile.openBaseCallFiles();
+                try {
+                    tile.processTile(shardWriter);
+                } finally {
+                    tile.closeBaseCallFiles();
+                }
+            }
+        } finally {
+            shardWriter.close();
+        }
+        if (shard.exists() && !shard.delete()) {
+            throw new IOException("Failed to remove tile shard not complete: " + shard);
+        }
+        if (!partFile.renameTo(shard)) {
+            throw new IOException("Failed to rename tile shard " + partFile + " to " + shard);
+        }
+    }
+
+    /**
+     * @return shard file name from lane number and first and last tiles in the group
+     */
+    private String getShardName(List<Tile> group) {
+
+        int firstTile = group.get(0).getTileNumber();
+        int lastTile = group.get(group.size() - 1).getTileNumber();
+        return "s_" + this.laneNumber + "_" + firstTile + (lastTile != firstTile ? "-" + lastTile : "") + ".bgzf";
+    }
+
+    /**
+     * create all tiles of this lane, none of their files opened yet
+     *
+     * @param decompressionPool pool to inflate gzipped BCL files, null to inflate them when reading
+     * @param loadingExecutor executor to load base call files of a chunk, null to load them in the reading thread
+     * @return tiles in the order of the tile list
+     */
+    private List<Tile> createTiles(DecompressionPool decompressionPool, ExecutorService loadingExecutor) {
+
+        List<Tile> tiles = new ArrayList<Tile>(this.tileList.length);
         for(int tileNumber : this.tileList){
-            
-            log.info("Tile: " + tileNumber);
-            
+
             Tile tile = new Tile(intensityDir, baseCallDir, id, laneNumber, tileNumber,
                                  cycleRangeByRead,
                                  this.includeSecondCall, this.pfFilter,
                                  this.barcodeSeqTagName, this.barcodeQualTagName);
-            
+
             if(this.secondBarcodeSeqTagName != null && this.secondBarcodeQualTagName != null){
                 tile.setSecondBarcodeQualTagName(secondBarcodeQualTagName);
                 tile.setSecondBarcodeSeqTagName(secondBarcodeSeqTagName);
             }
-            
-            log.info("Opening all basecall files");
-            tile.openBaseCallFiles();
-            
-            log.info("Reading all base call files");
-            tile.processTile(outputSam);
-            
-            log.info("Closing base call files");
-            tile.closeBaseCallFiles();
+            tile.setMemoryMapBCL(this.memoryMapBCL);
+            tile.setClusterChunkSize(this.clusterChunkSize);
+            tile.setDecompressionPool(decompressionPool);
+            tile.setLoadingExecutor(loadingExecutor);
+            tile.setCBCLHeaders(this.cbclHeaders);
+            tile.setIndexDecoder(this.indexDecoder);
+            tile.setClusterSampler(this.clusterSampler);
+            tiles.add(tile);
         }
+        return tiles;
+    }
 
-        return true;
+    /**
+     * check the files of all tiles in parallel from their headers and sizes only,
+     * so that a missing or truncated file is found before converting any tile
+     *
+     * @param threads number of tiles checked at the same time
+     * @return problems found in all tiles in the order of the tile list, empty if none
+     * @throws Exception
+     */
+    public List<String> checkTileFiles(int threads) throws Exception {
+
+        log.info("Checking files of " + this.tileList.length + " tiles with " + threads + " threads");
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<String>>> results = new ArrayList<Future<List<String>>>(this.tileList.length);
+            for (final Tile tile : this.createTiles(null, null)) {
+                results.add(executor.submit(new Callable<List<String>>() {
+
+                    @Override
+                    public List<String> call() {
+                        return tile.checkFiles();
+                    }
+                }));
+            }
+            List<String> problems = new ArrayList<String>();
+            for (Future<List<String>> result : results) {
+                problems.addAll(result.get());
+            }
+            return problems;
+        } finally {
+            executor.shutdown();
+        }
     }
 
     /**
@@ -387,6 +893,14 @@ public class Lane {
         int [] tileListByRange = this.readTileRange();
         this.tileList = this.mergeTileList(tileListByList, tileListByRange);
 
+        if(tileList == null || tileList.length == 0){
+            int [] tileListByCBCL = this.readTileListFromCBCL();
+            if(tileListByCBCL != null){
+                log.info("Tile list from CBCL file headers");
+                this.tileList = tileListByCBCL;
+            }
+        }
+
         if(tileList == null){
             throw new RuntimeException("Problems to read tile list from config file:" + this.baseCallsConfig);
         }else{
@@ -494,6 +1008,45 @@ public class Lane {
         return baseCallProgramConfig;
     }
 
+    /**
+     * read tile numbers from the headers of CBCL files of the first cycle, surface by surface,
+     * in the order of tile blocks in each file
+     * 
+     * @return a list of tile number, null if no CBCL file
+     * @throws IOException 
+     */
+    public int[] readTileListFromCBCL() throws IOException {
+
+        File cycleDir = new File(this.baseCallDir + File.separator + "L00" + this.laneNumber + File.separator + "C1.1");
+        final String cbclFilePrefix = "L00" + this.laneNumber + "_";
+        File [] cbclFiles = cycleDir.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(cbclFilePrefix) && name.endsWith(CBCLFileReader.CBCL_FILE_SUFFIX);
+            }
+        });
+        if(cbclFiles == null || cbclFiles.length == 0){
+            return null;
+        }
+        Arrays.sort(cbclFiles);
+
+        List<Integer> tiles = new ArrayList<Integer>();
+        for(File cbclFile : cbclFiles){
+            CBCLFileReader.Header header = CBCLFileReader.readHeader(cbclFile);
+            this.cbclHeaders.put(cbclFile.getPath(), header);
+            for(int tile : header.getTileNumbers()){
+                tiles.add(tile);
+            }
+        }
+
+        int [] tileListCBCL = new int[tiles.size()];
+        for(int i = 0; i < tileListCBCL.length; i++){
+            tileListCBCL[i] = tiles.get(i);
+        }
+        return tileListCBCL;
+    }
+
     /**
      *
      * @return a list of tile number
@@ -1056,6 +1609,22 @@ public class Lane {
          return header;
     }
 
+    /**
+     * @return header of the output, with a read group for each bar code if decoding index reads
+     */
+    private SAMFileHeader generateOutputHeader(){
+
+        SAMFileHeader header = this.generateHeader();
+        if (this.indexDecoder != null) {
+            header = this.indexDecoder.decodeHeader(header, this.getIllumina2bamProgramId(), null);
+        }
+        return header;
+    }
+
+    private String getIllumina2bamProgramId(){
+        return (this.illumina2bamProgram != null) ? this.illumina2bamProgram.getId() : null;
+    }
+
     /**
      * 
      * @param firstTile first tile number
@@ -1170,6 +1739,128 @@ public class Lane {
         return instrumentProgram;
     }
 
+    /**
+     * @param memoryMapBCL map uncompressed BCL files into memory or read them through an input stream
+     */
+    public void setMemoryMapBCL(boolean memoryMapBCL) {
+        this.memoryMapBCL = memoryMapBCL;
+    }
+
+    /**
+     * @param clusterChunkSize maximum number of clusters read from base call files in one go
+     */
+    public void setClusterChunkSize(int clusterChunkSize) {
+        this.clusterChunkSize = clusterChunkSize;
+    }
+
+    /**
+     * @param decompressionThreads number of threads to inflate gzipped BCL files, 0 to inflate them when reading
+     */
+    public void setDecompressionThreads(int decompressionThreads) {
+        this.decompressionThreads = decompressionThreads;
+    }
+
+    /**
+     * @param decompressionReadAhead number of blocks inflated ahead of reading for each gzipped BCL file
+     */
+    public void setDecompressionReadAhead(int decompressionReadAhead) {
+        this.decompressionReadAhead = decompressionReadAhead;
+    }
+
+    /**
+     * @param loadingThreads number of threads to load base call files of a chunk, 1 to load them in the reading thread
+     */
+    public void setLoadingThreads(int loadingThreads) {
+        this.loadingThreads = loadingThreads;
+    }
+
+    /**
+     * @param prefetchTiles number of tiles opened on a background thread ahead of the tile being written, 0 to open each tile when writing it
+     */
+    public void setPrefetchTiles(int prefetchTiles) {
+        this.prefetchTiles = prefetchTiles;
+    }
+
+    /**
+     * @param tileThreads number of tiles converted at the same time, 1 to convert one tile after another
+     */
+    public void setTileThreads(int tileThreads) {
+        this.tileThreads = tileThreads;
+    }
+
+    /**
+     * @param tileBufferRecords maximum number of records buffered in memory when converting several tiles at the same time
+     */
+    public void setTileBufferRecords(int tileBufferRecords) {
+        this.tileBufferRecords = tileBufferRecords;
+    }
+
+    /**
+     * @param shardDir directory to write groups of tiles to as shards appended to the output, null to write tiles straight to the output
+     */
+    public void setShardDir(File shardDir) {
+        this.shardDir = shardDir;
+    }
+
+    /**
+     * @param tilesPerShard number of tiles written to each shard
+     */
+    public void setTilesPerShard(int tilesPerShard) {
+        if (tilesPerShard < 1) {
+            throw new IllegalArgumentException("Number of tiles per shard must be positive: " + tilesPerShard);
+        }
+        this.tilesPerShard = tilesPerShard;
+    }
+
+    /**
+     * @param resume reuse tile shards in the journal of the shard directory, otherwise convert all tiles again
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * @param indexDecoder decoder of the index read of this lane, null not to decode
+     */
+    public void setIndexDecoder(InlineIndexDecoder indexDecoder) {
+        this.indexDecoder = indexDecoder;
+    }
+
+    /**
+     * @param clusterSampler selection of clusters to convert in each tile, null to convert all clusters
+     */
+    public void setClusterSampler(ClusterSampler clusterSampler) {
+        this.clusterSampler = clusterSampler;
+    }
+
+    /**
+     * @return the indexDecoder
+     */
+    public InlineIndexDecoder getIndexDecoder() {
+        return indexDecoder;
+    }
+
+    /**
+     * @param splitByBarcode write a file per bar code instead of the output when decoding
+     */
+    public void setSplitByBarcode(boolean splitByBarcode) {
+        this.splitByBarcode = splitByBarcode;
+    }
+
+    /**
+     * @param secondEndOutput FASTQ file for read 2 of a paired run, null to interleave it with read 1 in the output
+     */
+    public void setSecondEndOutput(File secondEndOutput) {
+        this.secondEndOutput = secondEndOutput;
+    }
+
+    /**
+     * @param fastqCompression compression of FASTQ output, null to choose it from the file name
+     */
+    public void setFastqCompression(FastqFileWriter.Compression fastqCompression) {
+        this.fastqCompression = fastqCompression;
+    }
+
     /**
      * @param secondBarcodeSeqTagName the secondBarcodeSeqTagName to set
      */
@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import uk.ac.sanger.npg.illumina.file.reader.BCLFileReader;
+import uk.ac.sanger.npg.illumina.file.reader.BGZFBCLFileReader;
+import uk.ac.sanger.npg.illumina.file.reader.PFMask;
+import uk.ac.sanger.npg.illumina.file.reader.SCLFileReader;
+
+/**
+ * Base calls of one read for a chunk of clusters in a tile.
+ *
+ * Each cycle is read in one go for all clusters in the chunk from its own base call file,
+ * then the cycle-major data are transposed block by block into cluster-major order,
+ * so that the bases and qualities of one cluster are contiguous.
+ *
+ * With a PF mask, only PF clusters are kept in the chunk and decoded,
+ * non-PF clusters being dropped from each cycle as soon as it is read.
+ */
+public class ReadChunk {
+
+    private static final int TRANSPOSE_BLOCK_SIZE = 32;
+
+    private final int readLength;
+    private final int maxClusters;
+
+    //cycle-major buffers, one row of maxClusters for each cycle
+    private final byte[] cycleBases;
+    private final byte[] cycleQuals;
+
+    //cluster-major buffers, one row of readLength for each cluster
+    private final byte[] bases;
+    private final byte[] quals;
+
+    private int clusters = 0;
+
+    /**
+     *
+     * @param readLength number of cycles in this read
+     * @param maxClusters maximum number of clusters in a chunk
+     * @param withQualities keep qualities as well as bases or not
+     */
+    public ReadChunk(int readLength, int maxClusters, boolean withQualities) {
+
+        this.readLength  = readLength;
+        this.maxClusters = maxClusters;
+
+        this.cycleBases = new byte[readLength * maxClusters];
+        this.bases      = new byte[readLength * maxClusters];
+        if (withQualities) {
+            this.cycleQuals = new byte[readLength * maxClusters];
+            this.quals      = new byte[readLength * maxClusters];
+        } else {
+            this.cycleQuals = null;
+            this.quals      = null;
+        }
+    }
+
+    /**
+     * load bases and qualities of the next clusters from a list of BCL files, one for each cycle
+     *
+     * @param bclFileList
+     * @param numClusters number of clusters to load
+     * @throws Exception
+     */
+    public void loadBaseCalls(BCLFileReader[] bclFileList, int numClusters) throws Exception {
+
+        this.checkChunkSize(bclFileList.length, numClusters);
+        if (this.cycleQuals == null) {
+            throw new IllegalStateException("No quality buffers in this chunk to load base calls");
+        }
+
+        for (int cycle = 0; cycle < this.readLength; cycle++) {
+            this.loadCycle(bclFileList[cycle], cycle * this.maxClusters, numClusters);
+        }
+
+        transpose(this.cycleBases, this.maxClusters, this.bases, this.readLength, this.readLength, numClusters);
+        transpose(this.cycleQuals, this.maxClusters, this.quals, this.readLength, this.readLength, numClusters);
+        this.clusters = numClusters;
+    }
+
+    /**
+     * load bases and qualities of the next clusters from a list of BCL files in parallel,
+     * one task for each cycle, or for each block of a BGZF compressed BCL file
+     *
+     * @param bclFileList
+     * @param numClusters number of clusters to load
+     * @param executor threads to load cycles, null to load them in this thread
+     * @throws Exception
+     */
+    public void loadBaseCalls(BCLFileReader[] bclFileList, int numClusters, ExecutorService executor) throws Exception {
+
+        if (executor == null) {
+            this.loadBaseCalls(bclFileList, numClusters);
+            return;
+        }
+
+        this.checkChunkSize(bclFileList.length, numClusters);
+        if (this.cycleQuals == null) {
+            throw new IllegalStateException("No quality buffers in this chunk to load base calls");
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int cycle = 0; cycle < this.readLength; cycle++) {
+            final BCLFileReader fileReader = bclFileList[cycle];
+            final int offset = cycle * this.maxClusters;
+            final int count = numClusters;
+
+            if (fileReader instanceof BGZFBCLFileReader) {
+                //each part from its own block, then move the reader past the chunk
+                final BGZFBCLFileReader bgzfReader = (BGZFBCLFileReader) fileReader;
+                final int firstCluster = bgzfReader.getCurrentCluster();
+                if (firstCluster + numClusters > bgzfReader.getTotalClusters()) {
+                    throw this.lessThanExpected(bgzfReader);
+                }
+                int[] boundaries = bgzfReader.getBlockBoundaries(firstCluster, numClusters);
+                for (int part = 0; part < boundaries.length - 1; part++) {
+                    final int partStart = boundaries[part];
+                    final int partLength = boundaries[part + 1] - partStart;
+                    tasks.add(new Callable<Object>() {
+
+                        @Override
+                        public Object call() throws Exception {
+                            int partOffset = offset + partStart - firstCluster;
+                            if (bgzfReader.read(cycleBases, cycleQuals, partOffset, partStart, partLength) < partLength) {
+                                throw lessThanExpected(bgzfReader);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                bgzfReader.seek(firstCluster + numClusters);
+            } else {
+                tasks.add(new Callable<Object>() {
+
+                    @Override
+                    public Object call() throws Exception {
+                        loadCycle(fileReader, offset, count);
+                        return null;
+                    }
+                });
+            }
+        }
+
+        runTasks(tasks, executor);
+
+        transpose(this.cycleBases, this.maxClusters, this.bases, this.readLength, this.readLength, numClusters);
+        transpose(this.cycleQuals, this.maxClusters, this.quals, this.readLength, this.readLength, numClusters);
+        this.clusters = numClusters;
+    }
+
+    /**
+     * load bases and qualities of the next PF clusters from a list of BCL files,
+     * reading all clusters but decoding and keeping only PF ones,
+     * a BGZF compressed BCL file read in parallel by blocks as without a mask
+     *
+     * @param bclFileList
+     * @param numClusters number of clusters to read
+     * @param pfMask PF mask of the tile, null to keep all clusters
+     * @param firstCluster index in the tile of the first cluster to read
+     * @param executor threads to load cycles, null to load them in this thread
+     * @throws Exception
+     */
+    public void loadBaseCalls(BCLFileReader[] bclFileList, int numClusters, final PFMask pfMask, final int firstCluster, ExecutorService executor) throws Exception {
+
+        if (pfMask == null) {
+            this.loadBaseCalls(bclFileList, numClusters, executor);
+            return;
+        }
+
+        this.checkChunkSize(bclFileList.length, numClusters);
+        if (this.cycleQuals == null) {
+            throw new IllegalStateException("No quality buffers in this chunk to load base calls");
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        List<Callable<Object>> decodeTasks = new ArrayList<Callable<Object>>();
+        for (int cycle = 0; cycle < this.readLength; cycle++) {
+            final BCLFileReader fileReader = bclFileList[cycle];
+            final int offset = cycle * this.maxClusters;
+            final int count = numClusters;
+
+            Callable<Object> decodeTask = new Callable<Object>() {
+
+                @Override
+                public Object call() throws Exception {
+                    fileReader.decodePF(cycleBases, cycleQuals, offset, count, firstCluster, pfMask);
+                    return null;
+                }
+            };
+
+            if (fileReader instanceof BGZFBCLFileReader) {
+                //raw bytes of each part from its own block, decoded once all parts of the cycle are read
+                final BGZFBCLFileReader bgzfReader = (BGZFBCLFileReader) fileReader;
+                final int fileFirstCluster = bgzfReader.getCurrentCluster();
+                if (fileFirstCluster + numClusters > bgzfReader.getTotalClusters()) {
+                    throw this.lessThanExpected(bgzfReader);
+                }
+                int[] boundaries = bgzfReader.getBlockBoundaries(fileFirstCluster, numClusters);
+                for (int part = 0; part < boundaries.length - 1; part++) {
+                    final int partStart = boundaries[part];
+                    final int partLength = boundaries[part + 1] - partStart;
+                    tasks.add(new Callable<Object>() {
+
+                        @Override
+                        public Object call() throws Exception {
+                            int partOffset = offset + partStart - fileFirstCluster;
+                            if (bgzfReader.readRaw(cycleBases, partOffset, partStart, partLength) < partLength) {
+                                throw lessThanExpected(bgzfReader);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                bgzfReader.seek(fileFirstCluster + numClusters);
+                decodeTasks.add(decodeTask);
+            } else {
+                final Callable<Object> cycleDecodeTask = decodeTask;
+                tasks.add(new Callable<Object>() {
+
+                    @Override
+                    public Object call() throws Exception {
+                        loadRawCycle(fileReader, offset, count);
+                        return cycleDecodeTask.call();
+                    }
+                });
+            }
+        }
+        runTasks(tasks, executor);
+        runTasks(decodeTasks, executor);
+
+        int pfClusters = pfMask.countPf(firstCluster, firstCluster + numClusters);
+        transpose(this.cycleBases, this.maxClusters, this.bases, this.readLength, this.readLength, pfClusters);
+        transpose(this.cycleQuals, this.maxClusters, this.quals, this.readLength, this.readLength, pfClusters);
+        this.clusters = pfClusters;
+    }
+
+    /**
+     * run loading tasks in the executor, or in this thread if no executor,
+     * never returning while a task is still running, even when interrupted or a task failed,
+     * because the files read by the tasks may be closed and their mappings released straight after
+     */
+    static void runTasks(List<Callable<Object>> tasks, ExecutorService executor) throws Exception {
+
+        if (executor == null) {
+            for (Callable<Object> task : tasks) {
+                task.call();
+            }
+            return;
+        }
+        final CountDownLatch running = new CountDownLatch(tasks.size());
+        List<StartOnceTask> startOnceTasks = new ArrayList<StartOnceTask>(tasks.size());
+        for (Callable<Object> task : tasks) {
+            startOnceTasks.add(new StartOnceTask(task, running));
+        }
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(tasks.size());
+        try {
+            for (StartOnceTask task : startOnceTasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof Exception) {
+                        throw (Exception) ex.getCause();
+                    }
+                    throw ex;
+                }
+            }
+        } finally {
+            //tasks not started yet never will, the others counted down when they stop
+            for (StartOnceTask task : startOnceTasks) {
+                task.skip();
+            }
+            for (Future<Object> future : futures) {
+                future.cancel(false);
+            }
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    running.await();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * loading task run at most once, counting down when it stops or when skipped before it started
+     */
+    private static class StartOnceTask implements Callable<Object> {
+
+        private final Callable<Object> task;
+        private final CountDownLatch running;
+        private final AtomicBoolean started = new AtomicBoolean(false);
+
+        StartOnceTask(Callable<Object> task, CountDownLatch running) {
+            this.task = task;
+            this.running = running;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            if (!this.started.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                return this.task.call();
+            } finally {
+                this.running.countDown();
+            }
+        }
+
+        void skip() {
+            if (this.started.compareAndSet(false, true)) {
+                this.running.countDown();
+            }
+        }
+    }
+
+    /**
+     * read undecoded bcl bytes of the next clusters of one cycle into its row of the cycle-major base buffer
+     */
+    private void loadRawCycle(BCLFileReader fileReader, int offset, int numClusters) throws Exception {
+
+        int count = 0;
+        while (count < numClusters) {
+            int read = fileReader.read(this.cycleBases, offset + count, numClusters - count);
+            if (read == -1) {
+                throw this.lessThanExpected(fileReader);
+            }
+            count += read;
+        }
+    }
+
+    /**
+     * load bases and qualities of the next clusters of one cycle into its row of the cycle-major buffers
+     */
+    private void loadCycle(BCLFileReader fileReader, int offset, int numClusters) throws Exception {
+
+        int count = 0;
+        while (count < numClusters) {
+            int read = fileReader.read(this.cycleBases, this.cycleQuals, offset + count, numClusters - count);
+            if (read == -1) {
+                throw this.lessThanExpected(fileReader);
+            }
+            count += read;
+        }
+    }
+
+    private Exception lessThanExpected(BCLFileReader fileReader) {
+
+        return new Exception("Number of clusters read from BCL file "
+                + fileReader.getFileName()
+                + " " + fileReader.getCurrentCluster()
+                + " less than expected");
+    }
+
+    /**
+     * load second bases of the next clusters from a list of SCL files, one for each cycle
+     *
+     * @param sclFileList
+     * @param numClusters number of clusters to load
+     * @throws Exception
+     */
+    public void loadSecondCalls(SCLFileReader[] sclFileList, int numClusters) throws Exception {
+
+        this.loadSecondCalls(sclFileList, numClusters, null, 0);
+    }
+
+    /**
+     * load second bases of the next PF clusters from a list of SCL files, one for each cycle,
+     * reading all clusters but unpacking only PF ones
+     *
+     * @param sclFileList
+     * @param numClusters number of clusters to read
+     * @param pfMask PF mask of the tile, null to keep all clusters
+     * @param firstCluster index in the tile of the first cluster to read
+     * @throws Exception
+     */
+    public void loadSecondCalls(SCLFileReader[] sclFileList, int numClusters, PFMask pfMask, int firstCluster) throws Exception {
+
+        this.checkChunkSize(sclFileList.length, numClusters);
+
+        for (int cycle = 0; cycle < this.readLength; cycle++) {
+            SCLFileReader fileReader = sclFileList[cycle];
+            int offset = cycle * this.maxClusters;
+            int count = 0;
+            int kept = 0;
+            while (count < numClusters) {
+                int read;
+                if (pfMask != null) {
+                    read = fileReader.readPF(this.cycleBases, offset + kept, numClusters - count, pfMask);
+                    if (read != -1) {
+                        kept += pfMask.countPf(firstCluster + count, firstCluster + count + read);
+                    }
+                } else {
+                    read = fileReader.read(this.cycleBases, offset + count, numClusters - count);
+                }
+                if (read == -1) {
+                    throw new Exception("Number of clusters read from SCL file "
+                            + fileReader.getFileName()
+                            + " " + fileReader.getCurrentCluster()
+                            + " less than expected");
+                }
+                count += read;
+            }
+        }
+
+        int keptClusters = (pfMask != null) ? pfMask.countPf(firstCluster, firstCluster + numClusters) : numClusters;
+        transpose(this.cycleBases, this.maxClusters, this.bases, this.readLength, this.readLength, keptClusters);
+        this.clusters = keptClusters;
+    }
+
+    private void checkChunkSize(int numberOfFiles, int numClusters) {
+
+        if (numberOfFiles != this.readLength) {
+            throw new IllegalArgumentException("Number of base call files " + numberOfFiles
+                    + " does not match read length " + this.readLength);
+        }
+        if (numClusters > this.maxClusters) {
+            throw new IllegalArgumentException("Number of clusters " + numClusters
+                    + " more than chunk size " + this.maxClusters);
+        }
+    }
+
+    /**
+     * transpose a matrix in blocks small enough to stay in cache for both source and destination
+     *
+     * @param src source matrix, rows by columns
+     * @param srcRowLength distance between the starts of two rows in source
+     * @param dst destination matrix, columns by rows
+     * @param dstRowLength distance between the starts of two rows in destination
+     * @param rows number of rows in source
+     * @param columns number of columns in source
+     */
+    public static void transpose(byte[] src, int srcRowLength, byte[] dst, int dstRowLength, int rows, int columns) {
+
+        if (src == null) {
+            return;
+        }
+
+        for (int rowBlock = 0; rowBlock < rows; rowBlock += TRANSPOSE_BLOCK_SIZE) {
+            int rowEnd = Math.min(rowBlock + TRANSPOSE_BLOCK_SIZE, rows);
+            for (int columnBlock = 0; columnBlock < columns; columnBlock += TRANSPOSE_BLOCK_SIZE) {
+                int columnEnd = Math.min(columnBlock + TRANSPOSE_BLOCK_SIZE, columns);
+                for (int row = rowBlock; row < rowEnd; row++) {
+                    int srcOffset = row * srcRowLength;
+                    for (int column = columnBlock; column < columnEnd; column++) {
+                        dst[column * dstRowLength + row] = src[srcOffset + column];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @param cluster index of the cluster in this chunk
+     * @return bases and qualities of a cluster as byte arrays
+     */
+    public byte[][] getBaseQuals(int cluster) {
+
+        this.checkCluster(cluster);
+
+        int start = cluster * this.readLength;
+        int end = start + this.readLength;
+
+        byte[][] clusterBaseQuals = new byte[2][];
+        clusterBaseQuals[0] = Arrays.copyOfRange(this.bases, start, end);
+        clusterBaseQuals[1] = (this.quals != null) ? Arrays.copyOfRange(this.quals, start, end) : null;
+        return clusterBaseQuals;
+    }
+
+    /**
+     *
+     * @param cluster index of the cluster in this chunk
+     * @return bases of a cluster as a string
+     */
+    public String getBasesAsString(int cluster) {
+
+        this.checkCluster(cluster);
+
+        int start = cluster * this.readLength;
+        char[] clusterBases = new char[this.readLength];
+        for (int cycle = 0; cycle < this.readLength; cycle++) {
+            clusterBases[cycle] = (char) this.bases[start + cycle];
+        }
+        return new String(clusterBases);
+    }
+
+    /**
+     *
+     * @param cluster index of the cluster in this chunk
+     * @return offset of the bases and qualities of a cluster in the chunk buffers
+     */
+    public int getClusterOffset(int cluster) {
+
+        this.checkCluster(cluster);
+        return cluster * this.readLength;
+    }
+
+    /**
+     * @return bases of all clusters in the chunk, one row of readLength for each cluster
+     */
+    public byte[] getBases() {
+        return bases;
+    }
+
+    /**
+     * @return qualities of all clusters in the chunk, one row of readLength for each cluster, null if no qualities
+     */
+    public byte[] getQualities() {
+        return quals;
+    }
+
+    private void checkCluster(int cluster) {
+
+        if (cluster < 0 || cluster >= this.clusters) {
+            throw new IndexOutOfBoundsException("The required cluster " + cluster
+                    + " out of range of this chunk: " + this.clusters);
+        }
+    }
+
+    /**
+     * @return the number of clusters loaded
+     */
+    public int getClusters() {
+        return clusters;
+    }
+
+    /**
+     * @return the readLength
+     */
+    public int getReadLength() {
+        return readLength;
+    }
+}
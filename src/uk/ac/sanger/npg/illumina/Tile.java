@@ -19,14 +19,22 @@
 package uk.ac.sanger.npg.illumina;
 
 import java.io.File;
+import java.nio.charset.Charset;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
 import net.sf.picard.util.Log;
 import net.sf.samtools.*;
+import uk.ac.sanger.npg.bam.util.BAMRecordEncoder;
 import uk.ac.sanger.npg.bam.util.BamUtils;
+import uk.ac.sanger.npg.bam.util.DirectBAMFileWriter;
 import uk.ac.sanger.npg.illumina.file.reader.*;
+import uk.ac.sanger.npg.picard.IndexDecoder;
 
 /**
  * Process an illumina tile
@@ -37,6 +45,20 @@ public class Tile {
     
     private final Log log = Log.getInstance(Tile.class);
     
+    /**
+     * default maximum number of clusters read from base call files in one go
+     */
+    public static final int DEFAULT_CLUSTER_CHUNK_SIZE = 32768;
+
+    //header sizes to check file sizes against numbers of clusters
+    private static final int FILTER_HEADER_SIZE = 12;
+    private static final int OLD_FILTER_HEADER_SIZE = 4;
+    private static final int LOCS_HEADER_SIZE = 12;
+    private static final int BCL_HEADER_SIZE = 4;
+    private static final int SCL_HEADER_SIZE = 4;
+
+    private static final Charset READ_NAME_CHARSET = Charset.forName("UTF-8");
+    
     //fields must be given
     private final String intensityDir;
     private final String baseCallDir;
@@ -55,6 +77,19 @@ public class Tile {
 
     private final boolean includeSecondCall;
     private final boolean pfFilter;
+    
+    private boolean memoryMapBCL = true;
+    private int clusterChunkSize = DEFAULT_CLUSTER_CHUNK_SIZE;
+    private DecompressionPool decompressionPool = null;
+    private ExecutorService loadingExecutor = null;
+    private Map<String, CBCLFileReader.Header> cbclHeaders = new HashMap<String, CBCLFileReader.Header>();
+    private PFMask pfMask = null;
+    private InlineIndexDecoder indexDecoder = null;
+    private ClusterSampler clusterSampler = null;
+
+    //read name prefix id:lane:tile: followed by the coordinates of the current cluster
+    private byte[] readNameBuffer;
+    private final int readNamePrefixLength;
 
     //temp fields    
     private final String laneSubDir;
@@ -102,6 +137,10 @@ public class Tile {
         this.laneNumber = laneNumber;
         this.tileNumber = tileNumber;
         this.intensityDir = intensityDir;
+
+        byte[] readNamePrefix = (id + ":" + laneNumber + ":" + tileNumber + ":").getBytes(READ_NAME_CHARSET);
+        this.readNamePrefixLength = readNamePrefix.length;
+        this.readNameBuffer = Arrays.copyOf(readNamePrefix, readNamePrefix.length + 2 * 11 + 1);
         this.baseCallDir  = baseCallDir;
         
         this.barcodeSeqTagName  = barcodeSeqTagName;
@@ -176,9 +215,12 @@ public class Tile {
         if(this.dualIndexed && (this.secondBarcodeQualTagName == null || this.secondBarcodeSeqTagName == null)){
             throw new RuntimeException("Dual index run but tag names for second barcode not given.");
         }
+
+        if(this.indexDecoder != null && !this.indexed){
+            throw new RuntimeException("Barcodes given to decode but no index read in this run.");
+        }
         
-        log.info("Open filter file: " + this.getFilterFileName());
-        FilterFileReader filterFileReader = new FilterFileReader(this.getFilterFileName());
+        PFMask mask = this.getPFMask();
         
         File clocsFile = new File( this.getcLocsFileName() );
         File locsFile = new File( this.getLocsFileName() );
@@ -209,7 +251,7 @@ public class Tile {
 
         SAMFileHeader samFileHeader = outputSam.getFileHeader();
 
-        int totalClusterInTile = filterFileReader.getTotalClusters();
+        int totalClusterInTile = mask.getTotalClusters();
         //log.info("Total cluster from filter file: " + totalClusterInTile);
 
         //the number of cluster in each bcl or scl checked here
@@ -218,78 +260,175 @@ public class Tile {
             this.checkSCLClusterNumber(totalClusterInTile);
         }
 
-        log.info("Reading cluster one by one");
+        log.info("Reading clusters in chunks of " + this.clusterChunkSize);
+        int chunkSize = Math.min(this.clusterChunkSize, Math.max(totalClusterInTile, 1));
+        HashMap<String, ReadChunk> baseCallChunkByRead = this.createReadChunks(chunkSize, true);
+        HashMap<String, ReadChunk> secondCallChunkByRead = null;
+        if(this.includeSecondCall){
+            secondCallChunkByRead = this.createReadChunks(chunkSize, false);
+        }
+
+        //with PF filter on, only PF clusters are decoded into the chunks
+        PFMask chunkMask = this.pfFilter ? mask : null;
+        //and only clusters selected when sampling
+        if (this.clusterSampler != null) {
+            PFMask sampleMask = this.clusterSampler.select(this.tileNumber, totalClusterInTile);
+            chunkMask = (chunkMask != null) ? chunkMask.and(sampleMask) : sampleMask;
+            log.info(chunkMask.getPfClusters() + " clusters sampled in this tile out of total " + totalClusterInTile);
+        }
+
+        //BAM records encoded straight from the chunk buffers if the writer takes them
+        DirectBAMFileWriter directWriter = null;
+        BarcodeSplitWriter splitWriter = null;
+        if (outputSam instanceof DirectBAMFileWriter && ((DirectBAMFileWriter) outputSam).isWritingInOrder()) {
+            directWriter = (DirectBAMFileWriter) outputSam;
+        } else if (outputSam instanceof BarcodeSplitWriter && ((BarcodeSplitWriter) outputSam).isWritingInOrder()) {
+            splitWriter = (BarcodeSplitWriter) outputSam;
+        }
+        BAMRecordEncoder encoder = (directWriter != null || splitWriter != null) ? new BAMRecordEncoder() : null;
+        //FASTQ written straight from the chunk buffers as well
+        FastqFileWriter fastqWriter = (outputSam instanceof FastqFileWriter) ? (FastqFileWriter) outputSam : null;
+        String rgId = getReadGroupId(samFileHeader);
+        IndexDecoder tileDecoder = (this.indexDecoder != null) ? this.indexDecoder.newTileDecoder() : null;
+        ReadChunk secondCallChunk1 = this.includeSecondCall ? secondCallChunkByRead.get("read1") : null;
+        ReadChunk secondCallChunk2 = this.includeSecondCall ? secondCallChunkByRead.get("read2") : null;
+
+        int [] xy = new int[2];
         int clusterIndex = 0;
-        while (filterFileReader.hasNext()) {
+        while (clusterIndex < totalClusterInTile) {
 
-            clusterIndex++;
+            int chunkClusters = Math.min(chunkSize, totalClusterInTile - clusterIndex);
+            int chunkEnd = clusterIndex + chunkClusters;
 
-            //position
-            PositionFileReader.Position pos = positionReader.next();
+            //load all cycles of each read for this chunk
+            for (Map.Entry<String, ReadChunk> entry : baseCallChunkByRead.entrySet()) {
+                entry.getValue().loadBaseCalls(this.getBclFileReaderListByRead().get(entry.getKey()), chunkClusters, chunkMask, clusterIndex, this.loadingExecutor);
+            }
+            if(this.includeSecondCall){
+                for (Map.Entry<String, ReadChunk> entry : secondCallChunkByRead.entrySet()) {
+                    entry.getValue().loadSecondCalls(this.getSclFileReaderListByRead().get(entry.getKey()), chunkClusters, chunkMask, clusterIndex);
+                }
+            }
 
-            String readName = this.getReadName(pos.toArray());
+            int cluster = 0;
+            while (clusterIndex < chunkEnd) {
+
+                //skip positions of a run of non-PF or not sampled clusters
+                if (chunkMask != null) {
+                    int nextPf = Math.min(chunkMask.nextPf(clusterIndex), chunkEnd);
+                    if (nextPf > clusterIndex) {
+                        positionReader.skip(nextPf - clusterIndex);
+                        clusterIndex = nextPf;
+                        continue;
+                    }
+                }
 
-            //filtered
-            int filtered = (Integer) filterFileReader.next();
+                //filtered
+                int filtered = mask.isPf(clusterIndex) ? 1 : 0;
 
-            //read 1
-            byte [][] basesQuals1 = this.getNextClusterBaseQuals("read1");
+                clusterIndex++;
 
-            //read 2
-            byte [][] basesQuals2 = null;
-            if(this.isPairedRead()){
-                basesQuals2 = this.getNextClusterBaseQuals("read2");
-            }
-            
-            //index read
-            byte [][] basesQualsIndex = null;
-            if(this.isIndexed()){
-                 basesQualsIndex = this.getNextClusterBaseQuals("readIndex");
-            }
-            
-            //second index read
-            byte [][] basesQualsIndex2 = null;
-            if( this.dualIndexed ){
-                 basesQualsIndex2 = this.getNextClusterBaseQuals("readIndex2");
-            }
+                //position
+                if (!positionReader.nextXY(xy)) {
+                    throw new Exception("No more cluster in position file " + positionReader.getFileName()
+                            + " after " + positionReader.getCurrentTotalClusters() + " clusters");
+                }
 
-            //second call
-            String secondBases1 = null;
-            String secondBases2 = null;
-            if(this.includeSecondCall){
-                secondBases1 = this.getNextClusterSecondBases("read1");
+                int readNameLength = this.formatReadName(xy[0], xy[1]);
+
+                //bar code name appended to read name and read group id as BamIndexDecoder
+                String barcode = null;
+                String recordRgId = rgId;
+                if (tileDecoder != null) {
+                    barcode = this.indexDecoder.decode(tileDecoder, baseCallChunkByRead.get("readIndex"), cluster, filtered == 1);
+                    readNameLength = this.appendToReadName(readNameLength, this.indexDecoder.getReadNameSuffix(barcode));
+                    recordRgId = this.indexDecoder.getReadGroupId(barcode);
+                }
+
+                if (fastqWriter != null) {
+                    fastqWriter.addRead(this.readNameBuffer, readNameLength, this.pairedRead ? 1 : 0, clusterIndex,
+                            baseCallChunkByRead.get("read1"), cluster,
+                            baseCallChunkByRead.get("readIndex"), baseCallChunkByRead.get("readIndex2"));
+                    if(this.pairedRead){
+                        fastqWriter.addRead(this.readNameBuffer, readNameLength, 2, clusterIndex,
+                                baseCallChunkByRead.get("read2"), cluster, null, null);
+                    }
+                    cluster++;
+                    continue;
+                }
+
+                if (encoder != null) {
+                    DirectBAMFileWriter recordWriter = (splitWriter != null) ? splitWriter.getDirectWriter(barcode) : directWriter;
+                    this.encodeRecord(encoder, readNameLength, clusterIndex, recordRgId, filtered, cluster,
+                            baseCallChunkByRead.get("read1"), secondCallChunk1,
+                            baseCallChunkByRead.get("readIndex"), baseCallChunkByRead.get("readIndex2"), true);
+                    recordWriter.addEncodedRecord(encoder);
+                    if(this.pairedRead){
+                        this.encodeRecord(encoder, readNameLength, clusterIndex, recordRgId, filtered, cluster,
+                                baseCallChunkByRead.get("read2"), secondCallChunk2, null, null, false);
+                        recordWriter.addEncodedRecord(encoder);
+                    }
+                    cluster++;
+                    continue;
+                }
+
+                String readName = new String(this.readNameBuffer, 0, readNameLength, READ_NAME_CHARSET);
+
+                //read 1
+                byte [][] basesQuals1 = baseCallChunkByRead.get("read1").getBaseQuals(cluster);
+
+                //read 2
+                byte [][] basesQuals2 = null;
                 if(this.isPairedRead()){
-                   secondBases2 = this.getNextClusterSecondBases("read2");
+                    basesQuals2 = baseCallChunkByRead.get("read2").getBaseQuals(cluster);
+                }
+
+                //index read
+                byte [][] basesQualsIndex = null;
+                if(this.isIndexed()){
+                     basesQualsIndex = baseCallChunkByRead.get("readIndex").getBaseQuals(cluster);
                 }
-            }
 
+                //second index read
+                byte [][] basesQualsIndex2 = null;
+                if( this.dualIndexed ){
+                     basesQualsIndex2 = baseCallChunkByRead.get("readIndex2").getBaseQuals(cluster);
+                }
+
+                //second call
+                String secondBases1 = null;
+                String secondBases2 = null;
+                if(this.includeSecondCall){
+                    secondBases1 = secondCallChunkByRead.get("read1").getBasesAsString(cluster);
+                    if(this.isPairedRead()){
+                       secondBases2 = secondCallChunkByRead.get("read2").getBasesAsString(cluster);
+                    }
+                }
 
-            //write to bam
-            if(!(this.pfFilter && filtered == 0)){
+
+                //write to bam, non-PF and not sampled clusters already skipped
                 SAMRecord recordRead1 = this.getSAMRecord(samFileHeader, readName, clusterIndex, basesQuals1, secondBases1, basesQualsIndex, basesQualsIndex2, filtered, pairedRead, true);
+                if (barcode != null) {
+                    recordRead1.setAttribute("RG", recordRgId);
+                }
                 this.writeToBam(outputSam, recordRead1);
                 if(this.pairedRead){
                     SAMRecord recordRead2 = this.getSAMRecord(samFileHeader, readName, clusterIndex, basesQuals2, secondBases2, null, null, filtered, pairedRead, false);
+                    if (barcode != null) {
+                        recordRead2.setAttribute("RG", recordRgId);
+                    }
                     this.writeToBam(outputSam, recordRead2);
                 }
-            }
-        }
-
-        //check number of clusters from filter header is correct
 
-        if(totalClusterInTile != filterFileReader.getCurrentCluster()){
-            throw new Exception("Number of clusters in filter file "
-                    + filterFileReader.getFileName()
-                    + " is incorrect");
+                cluster++;
+            }
         }
-        log.debug("Correct number of clusters processed in filter file: " + filterFileReader.getCurrentCluster());
-       
 
         //check number of clusters from filter file match the cluster nubmer in clocs file
         int totalCurrentClusters = positionReader.getCurrentTotalClusters();
         if (positionReader.getCurrentTotalClusters() != totalClusterInTile) {
             throw new Exception("Number of clusters in clocs file does not match filter file "
-                    + filterFileReader.getTotalClusters() + " "
+                    + totalClusterInTile + " "
                     + positionReader.getCurrentTotalClusters());
         }
 
@@ -299,11 +438,94 @@ public class Tile {
             log.debug("There may be more clusters in clocs file");
         }
 
-        log.info(filterFileReader.getCurrentPFClusters() + " PF clusters in this tile out of total " + totalClusterInTile);
+        log.info(mask.getPfClusters() + " PF clusters in this tile out of total " + totalClusterInTile);
+
+        if (tileDecoder != null) {
+            this.indexDecoder.addTileMetrics(tileDecoder);
+        }
 
-        //close clocs or pos,  and filter file
+        //close clocs or pos file
         positionReader.close();
-        filterFileReader.close();
+    }
+    
+    /**
+     * count the sequences of the index reads of all clusters in this tile, only PF clusters if PF filter on,
+     * with only the base call files of index reads opened, decoding them as well if a decoder given
+     *
+     * @return census of the index read sequences of this tile
+     * @throws Exception
+     */
+    public BarcodeCensus countIndexReads() throws Exception {
+
+        if(!this.indexed){
+            throw new RuntimeException("No index read in this run to count.");
+        }
+
+        PFMask mask = this.getPFMask();
+        int totalClusterInTile = mask.getTotalClusters();
+        this.checkBCLClusterNumber(totalClusterInTile);
+
+        int chunkSize = Math.min(this.clusterChunkSize, Math.max(totalClusterInTile, 1));
+        int[] indexCycleRange = this.cycleRangeByRead.get("readIndex");
+        ReadChunk indexChunk = new ReadChunk(indexCycleRange[1] - indexCycleRange[0] + 1, chunkSize, true);
+        ReadChunk index2Chunk = null;
+        if(this.dualIndexed){
+            int[] index2CycleRange = this.cycleRangeByRead.get("readIndex2");
+            index2Chunk = new ReadChunk(index2CycleRange[1] - index2CycleRange[0] + 1, chunkSize, true);
+        }
+
+        PFMask chunkMask = this.pfFilter ? mask : null;
+        IndexDecoder tileDecoder = (this.indexDecoder != null) ? this.indexDecoder.newTileDecoder() : null;
+        BarcodeCensus census = new BarcodeCensus();
+
+        int clusterIndex = 0;
+        while (clusterIndex < totalClusterInTile) {
+
+            int chunkClusters = Math.min(chunkSize, totalClusterInTile - clusterIndex);
+            indexChunk.loadBaseCalls(this.bclFileReaderListByRead.get("readIndex"), chunkClusters, chunkMask, clusterIndex, this.loadingExecutor);
+            if(index2Chunk != null){
+                index2Chunk.loadBaseCalls(this.bclFileReaderListByRead.get("readIndex2"), chunkClusters, chunkMask, clusterIndex, this.loadingExecutor);
+            }
+
+            //only PF clusters loaded with PF filter on
+            for (int cluster = 0; cluster < indexChunk.getClusters(); cluster++) {
+                boolean isPf = (chunkMask != null) || mask.isPf(clusterIndex + cluster);
+                census.add(indexChunk, index2Chunk, cluster, isPf);
+                if (tileDecoder != null) {
+                    this.indexDecoder.decode(tileDecoder, indexChunk, cluster, isPf);
+                }
+            }
+            clusterIndex += chunkClusters;
+        }
+
+        if (tileDecoder != null) {
+            this.indexDecoder.addTileMetrics(tileDecoder);
+        }
+        log.info(census.getSequenceCount() + " distinct index read sequences in tile " + this.tileNumber);
+        return census;
+    }
+
+    /**
+     * create chunk buffers for each read, second calls only needed for read 1 and read 2
+     * 
+     * @param chunkSize maximum number of clusters in a chunk
+     * @param firstCall chunks for base calls with qualities, otherwise for second base calls
+     * @return a chunk for each read
+     */
+    private HashMap<String, ReadChunk> createReadChunks(int chunkSize, boolean firstCall) {
+
+        HashMap<String, ReadChunk> chunkByRead = new HashMap<String, ReadChunk>(this.cycleRangeByRead.size());
+        for (Map.Entry<String, int[]> entry : this.cycleRangeByRead.entrySet()) {
+
+            String read = entry.getKey();
+            if (!firstCall && !read.equals("read1") && !read.equals("read2")) {
+                continue;
+            }
+            int[] cycleRange = entry.getValue();
+            int readLength = cycleRange[1] - cycleRange[0] + 1;
+            chunkByRead.put(read, new ReadChunk(readLength, chunkSize, firstCall));
+        }
+        return chunkByRead;
     }
     
     /**
@@ -367,6 +589,189 @@ public class Tile {
         return true;
     }
     
+    /**
+     * check all files of this tile from their headers and sizes only, without decoding any base call:
+     * the number of clusters in the position file and in the BCL and SCL file of each cycle against the filter file,
+     * and the size of each uncompressed file against its number of clusters
+     *
+     * @return problems found in this tile, empty if none
+     */
+    public List<String> checkFiles() {
+
+        List<String> problems = new ArrayList<String>();
+
+        int expectedClusters = -1;
+        if (this.filterFileName == null) {
+            problems.add("No filter file found for tile " + this.tileNumber);
+        } else {
+            try {
+                FilterFileReader filterFileReader = new FilterFileReader(this.filterFileName);
+                expectedClusters = filterFileReader.getTotalClusters();
+                filterFileReader.close();
+                long headerSize = new File(this.filterFileName).length() - expectedClusters;
+                if (headerSize != FILTER_HEADER_SIZE && headerSize != OLD_FILTER_HEADER_SIZE) {
+                    problems.add("Size of filter file " + this.filterFileName + " "
+                            + new File(this.filterFileName).length() + " not as expected for "
+                            + expectedClusters + " clusters");
+                }
+            } catch (Exception ex) {
+                problems.add("Problem to read filter file " + this.filterFileName + ": " + ex);
+            }
+        }
+
+        this.checkPositionFile(expectedClusters, problems);
+
+        TreeSet<Integer> cycles = new TreeSet<Integer>();
+        for (int[] cycleRange : this.cycleRangeByRead.values()) {
+            for (int cycle = cycleRange[0]; cycle <= cycleRange[1]; cycle++) {
+                cycles.add(cycle);
+            }
+        }
+        for (int cycle : cycles) {
+            this.checkBCLFile(cycle, expectedClusters, problems);
+            if (this.includeSecondCall) {
+                this.checkSCLFile(cycle, expectedClusters, problems);
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * check the number of clusters in the clocs, locs or pos file, counting clusters in each clocs block
+     */
+    private void checkPositionFile(int expectedClusters, List<String> problems) {
+
+        String positionFileName = null;
+        try {
+            int clusters;
+            if (new File(this.cLocsFileName).exists()) {
+                positionFileName = this.cLocsFileName;
+                CLocsFileReader cLocsFileReader = new CLocsFileReader(positionFileName);
+                try {
+                    clusters = cLocsFileReader.skip(Integer.MAX_VALUE);
+                } finally {
+                    cLocsFileReader.close();
+                }
+            } else if (new File(this.locsFileName).exists()) {
+                positionFileName = this.locsFileName;
+                LocsFileReader locsFileReader = new LocsFileReader(positionFileName);
+                clusters = locsFileReader.getTotalCluster();
+                locsFileReader.close();
+                this.checkFileSize(positionFileName, LOCS_HEADER_SIZE + 8L * clusters, problems);
+            } else if (new File(this.posFileName).exists()) {
+                positionFileName = this.posFileName;
+                PosFileReader posFileReader = new PosFileReader(positionFileName);
+                clusters = posFileReader.getTotalCluster();
+                posFileReader.close();
+            } else {
+                problems.add("clocs, locs and pos files are not available for tile " + this.tileNumber + ": "
+                        + this.cLocsFileName + " " + this.locsFileName + " " + this.posFileName);
+                return;
+            }
+            this.checkClusterNumber("position", positionFileName, clusters, expectedClusters, problems);
+        } catch (Exception ex) {
+            problems.add("Problem to read position file " + positionFileName + ": " + ex);
+        }
+    }
+
+    /**
+     * check the number of clusters of this tile in the bcl or cbcl file of a cycle,
+     * and the file size if uncompressed or BGZF compressed
+     */
+    private void checkBCLFile(int cycle, int expectedClusters, List<String> problems) {
+
+        String bclFileName = this.getBaseCallFileName(cycle, true);
+        String cbclFileName = this.getCBCLFileName(cycle);
+        String bgzfFileName = bclFileName + BGZFBCLFileReader.BGZF_FILE_SUFFIX;
+        try {
+            if (!this.bclFileExists(bclFileName) && new File(cbclFileName).isFile()) {
+                File cbclFile = new File(cbclFileName);
+                CBCLFileReader.Header header = this.cbclHeaders.get(cbclFile.getPath());
+                if (header == null) {
+                    header = CBCLFileReader.readHeader(cbclFile);
+                    this.cbclHeaders.put(cbclFile.getPath(), header);
+                }
+                if (header.getTileIndex(this.tileNumber) < 0) {
+                    problems.add("Tile " + this.tileNumber + " not in cbcl file " + cbclFileName);
+                } else if (header.isPfExcluded()) {
+                    this.checkClusterNumber("cbcl", cbclFileName, header.getClusterCount(this.tileNumber),
+                            (expectedClusters < 0) ? -1 : this.getPFMask().getPfClusters(), problems);
+                } else {
+                    this.checkClusterNumber("cbcl", cbclFileName, header.getClusterCount(this.tileNumber),
+                            expectedClusters, problems);
+                }
+            } else if (new File(bclFileName).isFile()) {
+                int clusters = readClusterNumber(bclFileName);
+                this.checkClusterNumber("BCL", bclFileName, clusters, expectedClusters, problems);
+                this.checkFileSize(bclFileName, BCL_HEADER_SIZE + (long) clusters, problems);
+            } else if (new File(bgzfFileName).isFile()) {
+                BGZFBlockIndex blockIndex = BGZFBlockIndex.getIndex(new File(bgzfFileName));
+                BGZFBCLFileReader bgzfFileReader = new BGZFBCLFileReader(bgzfFileName, blockIndex);
+                int clusters = bgzfFileReader.getTotalClusters();
+                bgzfFileReader.close();
+                this.checkClusterNumber("BCL", bgzfFileName, clusters, expectedClusters, problems);
+                if (blockIndex.getUncompressedLength() != BCL_HEADER_SIZE + (long) clusters) {
+                    problems.add("Inflated size of BCL file " + bgzfFileName + " " + blockIndex.getUncompressedLength()
+                            + " not as expected: " + (BCL_HEADER_SIZE + (long) clusters));
+                }
+            } else if (new File(bclFileName + ".gz").isFile()) {
+                //size of a gzipped file only known after inflating it
+                int clusters = readClusterNumber(bclFileName + ".gz");
+                this.checkClusterNumber("BCL", bclFileName + ".gz", clusters, expectedClusters, problems);
+            } else {
+                problems.add("No BCL or cbcl file for cycle " + cycle + " of tile " + this.tileNumber + ": " + bclFileName);
+            }
+        } catch (Exception ex) {
+            problems.add("Problem to read BCL file of cycle " + cycle + " of tile " + this.tileNumber + ": " + ex);
+        }
+    }
+
+    /**
+     * check the number of clusters in the scl file of a cycle, and the file size if uncompressed
+     */
+    private void checkSCLFile(int cycle, int expectedClusters, List<String> problems) {
+
+        String sclFileName = this.getBaseCallFileName(cycle, false);
+        try {
+            int clusters = readClusterNumber(sclFileName);
+            this.checkClusterNumber("SCL", sclFileName, clusters, expectedClusters, problems);
+            if (new File(sclFileName).isFile()) {
+                this.checkFileSize(sclFileName, SCL_HEADER_SIZE + (clusters + 3L) / 4, problems);
+            }
+        } catch (Exception ex) {
+            problems.add("Problem to read SCL file " + sclFileName + ": " + ex);
+        }
+    }
+
+    private void checkClusterNumber(String fileType, String fileName, int clusters, int expectedClusters, List<String> problems) {
+
+        if (expectedClusters >= 0 && clusters != expectedClusters) {
+            problems.add("Number of Clusters in " + fileType + " file " + fileName + " "
+                    + clusters + " not as expected:" + expectedClusters);
+        }
+    }
+
+    private void checkFileSize(String fileName, long expectedSize, List<String> problems) {
+
+        long size = new File(fileName).length();
+        if (size != expectedSize) {
+            problems.add("Size of file " + fileName + " " + size + " not as expected: " + expectedSize);
+        }
+    }
+
+    /**
+     * read the number of clusters from the first four bytes of a bcl or scl file, gzipped or not
+     */
+    private static int readClusterNumber(String fileName) throws Exception {
+
+        IlluminaFileReader fileReader = new IlluminaFileReader(fileName, null, 8);
+        try {
+            return fileReader.readFourBytes();
+        } finally {
+            fileReader.close();
+        }
+    }
+
     /**
      * open all BCL or SCL files
      *
@@ -393,6 +798,43 @@ public class Tile {
 
     }
 
+    /**
+     * open BCL files of index reads only
+     *
+     * @throws Exception
+     */
+    public void openIndexBaseCallFiles() throws Exception {
+
+        for (String read : new String[] {"readIndex", "readIndex2"}) {
+
+            int[] cycleRange = this.cycleRangeByRead.get(read);
+            if (cycleRange != null) {
+                log.info("Opening BCL Files for " + read);
+                this.getBclFileReaderListByRead().put(read, this.openBCLFileByCycles(cycleRange));
+            }
+        }
+    }
+
+    /**
+     * open all base call files and load the PF mask, so that the tile is ready to be processed,
+     * memory mapped BCL files read into memory,
+     * gzipped BCL files start to be inflated if a decompression pool is given
+     *
+     * @throws Exception
+     */
+    public void prefetch() throws Exception {
+
+        this.openBaseCallFiles();
+        for (BCLFileReader[] bclFileReaderList : this.getBclFileReaderListByRead().values()) {
+            for (BCLFileReader bclFileReader : bclFileReaderList) {
+                if (bclFileReader instanceof MappedBCLFileReader) {
+                    ((MappedBCLFileReader) bclFileReader).load();
+                }
+            }
+        }
+        this.getPFMask();
+    }
+
     /**
      *
      * open a list of BCL file for a range of cycles
@@ -409,12 +851,103 @@ public class Tile {
 
         int index = 0;
         for (int cycle = start; cycle <= end; cycle++) {
-            bclFileReaderList[index] = new BCLFileReader(this.getBaseCallFileName(cycle, true));
+            String bclFileName = this.getBaseCallFileName(cycle, true);
+            String cbclFileName = this.getCBCLFileName(cycle);
+            if (!this.bclFileExists(bclFileName) && new File(cbclFileName).isFile()) {
+                bclFileReaderList[index] = this.openCBCLFile(cbclFileName);
+            } else {
+                bclFileReaderList[index] = this.openBCLFile(bclFileName);
+            }
             index++;
         }
         return bclFileReaderList;
     }
 
+    /**
+     * check a BCL file exists, uncompressed or compressed
+     * 
+     * @param bclFileName
+     * @return true if any BCL file for this name
+     */
+    private boolean bclFileExists(String bclFileName) {
+
+        return new File(bclFileName).isFile()
+                || new File(bclFileName + ".gz").isFile()
+                || new File(bclFileName + BGZFBCLFileReader.BGZF_FILE_SUFFIX).isFile();
+    }
+
+    /**
+     * open this tile in a CBCL file, reading the header of each CBCL file only once
+     * and the filter file only if non-PF clusters are excluded from the CBCL file
+     * 
+     * @param cbclFileName
+     * @return a BCLFileReader for this tile
+     * @throws Exception 
+     */
+    private BCLFileReader openCBCLFile(String cbclFileName) throws Exception {
+
+        File cbclFile = new File(cbclFileName);
+        CBCLFileReader.Header header = this.cbclHeaders.get(cbclFile.getPath());
+        if (header == null) {
+            header = CBCLFileReader.readHeader(cbclFile);
+            this.cbclHeaders.put(cbclFile.getPath(), header);
+        }
+
+        PFMask mask = header.isPfExcluded() ? this.getPFMask() : null;
+        return new CBCLFileReader(cbclFileName, this.tileNumber, mask, header);
+    }
+
+    /**
+     * load the PF flags of all clusters in this tile from the filter file once,
+     * and share them with all stages needing them
+     *
+     * @return PF mask of this tile
+     * @throws Exception
+     */
+    public PFMask getPFMask() throws Exception {
+
+        if (this.pfMask == null) {
+            log.info("Open filter file: " + this.getFilterFileName());
+            FilterFileReader filterFileReader = new FilterFileReader(this.getFilterFileName());
+            try {
+                PFMask mask = filterFileReader.readPFMask();
+                //check number of clusters from filter header is correct
+                if (mask.getTotalClusters() != filterFileReader.getTotalClusters()) {
+                    throw new Exception("Number of clusters in filter file "
+                            + filterFileReader.getFileName()
+                            + " is incorrect");
+                }
+                log.debug("Correct number of clusters read in filter file: " + mask.getTotalClusters());
+                this.pfMask = mask;
+            } finally {
+                filterFileReader.close();
+            }
+        }
+        return this.pfMask;
+    }
+
+    /**
+     * open a BCL file, mapping it into memory if it is not compressed and memory mapping not switched off,
+     * with block random access if BGZF compressed,
+     * inflating it in the decompression pool if gzipped and a pool given
+     * 
+     * @param bclFileName
+     * @return a BCLFileReader
+     * @throws Exception 
+     */
+    private BCLFileReader openBCLFile(String bclFileName) throws Exception {
+        
+        boolean uncompressed = new File(bclFileName).isFile();
+        if (this.memoryMapBCL && uncompressed) {
+            return new MappedBCLFileReader(bclFileName);
+        }
+        String bgzfFileName = bclFileName + BGZFBCLFileReader.BGZF_FILE_SUFFIX;
+        if (!uncompressed && new File(bgzfFileName).isFile()) {
+            return new BGZFBCLFileReader(bgzfFileName);
+        }
+        return new BCLFileReader(bclFileName, this.decompressionPool);
+    }
+
     /**
      * open a list of SCL file for a range of cycles
      *
@@ -563,21 +1096,7 @@ public class Tile {
         samRecord.setReadBases(baseQuals[0]);
         samRecord.setBaseQualities(baseQuals[1]);
         samRecord.setReadUnmappedFlag(true);
-        
-        
-        String rgId = "1";
-        
-        List<SAMReadGroupRecord> readGroupList = null;
-        if(fileHeader != null) {
-            readGroupList = fileHeader.getReadGroups();
-        }
-
-        if (readGroupList != null && !readGroupList.isEmpty()) {
-            SAMReadGroupRecord readGroup = readGroupList.get(0);
-            rgId = readGroup.getId();
-        }
-        
-        samRecord.setAttribute("RG", rgId);
+        samRecord.setAttribute("RG", getReadGroupId(fileHeader));
 
         if(filter == 0){
             samRecord.setReadFailsVendorQualityCheckFlag(true);
@@ -612,6 +1131,83 @@ public class Tile {
         return samRecord;
     }
 
+    /**
+     * encode one read of a cluster straight from the chunk buffers,
+     * with the same fields and tags as getSAMRecord
+     *
+     * @param encoder
+     * @param readNameLength length of the read name in the read name buffer
+     * @param clusterIndex
+     * @param rgId read group id
+     * @param filter
+     * @param cluster index of the cluster in the chunks
+     * @param chunk chunk of this read
+     * @param secondCallChunk chunk of second calls of this read, null if not included
+     * @param indexChunk chunk of index read, null if not for this read
+     * @param index2Chunk chunk of second index read, null if not for this read
+     * @param firstRead
+     */
+    private void encodeRecord(
+            BAMRecordEncoder encoder,
+            int readNameLength,
+            int clusterIndex,
+            String rgId,
+            int filter,
+            int cluster,
+            ReadChunk chunk,
+            ReadChunk secondCallChunk,
+            ReadChunk indexChunk,
+            ReadChunk index2Chunk,
+            boolean firstRead) {
+
+        int flags = 0;
+        if(filter == 0){
+            flags |= BAMRecordEncoder.READ_FAILS_VENDOR_QUALITY_CHECK_FLAG;
+        }
+        if(this.pairedRead){
+            flags |= BAMRecordEncoder.READ_PAIRED_FLAG | BAMRecordEncoder.MATE_UNMAPPED_FLAG;
+            flags |= firstRead ? BAMRecordEncoder.FIRST_OF_PAIR_FLAG : BAMRecordEncoder.SECOND_OF_PAIR_FLAG;
+        }
+
+        encoder.startRecord(this.readNameBuffer, 0, readNameLength, flags,
+                chunk.getBases(), chunk.getQualities(), chunk.getClusterOffset(cluster), chunk.getReadLength());
+        encoder.addIntTag("ci", clusterIndex);
+        encoder.addStringTag("RG", rgId);
+
+        if( secondCallChunk != null ){
+            encoder.addStringTag("E2", secondCallChunk.getBases(), secondCallChunk.getClusterOffset(cluster), secondCallChunk.getReadLength());
+        }
+
+        if(indexChunk != null){
+            int offset = indexChunk.getClusterOffset(cluster);
+            encoder.addStringTag(this.barcodeSeqTagName, indexChunk.getBases(), offset, indexChunk.getReadLength());
+            encoder.addQualityStringTag(this.barcodeQualTagName, indexChunk.getQualities(), offset, indexChunk.getReadLength());
+        }
+
+        if(index2Chunk != null){
+            int offset = index2Chunk.getClusterOffset(cluster);
+            encoder.addStringTag(this.secondBarcodeSeqTagName, index2Chunk.getBases(), offset, index2Chunk.getReadLength());
+            encoder.addQualityStringTag(this.secondBarcodeQualTagName, index2Chunk.getQualities(), offset, index2Chunk.getReadLength());
+        }
+    }
+
+    /**
+     *
+     * @param fileHeader
+     * @return id of the first read group in the header, 1 if none
+     */
+    private static String getReadGroupId(SAMFileHeader fileHeader){
+
+        List<SAMReadGroupRecord> readGroupList = null;
+        if(fileHeader != null) {
+            readGroupList = fileHeader.getReadGroups();
+        }
+        if (readGroupList != null && !readGroupList.isEmpty()) {
+            return readGroupList.get(0).getId();
+        }
+        return "1";
+    }
+
     /**
      * form read name for one cluster
      *
@@ -626,6 +1222,68 @@ public class Tile {
                 + ":" + pos[1];
     }
 
+    /**
+     * form read name for one cluster from its coordinates,
+     * writing the digits into a buffer after the read name prefix, reused for all clusters
+     *
+     * @param x
+     * @param y
+     * @return whole read name
+     */
+    public String getReadName(int x, int y){
+        return new String(this.readNameBuffer, 0, this.formatReadName(x, y), READ_NAME_CHARSET);
+    }
+
+    /**
+     * write the coordinates after the read name prefix in the read name buffer
+     *
+     * @return length of the read name
+     */
+    private int formatReadName(int x, int y){
+
+        int length = appendDigits(x, this.readNameBuffer, this.readNamePrefixLength);
+        this.readNameBuffer[length++] = ':';
+        return appendDigits(y, this.readNameBuffer, length);
+    }
+
+    /**
+     * append bytes to the read name in the read name buffer, growing the buffer if needed
+     *
+     * @return length of the read name
+     */
+    private int appendToReadName(int length, byte[] suffix){
+
+        if (length + suffix.length > this.readNameBuffer.length) {
+            this.readNameBuffer = Arrays.copyOf(this.readNameBuffer, length + suffix.length + 2 * 11);
+        }
+        System.arraycopy(suffix, 0, this.readNameBuffer, length, suffix.length);
+        return length + suffix.length;
+    }
+
+    /**
+     * write decimal digits of an integer into a byte array
+     *
+     * @return the position after the last digit
+     */
+    private static int appendDigits(int value, byte[] dst, int offset){
+
+        long remaining = value;
+        if (remaining < 0) {
+            dst[offset++] = '-';
+            remaining = -remaining;
+        }
+        int digits = 1;
+        for (long power = 10; power <= remaining; power *= 10) {
+            digits++;
+        }
+        int end = offset + digits;
+        for (int i = end - 1; i >= offset; i--) {
+            dst[i] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        return end;
+    }
+
     /**
      *
      * @param cycle
@@ -647,6 +1305,25 @@ public class Tile {
         return firstCall ? cycleDir + ".bcl" : cycleDir + ".scl";
     }
     
+    /**
+     * CBCL file holding this tile, one file for each surface of a lane and each cycle,
+     * the surface being the first digit of the tile number
+     *
+     * @param cycle
+     * @return CBCL file name
+     */
+    public String getCBCLFileName(int cycle) {
+
+        String surface = String.valueOf(this.tileNumber).substring(0, 1);
+        return this.baseCallDir
+                + File.separator
+                + this.laneSubDir
+                + File.separator
+                + "C" + cycle + ".1"
+                + File.separator
+                + this.laneSubDir + "_" + surface + CBCLFileReader.CBCL_FILE_SUFFIX;
+    }
+
     private String checkFilterFileName(){
 
         String filterFileNameLocal = this.baseCallDir
@@ -689,6 +1366,13 @@ public class Tile {
         return BamUtils.convertByteArrayToString(array);
     }
 
+    /**
+     * @return the tileNumber
+     */
+    public int getTileNumber() {
+        return tileNumber;
+    }
+
     /**
      * @return the cLocsFileName
      */
@@ -791,6 +1475,59 @@ public class Tile {
         return locsFileName;
     }
 
+    /**
+     * @param memoryMapBCL map uncompressed BCL files into memory or read them through an input stream
+     */
+    public void setMemoryMapBCL(boolean memoryMapBCL) {
+        this.memoryMapBCL = memoryMapBCL;
+    }
+
+    /**
+     * @param clusterChunkSize maximum number of clusters read from base call files in one go
+     */
+    public void setClusterChunkSize(int clusterChunkSize) {
+        if (clusterChunkSize < 1) {
+            throw new IllegalArgumentException("Cluster chunk size must be positive: " + clusterChunkSize);
+        }
+        this.clusterChunkSize = clusterChunkSize;
+    }
+
+    /**
+     * @param decompressionPool pool to inflate gzipped BCL files ahead of reading, null to inflate them when reading
+     */
+    public void setDecompressionPool(DecompressionPool decompressionPool) {
+        this.decompressionPool = decompressionPool;
+    }
+
+    /**
+     * @param loadingExecutor threads to load the cycles of a chunk in parallel,
+     * splitting BGZF compressed BCL files by blocks, null to load them in the reading thread
+     */
+    public void setLoadingExecutor(ExecutorService loadingExecutor) {
+        this.loadingExecutor = loadingExecutor;
+    }
+
+    /**
+     * @param indexDecoder decoder of index reads shared by all tiles of the lane, null not to decode
+     */
+    public void setIndexDecoder(InlineIndexDecoder indexDecoder) {
+        this.indexDecoder = indexDecoder;
+    }
+
+    /**
+     * @param clusterSampler selection of clusters to convert, null to convert all clusters
+     */
+    public void setClusterSampler(ClusterSampler clusterSampler) {
+        this.clusterSampler = clusterSampler;
+    }
+
+    /**
+     * @param cbclHeaders headers of CBCL files by file name, shared between tiles to read each header once
+     */
+    public void setCBCLHeaders(Map<String, CBCLFileReader.Header> cbclHeaders) {
+        this.cbclHeaders = cbclHeaders;
+    }
+
     /**
      * @param secondBarcodeSeqTagName the secondBarcodeSeqTagName to set
      */
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import net.sf.picard.util.Log;
+
+/**
+ * Open tiles of a lane on a background thread ahead of the tile being written.
+ *
+ * Each tile is opened and pre-read in order, its base call files opened, memory mapped BCL files
+ * read into memory, gzipped BCL files inflated ahead if a decompression pool is given, and its PF mask loaded,
+ * while the reading thread processes the tiles taken before it.
+ * No more than a given number of tiles are opened ahead of the reading thread,
+ * which caps the memory held by tiles waiting to be processed.
+ *
+ * The time the reading thread stalls for a tile still being opened,
+ * and the time the prefetch thread waits for the reading thread to take a tile, are both logged.
+ */
+public class TilePrefetcher {
+
+    private final Log log = Log.getInstance(TilePrefetcher.class);
+
+    private final List<Tile> tiles;
+    private final int maxTilesAhead;
+
+    private final Semaphore freeSlots;
+    private final BlockingQueue<OpenedTile> openedTiles = new LinkedBlockingQueue<OpenedTile>();
+    private final Thread thread;
+    private volatile boolean stopped = false;
+
+    private int tilesTaken = 0;
+    private long stallNanos = 0;
+    private volatile long waitNanos = 0;
+
+    /**
+     *
+     * @param tiles tiles to open in order, not opened yet
+     * @param maxTilesAhead maximum number of tiles opened but not taken by the reading thread
+     */
+    public TilePrefetcher(List<Tile> tiles, int maxTilesAhead) {
+
+        if (maxTilesAhead < 1) {
+            throw new IllegalArgumentException("Number of tiles opened ahead must be positive: " + maxTilesAhead);
+        }
+        this.tiles = tiles;
+        this.maxTilesAhead = maxTilesAhead;
+        this.freeSlots = new Semaphore(maxTilesAhead);
+        this.thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                prefetchTiles();
+            }
+        }, "tile-prefetch");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * start opening tiles on the background thread
+     */
+    public void start() {
+
+        log.info("Opening up to " + this.maxTilesAhead + " tiles ahead of the tile being written");
+        this.thread.start();
+    }
+
+    /**
+     * open each tile in order, waiting for a free slot before each one
+     */
+    private void prefetchTiles() {
+
+        for (Tile tile : this.tiles) {
+            long start = System.nanoTime();
+            try {
+                this.freeSlots.acquire();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            this.waitNanos += System.nanoTime() - start;
+            if (this.stopped) {
+                return;
+            }
+
+            OpenedTile opened = new OpenedTile(tile);
+            try {
+                tile.prefetch();
+            } catch (Exception ex) {
+                tile.closeBaseCallFiles();
+                opened.error = ex;
+            }
+            this.openedTiles.add(opened);
+            if (opened.error != null) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * take the next tile, waiting for it if it is still being opened
+     *
+     * @return the next tile with all base call files open, null if no more tile
+     * @throws Exception if the tile could not be opened
+     */
+    public Tile nextTile() throws Exception {
+
+        if (this.tilesTaken == this.tiles.size()) {
+            return null;
+        }
+        long start = System.nanoTime();
+        OpenedTile opened = this.openedTiles.take();
+        long stall = System.nanoTime() - start;
+        this.stallNanos += stall;
+        this.tilesTaken++;
+        this.freeSlots.release();
+
+        log.debug("Waited " + (stall / 1000000) + " ms for tile " + this.tilesTaken + " to be opened");
+        if (opened.error != null) {
+            throw opened.error;
+        }
+        return opened.tile;
+    }
+
+    /**
+     * stop opening tiles, close any tile opened but not taken, and log stall and wait times
+     */
+    public void shutdown() {
+
+        this.stopped = true;
+        this.thread.interrupt();
+        try {
+            this.thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (OpenedTile opened : this.openedTiles) {
+            opened.tile.closeBaseCallFiles();
+        }
+        this.openedTiles.clear();
+
+        log.info("Tile prefetch: reading thread stalled " + (this.stallNanos / 1000000)
+                + " ms for tiles being opened, prefetch thread waited " + (this.waitNanos / 1000000)
+                + " ms for tiles to be taken");
+    }
+
+    /**
+     * @return total time in nanoseconds the reading thread waited for tiles still being opened
+     */
+    public long getStallNanos() {
+        return stallNanos;
+    }
+
+    /**
+     * @return total time in nanoseconds the prefetch thread waited with the maximum number of tiles opened ahead
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    /**
+     * a tile opened by the prefetch thread, or the error opening it
+     */
+    private static class OpenedTile {
+
+        private final Tile tile;
+        private Exception error = null;
+
+        private OpenedTile(Tile tile) {
+            this.tile = tile;
+        }
+    }
+}
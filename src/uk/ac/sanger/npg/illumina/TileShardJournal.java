@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import net.sf.picard.util.Log;
+
+/**
+ * Journal of the tile shards of a lane completed in a shard directory,
+ * so that a conversion stopped part way can be resumed from the tiles not completed.
+ *
+ * The journal starts with a checksum of the settings the shards were written with,
+ * followed by a line for each shard once it is complete: shard file name, number of tiles,
+ * length and MD5 checksum of the shard, separated by tabs.
+ * Each line is synced to disk after the shard is renamed, so the journal never lists a shard not complete.
+ * A shard is only reused when its length and checksum are still those in the journal.
+ */
+public class TileShardJournal {
+
+    private final Log log = Log.getInstance(TileShardJournal.class);
+
+    private static final String SETTINGS_PREFIX = "#settings\t";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File journalFile;
+    private final HashMap<String, String[]> entries = new HashMap<String, String[]>();
+    private final FileOutputStream out;
+
+    /**
+     * open the journal of a lane, reading shards completed by an earlier run if resuming
+     *
+     * @param journalFile
+     * @param settings description of everything changing the records written to shards
+     * @param resume keep the shards in the journal, otherwise start a new journal
+     * @throws IOException
+     */
+    public TileShardJournal(File journalFile, String settings, boolean resume) throws IOException {
+
+        this.journalFile = journalFile;
+        String settingsLine = SETTINGS_PREFIX + md5(settings.getBytes());
+
+        boolean newJournal = !resume || !journalFile.exists();
+        if (!newJournal) {
+            this.readJournal(settingsLine);
+            log.info("Resuming from " + this.entries.size() + " tile shards in journal " + journalFile);
+        }
+
+        boolean lineCutShort = !newJournal && !endsWithNewLine(journalFile);
+        this.out = new FileOutputStream(journalFile, !newJournal);
+        if (newJournal) {
+            this.writeLine(settingsLine);
+        } else if (lineCutShort) {
+            this.writeLine("");
+        }
+    }
+
+    private void readJournal(String settingsLine) throws IOException {
+
+        BufferedReader reader = new BufferedReader(new FileReader(this.journalFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(SETTINGS_PREFIX)) {
+                    if (!line.equals(settingsLine)) {
+                        throw new RuntimeException("Tile shards in journal " + this.journalFile
+                                + " written with different settings, convert again without resuming");
+                    }
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                //a line cut short when stopped not taken
+                if (fields.length == 4 && fields[3].length() == 32) {
+                    this.entries.put(fields[0], fields);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean endsWithNewLine(File file) throws IOException {
+
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            if (in.length() == 0) {
+                return true;
+            }
+            in.seek(in.length() - 1);
+            return in.read() == '\n';
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param shard
+     * @return true if the shard is in the journal with the same length and checksum
+     * @throws IOException
+     */
+    public boolean isComplete(File shard) throws IOException {
+
+        String[] entry = this.entries.get(shard.getName());
+        if (entry == null) {
+            return false;
+        }
+        if (!shard.exists() || shard.length() != Long.parseLong(entry[2])) {
+            log.warn("Tile shard missing or not the length in the journal, converting its tiles again: " + shard);
+            return false;
+        }
+        if (!md5(shard).equals(entry[3])) {
+            log.warn("Tile shard checksum not the one in the journal, converting its tiles again: " + shard);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * add a shard to the journal once complete
+     *
+     * @param shard
+     * @param tiles number of tiles in the shard
+     * @throws IOException
+     */
+    public synchronized void addShard(File shard, int tiles) throws IOException {
+        this.writeLine(shard.getName() + "\t" + tiles + "\t" + shard.length() + "\t" + md5(shard));
+    }
+
+    private void writeLine(String line) throws IOException {
+
+        this.out.write((line + "\n").getBytes());
+        this.out.getFD().sync();
+    }
+
+    /**
+     * close the journal, keeping the file to resume from
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        this.out.close();
+    }
+
+    /**
+     * @param file
+     * @return MD5 checksum of the file in hex
+     * @throws IOException
+     */
+    public static String md5(File file) throws IOException {
+
+        MessageDigest digest = newMd5Digest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String md5(byte[] bytes) {
+        return toHex(newMd5Digest().digest(bytes));
+    }
+
+    private static MessageDigest newMd5Digest() {
+
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException("MD5 not available", ex);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        return String.format("%032x", new BigInteger(1, digest));
+    }
+
+    /**
+     * @return the journalFile
+     */
+    public File getJournalFile() {
+        return journalFile;
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import net.sf.picard.util.Log;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * Convert several tiles of a lane at the same time, each on its own worker thread,
+ * and write their records to the output in the order of the tiles,
+ * so that the output is the same as converting one tile after another.
+ *
+ * Each worker buffers the records of its tile in batches,
+ * and waits when its share of the record buffer is full until its tile is being written.
+ * A tile is only started when one of the tiles before it has been written,
+ * so no more tiles than worker threads are converted or buffered at the same time.
+ */
+public class TileWorkerPool {
+
+    private final Log log = Log.getInstance(TileWorkerPool.class);
+
+    /**
+     * default maximum number of records buffered in memory by all workers
+     */
+    public static final int DEFAULT_BUFFER_RECORDS = 500000;
+
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    //marks the end of the records of a tile
+    private static final List<SAMRecord> END_OF_TILE = new ArrayList<SAMRecord>(0);
+
+    private final List<Tile> tiles;
+    private final int threads;
+    private final int batchSize;
+    private final int batchesPerTile;
+
+    /**
+     *
+     * @param tiles tiles to convert, none of their files opened yet
+     * @param threads number of tiles converted at the same time
+     * @param bufferRecords maximum number of records buffered in memory by all workers
+     */
+    public TileWorkerPool(List<Tile> tiles, int threads, int bufferRecords) {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of tile threads must be positive: " + threads);
+        }
+        if (bufferRecords < 1) {
+            throw new IllegalArgumentException("Number of records buffered must be positive: " + bufferRecords);
+        }
+        this.tiles = tiles;
+        this.threads = threads;
+        int recordsPerTile = Math.max(1, bufferRecords / threads);
+        this.batchSize = Math.min(MAX_BATCH_SIZE, recordsPerTile);
+        this.batchesPerTile = Math.max(1, recordsPerTile / this.batchSize);
+    }
+
+    /**
+     * @param threads
+     * @return executor of daemon worker threads to convert tiles, which can be shared by the pools of several lanes
+     */
+    public static ExecutorService newExecutor(int threads) {
+
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tile-worker-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * convert all tiles and write their records in the order of the tiles
+     *
+     * @param outputSam
+     * @throws Exception the first problem converting a tile, in the order of the tiles
+     */
+    public void writeTiles(SAMFileWriter outputSam) throws Exception {
+
+        ExecutorService executor = newExecutor(this.threads);
+        try {
+            this.writeTiles(outputSam, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * convert all tiles on an executor shared with other pools, and write their records in the order of the tiles.
+     * Tiles are submitted in order, so the first tile not written yet is always converted before the tiles after it.
+     *
+     * @param outputSam
+     * @param executor
+     * @throws Exception the first problem converting a tile, in the order of the tiles
+     */
+    public void writeTiles(SAMFileWriter outputSam, ExecutorService executor) throws Exception {
+
+        log.info("Converting up to " + this.threads + " tiles at the same time, buffering "
+                + this.batchesPerTile + " batches of " + this.batchSize + " records per tile");
+
+        List<TileRecordQueue> queues = new ArrayList<TileRecordQueue>(this.tiles.size());
+        List<Future<?>> workers = new ArrayList<Future<?>>(this.tiles.size());
+        try {
+            for (int i = 0; i < this.tiles.size(); i++) {
+                queues.add(new TileRecordQueue(this.tiles.get(i), outputSam.getFileHeader()));
+                if (i < this.threads) {
+                    workers.add(executor.submit(queues.get(i)));
+                }
+            }
+
+            for (int i = 0; i < queues.size(); i++) {
+                log.info("Writing tile: " + this.tiles.get(i).getTileNumber());
+                queues.get(i).writeTo(outputSam);
+                queues.set(i, null);
+                if (i + this.threads < queues.size()) {
+                    workers.add(executor.submit(queues.get(i + this.threads)));
+                }
+            }
+        } finally {
+            for (Future<?> worker : workers) {
+                worker.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * records of one tile in batches, filled by a worker converting the tile
+     * and emptied by the thread writing the output
+     */
+    private class TileRecordQueue implements SAMFileWriter, Runnable {
+
+        private final Tile tile;
+        private final SAMFileHeader header;
+        private final BlockingQueue<List<SAMRecord>> batches;
+        private List<SAMRecord> currentBatch;
+        private volatile Exception error = null;
+
+        private TileRecordQueue(Tile tile, SAMFileHeader header) {
+            this.tile = tile;
+            this.header = header;
+            this.batches = new ArrayBlockingQueue<List<SAMRecord>>(batchesPerTile);
+            this.currentBatch = new ArrayList<SAMRecord>(batchSize);
+        }
+
+        /**
+         * convert the tile, passing any problem to the writing thread
+         */
+        @Override
+        public void run() {
+
+            try {
+                log.info("Opening all basecall files of tile " + this.tile.getTileNumber());
+                this.tile.openBaseCallFiles();
+                this.tile.processTile(this);
+                if (!this.currentBatch.isEmpty()) {
+                    this.batches.put(this.currentBatch);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (Exception ex) {
+                this.error = ex;
+            } catch (Error ex) {
+                this.error = new Exception("Problem to convert tile " + this.tile.getTileNumber(), ex);
+            } finally {
+                this.tile.closeBaseCallFiles();
+            }
+            try {
+                this.batches.put(END_OF_TILE);
+            } catch (InterruptedException ex) {
+                //no more writing thread
+            }
+        }
+
+        /**
+         * write all records of the tile, waiting for each batch to be converted
+         */
+        private void writeTo(SAMFileWriter outputSam) throws Exception {
+
+            while (true) {
+                List<SAMRecord> batch = this.batches.take();
+                if (batch == END_OF_TILE) {
+                    break;
+                }
+                for (SAMRecord record : batch) {
+                    outputSam.addAlignment(record);
+                }
+            }
+            if (this.error != null) {
+                throw this.error;
+            }
+        }
+
+        @Override
+        public void addAlignment(SAMRecord record) {
+
+            this.currentBatch.add(record);
+            if (this.currentBatch.size() == batchSize) {
+                try {
+                    this.batches.put(this.currentBatch);
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException("Converting tile " + this.tile.getTileNumber() + " interrupted");
+                }
+                this.currentBatch = new ArrayList<SAMRecord>(batchSize);
+            }
+        }
+
+        @Override
+        public SAMFileHeader getFileHeader() {
+            return this.header;
+        }
+
+        /**
+         * nothing to close, the records written by the writing thread
+         */
+        @Override
+        public void close() {
+        }
+    }
+}
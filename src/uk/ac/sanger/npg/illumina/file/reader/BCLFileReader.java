@@ -19,6 +19,8 @@
 package uk.ac.sanger.npg.illumina.file.reader;
 
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import net.sf.picard.util.Log;
 
@@ -30,15 +32,32 @@ import net.sf.picard.util.Log;
 public class BCLFileReader extends IlluminaFileReader {
     
     private final Log log = Log.getInstance(BCLFileReader.class);
+
+    /**
+     * default buffer size, big for sequential reading of a whole cycle file
+     */
+    public static final int BUFFER_SIZE = 131072;
     
-    private final byte[] BASE_ARRAY = {65, 67, 71, 84}; //A C G T
-    private final byte UNKNOWN_BASE = 78;
-    private int currentCluster = 0;
-    private int totalClusters = 0;
+    protected final byte[] BASE_ARRAY = {65, 67, 71, 84}; //A C G T
+    protected final byte UNKNOWN_BASE = 78;
+    protected int currentCluster = 0;
+    protected int totalClusters = 0;
 
     //define current illumina quality score range
-    private final byte MAX_QUALITY_SCORE = 60;
-    private final byte MIN_QUALITY_SCORE = 0;
+    protected final byte MAX_QUALITY_SCORE = 60;
+    protected final byte MIN_QUALITY_SCORE = 0;
+
+    //decoded base in the lowest byte, quality in the second byte and a bit for invalid quality, for each bcl byte
+    private static final int INVALID_QUALITY = 1 << 16;
+    private static final int[] DECODE_TABLE = new int[256];
+    static {
+        byte[] bases = {65, 67, 71, 84};
+        for (int bclByte = 0; bclByte < 256; bclByte++) {
+            int quality = bclByte >> 2;
+            int base = (quality != 0) ? bases[bclByte & 0x3] : 78;
+            DECODE_TABLE[bclByte] = base | (quality << 8) | ((quality > 60) ? INVALID_QUALITY : 0);
+        }
+    }
 
     /**
      * constructor to generate bcl file input stream
@@ -49,10 +68,48 @@ public class BCLFileReader extends IlluminaFileReader {
      */
     public BCLFileReader(String bclFileName) throws Exception {
 
-        super(bclFileName);
+        this(bclFileName, null);
+    }
+
+    /**
+     * constructor to generate bcl file input stream, inflated by a pool if gzipped,
+     * and read the number of clusters
+     *
+     * @param bclFileName bcl file name
+     * @param decompressionPool pool to inflate a gzipped bcl file ahead of reading, null to inflate it when reading
+     * @throws Exception
+     */
+    public BCLFileReader(String bclFileName, DecompressionPool decompressionPool) throws Exception {
+
+        this(bclFileName, decompressionPool, BUFFER_SIZE);
+    }
+
+    /**
+     * constructor to generate bcl file input stream with a given buffer size, inflated by a pool if gzipped,
+     * and read the number of clusters
+     *
+     * @param bclFileName bcl file name
+     * @param decompressionPool pool to inflate a gzipped bcl file ahead of reading, null to inflate it when reading
+     * @param bufferSize size of the buffer between the file and the reader
+     * @throws Exception
+     */
+    public BCLFileReader(String bclFileName, DecompressionPool decompressionPool, int bufferSize) throws Exception {
+
+        super(bclFileName, decompressionPool, bufferSize);
         this.readFileHeader();
     }
 
+    /**
+     * constructor for subclasses which read the bcl file and its header themselves
+     *
+     * @param bclFile bcl file
+     * @throws FileNotFoundException, IOException
+     */
+    protected BCLFileReader(File bclFile) throws FileNotFoundException, IOException {
+
+        super(bclFile, false);
+    }
+
     /**
      * read total number of clusters from header
      * @throws IOException
@@ -60,7 +117,11 @@ public class BCLFileReader extends IlluminaFileReader {
     private void readFileHeader() throws IOException {
 
         //first four bytes - unsigned 32bits little endian integer
-        this.totalClusters = this.readFourBytes();
+        try {
+            this.totalClusters = this.readFourBytes();
+        } catch (EOFException ex) {
+            log.warn("BCL file too short to have a header: " + this.getFileName());
+        }
         log.debug("The total number of clusters:" + this.getTotalClusters() + " in " + this.getFileName() );
     }
 
@@ -83,44 +144,162 @@ public class BCLFileReader extends IlluminaFileReader {
     @Override
     public byte[] next() {
 
+        byte [] currentClusterPair = new byte[2];
         try {
-
-            byte nextBase;
-            try{
-                nextBase = this.inputStream.readByte();
-            } catch( EOFException ex) {
+            if (this.read(currentClusterPair, 0, 1) == -1) {
                 //end of the file
-                log.error(ex, "There is no more cluster in BCL file after cluster " + this.getCurrentCluster()
+                log.error("There is no more cluster in BCL file after cluster " + this.getCurrentCluster()
                         + " in file " + this.getFileName() );
                 return null;
             }
+        } catch (IOException ex) {
+            log.error(ex, "There is problems to read the file" + this.getFileName());
+            return null;
+        }
+
+        int decoded = DECODE_TABLE[currentClusterPair[0] & 0xFF];
+        if ((decoded & INVALID_QUALITY) != 0) {
+            this.decodeQuality(currentClusterPair[0], this.getCurrentCluster() - 1);
+        }
+        currentClusterPair[0] = (byte) decoded;
+        currentClusterPair[1] = (byte) (decoded >> 8);
 
-            //last two bits are base index
-            int baseIndex =  nextBase & 0x3;
+        return currentClusterPair;
+    }
 
-            //the rest base are quality
-            byte qul = ( byte) ( (nextBase & 0xFC) >> 2 ) ;
-            if(qul < this.MIN_QUALITY_SCORE || qul >this.MAX_QUALITY_SCORE ){
-               throw new IllegalArgumentException("Invalid quality score: "
-                       + qul + " in bcl file " + this.getFileName()
-                       + " in position " + this.getCurrentCluster());
+    /**
+     * read undecoded bcl bytes of a run of clusters
+     * 
+     * @param dst array to store bcl bytes
+     * @param offset the start position in the array
+     * @param length the maximum number of clusters to read
+     * @return the number of clusters read, -1 if no more cluster
+     * @throws IOException 
+     */
+    @Override
+    public int read(byte[] dst, int offset, int length) throws IOException {
+
+        int count = Math.min(length, this.getTotalClusters() - this.getCurrentCluster());
+        if (count <= 0) {
+            return -1;
+        }
+        int read = this.readBytes(dst, offset, count);
+        if (read < count) {
+            log.error("There is no more cluster in BCL file after cluster " + (this.getCurrentCluster() + read)
+                    + " in file " + this.getFileName() );
+            if (read == 0) {
+                return -1;
             }
+        }
+        this.currentCluster += read;
+        return read;
+    }
 
-            //convert base to char or unknow
-            byte base = (qul != 0) ? this.BASE_ARRAY[baseIndex] : this.UNKNOWN_BASE;
+    /**
+     * decode bases and qualities of a run of clusters into the given arrays
+     *
+     * @param bases array to store bases
+     * @param quals array to store qualities
+     * @param offset the start position in both arrays
+     * @param length the maximum number of clusters to read
+     * @return the number of clusters read, -1 if no more cluster
+     * @throws IOException 
+     */
+    public int read(byte[] bases, byte[] quals, int offset, int length) throws IOException {
 
-            byte [] currentClusterPair = new byte[2];
-            currentClusterPair[0] = base;
-            currentClusterPair[1] = qul;
+        int position = this.getCurrentCluster();
 
-            this.currentCluster++;
-            return currentClusterPair;
+        //read bcl bytes into base array first and decode them in place
+        int count = this.read(bases, offset, length);
+        this.decode(bases, quals, offset, count, position);
+        return count;
+    }
 
-        } catch (IOException ex) {
-            log.error(ex, "There is problems to read the file" + this.getFileName());
+    /**
+     * decode bcl bytes of a run of clusters in the base array in place,
+     * looking up base and quality of each byte in a table
+     *
+     * @param bases array of bcl bytes to store bases
+     * @param quals array to store qualities
+     * @param offset the start position in both arrays
+     * @param count the number of clusters to decode
+     * @param firstCluster position of the first cluster in the file, used for error message
+     */
+    protected void decode(byte[] bases, byte[] quals, int offset, int count, int firstCluster) {
+
+        int end = offset + count;
+        int invalid = 0;
+        for (int i = offset; i < end; i++) {
+            int decoded = DECODE_TABLE[bases[i] & 0xFF];
+            invalid |= decoded;
+            quals[i] = (byte) (decoded >> 8);
+            bases[i] = (byte) decoded;
+        }
+        if ((invalid & INVALID_QUALITY) != 0) {
+            //find the first invalid quality for the error message, bases already decoded
+            for (int i = offset; i < end; i++) {
+                if (quals[i] > this.MAX_QUALITY_SCORE) {
+                    this.decodeQuality((byte) (quals[i] << 2), firstCluster + i - offset);
+                }
+            }
+        }
+    }
+
+    /**
+     * decode bcl bytes of PF clusters only in a run of clusters in the base array in place,
+     * moving them to the front of the run and skipping bytes of non-PF clusters in bulk
+     *
+     * @param bases array of bcl bytes to store bases
+     * @param quals array to store qualities
+     * @param offset the start position in both arrays
+     * @param count the number of clusters in the run
+     * @param firstCluster position of the first cluster in the file
+     * @param pfMask PF mask of the tile
+     * @return the number of PF clusters decoded at the front of the run
+     */
+    public int decodePF(byte[] bases, byte[] quals, int offset, int count, int firstCluster, PFMask pfMask) {
+
+        int end = firstCluster + count;
+        int kept = 0;
+        int cluster = pfMask.nextPf(firstCluster);
+        while (cluster < end) {
+            int runEnd = Math.min(pfMask.nextNonPf(cluster), end);
+            int runLength = runEnd - cluster;
+            System.arraycopy(bases, offset + cluster - firstCluster, bases, offset + kept, runLength);
+            this.decode(bases, quals, offset + kept, runLength, cluster);
+            kept += runLength;
+            cluster = pfMask.nextPf(runEnd);
         }
+        return kept;
+    }
 
-        return null;
+    /**
+     * get quality from a bcl byte, the first six bits
+     * 
+     * @param bclByte
+     * @param clusterPosition position of this cluster in the file, used for error message
+     * @return quality score
+     */
+    protected byte decodeQuality(byte bclByte, int clusterPosition) {
+
+        byte qul = (byte) ((bclByte & 0xFC) >> 2);
+        if (qul < this.MIN_QUALITY_SCORE || qul > this.MAX_QUALITY_SCORE) {
+            throw new IllegalArgumentException("Invalid quality score: "
+                    + qul + " in bcl file " + this.getFileName()
+                    + " in position " + clusterPosition);
+        }
+        return qul;
+    }
+
+    /**
+     * get base from a bcl byte, the last two bits are base index
+     * 
+     * @param bclByte
+     * @param quality quality of this base, no call if zero
+     * @return base or unknown base
+     */
+    protected byte decodeBase(byte bclByte, byte quality) {
+        return (quality != 0) ? this.BASE_ARRAY[bclByte & 0x3] : this.UNKNOWN_BASE;
     }
 
     /**
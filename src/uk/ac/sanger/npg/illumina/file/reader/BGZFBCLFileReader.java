@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina.file.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import net.sf.picard.util.Log;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * This class is a reader of a BGZF compressed bcl file (bcl.bgzf).
+ *
+ * With a block offset index, it can seek to any cluster by inflating only the block holding it,
+ * and runs of clusters can be read at any position from several threads at the same time,
+ * each inflating its own blocks.
+ */
+public class BGZFBCLFileReader extends BCLFileReader {
+
+    private final Log log = Log.getInstance(BGZFBCLFileReader.class);
+
+    /**
+     * suffix of BGZF compressed bcl file
+     */
+    public static final String BGZF_FILE_SUFFIX = ".bgzf";
+
+    private final int HEADER_SIZE = 4;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final BGZFBlockIndex blockIndex;
+
+    //block inflated for sequential reading
+    private final BlockCursor cursor = new BlockCursor();
+
+    /**
+     * constructor to open a BGZF bcl file, load or build its block index
+     * and read the number of clusters
+     *
+     * @param bclFileName BGZF bcl file name
+     * @throws Exception
+     */
+    public BGZFBCLFileReader(String bclFileName) throws Exception {
+
+        this(bclFileName, null);
+    }
+
+    /**
+     * constructor to open a BGZF bcl file with its block index
+     * and read the number of clusters
+     *
+     * @param bclFileName BGZF bcl file name
+     * @param blockIndex block index of the file, null to load or build it
+     * @throws Exception
+     */
+    public BGZFBCLFileReader(String bclFileName, BGZFBlockIndex blockIndex) throws Exception {
+
+        super(new File(bclFileName));
+        File bgzfFile = new File(bclFileName);
+        this.blockIndex = (blockIndex != null) ? blockIndex : BGZFBlockIndex.getIndex(bgzfFile);
+        this.file = new RandomAccessFile(bgzfFile, "r");
+        this.channel = this.file.getChannel();
+        this.readFileHeader();
+    }
+
+    /**
+     * read total number of clusters from header
+     * @throws IOException
+     */
+    private void readFileHeader() throws IOException {
+
+        byte[] header = new byte[HEADER_SIZE];
+        if (this.inflate(header, 0, 0, HEADER_SIZE, this.cursor) < HEADER_SIZE) {
+            log.warn("BCL file too short to have a header: " + this.getFileName());
+        } else {
+            //unsigned 32bits little endian integer
+            this.totalClusters = (header[0] & 0xFF) | ((header[1] & 0xFF) << 8)
+                    | ((header[2] & 0xFF) << 16) | ((header[3] & 0xFF) << 24);
+        }
+        log.debug("The total number of clusters:" + this.getTotalClusters() + " in " + this.getFileName() );
+    }
+
+    /**
+     * move to a cluster, only the block holding the cluster will be inflated when reading it
+     *
+     * @param cluster position of the cluster in the file
+     */
+    public void seek(int cluster) {
+
+        if (cluster < 0 || cluster > this.getTotalClusters()) {
+            throw new IndexOutOfBoundsException("Cluster " + cluster + " out of range of BCL file "
+                    + this.getFileName() + ": " + this.getTotalClusters());
+        }
+        this.currentCluster = cluster;
+    }
+
+    /**
+     * read undecoded bcl bytes of a run of clusters from the current cluster
+     *
+     * @param dst array to store bcl bytes
+     * @param offset the start position in the array
+     * @param length the maximum number of clusters to read
+     * @return the number of clusters read, -1 if no more cluster
+     * @throws IOException
+     */
+    @Override
+    public int read(byte[] dst, int offset, int length) throws IOException {
+
+        int count = Math.min(length, this.getTotalClusters() - this.getCurrentCluster());
+        if (count <= 0) {
+            return -1;
+        }
+        int read = this.inflate(dst, offset, HEADER_SIZE + (long) this.getCurrentCluster(), count, this.cursor);
+        if (read < count) {
+            log.error("There is no more cluster in BCL file after cluster " + (this.getCurrentCluster() + read)
+                    + " in file " + this.getFileName() );
+            if (read == 0) {
+                return -1;
+            }
+        }
+        this.currentCluster += read;
+        return read;
+    }
+
+    /**
+     * decode bases and qualities of a run of clusters at any position,
+     * not changing the current cluster, and safe to call from several threads at the same time
+     *
+     * @param bases array to store bases
+     * @param quals array to store qualities
+     * @param offset the start position in both arrays
+     * @param firstCluster position of the first cluster in the file
+     * @param length the number of clusters to read
+     * @return the number of clusters read, less than length only at the end of the file
+     * @throws IOException
+     */
+    public int read(byte[] bases, byte[] quals, int offset, int firstCluster, int length) throws IOException {
+
+        int read = this.readRaw(bases, offset, firstCluster, length);
+        this.decode(bases, quals, offset, read, firstCluster);
+        return read;
+    }
+
+    /**
+     * read undecoded bcl bytes of a run of clusters at any position,
+     * not changing the current cluster, and safe to call from several threads at the same time
+     *
+     * @param dst array to store bcl bytes
+     * @param offset the start position in the array
+     * @param firstCluster position of the first cluster in the file
+     * @param length the number of clusters to read
+     * @return the number of clusters read, less than length only at the end of the file
+     * @throws IOException
+     */
+    public int readRaw(byte[] dst, int offset, int firstCluster, int length) throws IOException {
+
+        int count = Math.min(length, this.getTotalClusters() - firstCluster);
+        if (count <= 0) {
+            return 0;
+        }
+        BlockCursor blockCursor = new BlockCursor();
+        try {
+            return this.inflate(dst, offset, HEADER_SIZE + (long) firstCluster, count, blockCursor);
+        } finally {
+            blockCursor.inflater.end();
+        }
+    }
+
+    /**
+     * split a run of clusters at the boundaries of the blocks holding them,
+     * so that each part can be read by a different thread inflating different blocks
+     *
+     * @param firstCluster position of the first cluster in the file
+     * @param length the number of clusters
+     * @return positions of the first cluster of each part, followed by the end of the run
+     */
+    public int[] getBlockBoundaries(int firstCluster, int length) {
+
+        long start = HEADER_SIZE + (long) firstCluster;
+        long end = start + length;
+        int firstBlock = this.blockIndex.findBlock(start);
+        int lastBlock = this.blockIndex.findBlock(Math.max(start, end - 1));
+
+        int[] boundaries = new int[lastBlock - firstBlock + 2];
+        boundaries[0] = firstCluster;
+        int parts = 1;
+        for (int block = firstBlock + 1; block <= lastBlock; block++) {
+            int cluster = (int) (this.blockIndex.getUncompressedStart(block) - HEADER_SIZE);
+            if (cluster > boundaries[parts - 1] && cluster < firstCluster + length) {
+                boundaries[parts++] = cluster;
+            }
+        }
+        boundaries[parts++] = firstCluster + length;
+
+        if (parts < boundaries.length) {
+            int[] trimmed = new int[parts];
+            System.arraycopy(boundaries, 0, trimmed, 0, parts);
+            return trimmed;
+        }
+        return boundaries;
+    }
+
+    /**
+     * inflate uncompressed data from a position, block by block
+     *
+     * @return the number of bytes inflated, less than length only at the end of the file
+     */
+    private int inflate(byte[] dst, int offset, long position, int length, BlockCursor blockCursor) throws IOException {
+
+        int total = 0;
+        while (total < length) {
+            long current = position + total;
+            if (blockCursor.block < 0 || current < blockCursor.start || current >= blockCursor.start + blockCursor.length) {
+                int block = this.blockIndex.findBlock(current);
+                if (block >= this.blockIndex.getBlockCount()) {
+                    break;
+                }
+                this.inflateBlock(block, blockCursor);
+            }
+            int count = (int) Math.min(length - total, blockCursor.start + blockCursor.length - current);
+            System.arraycopy(blockCursor.data, (int) (current - blockCursor.start), dst, offset + total, count);
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * read one compressed block from the file and inflate it into a cursor
+     */
+    private void inflateBlock(int block, BlockCursor blockCursor) throws IOException {
+
+        int compressedSize = this.blockIndex.getCompressedSize(block);
+        int uncompressedSize = this.blockIndex.getUncompressedSize(block);
+        ByteBuffer compressed = ByteBuffer.wrap(blockCursor.compressed, 0, compressedSize);
+        BGZFBlockIndex.readFully(this.channel, compressed.slice(), this.blockIndex.getBlockOffset(block), new File(this.getFileName()));
+
+        int dataOffset = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH;
+        int dataLength = compressedSize - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH
+                - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        blockCursor.inflater.reset();
+        blockCursor.inflater.setInput(blockCursor.compressed, dataOffset, dataLength);
+        try {
+            int inflated = blockCursor.inflater.inflate(blockCursor.data, 0, uncompressedSize);
+            if (inflated != uncompressedSize) {
+                throw new IOException("Corrupted BGZF block " + block + " in file " + this.getFileName()
+                        + ": " + inflated + " bytes inflated, " + uncompressedSize + " expected");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupted BGZF block " + block + " in file " + this.getFileName() + ": " + ex.getMessage());
+        }
+        blockCursor.block = block;
+        blockCursor.start = this.blockIndex.getUncompressedStart(block);
+        blockCursor.length = uncompressedSize;
+    }
+
+    /**
+     * @return the block index of this file
+     */
+    public BGZFBlockIndex getBlockIndex() {
+        return blockIndex;
+    }
+
+    /**
+     * close the file
+     */
+    @Override
+    public void close() {
+        try {
+            this.file.close();
+        } catch (IOException ex) {
+            log.error(ex, "Cannot close file " + this.getFileName());
+        }
+        this.cursor.inflater.end();
+    }
+
+    /**
+     * the last block inflated for one reading thread
+     */
+    private static class BlockCursor {
+
+        private final byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+        private final byte[] data = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+        private final Inflater inflater = new Inflater(true);
+        private int block = -1;
+        private long start = 0;
+        private int length = 0;
+    }
+}
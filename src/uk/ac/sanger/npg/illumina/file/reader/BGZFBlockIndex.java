@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina.file.reader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import net.sf.picard.util.Log;
+import net.sf.samtools.util.BlockCompressedStreamConstants;
+
+/**
+ * Offsets of all blocks in a BGZF compressed file,
+ * both in the compressed file and in the uncompressed data,
+ * so that any uncompressed position can be found by inflating one block.
+ *
+ * The index is built by scanning the block headers of the file,
+ * or loaded from an index file written before next to the BGZF file.
+ */
+public class BGZFBlockIndex {
+
+    private static final Log log = Log.getInstance(BGZFBlockIndex.class);
+
+    /**
+     * suffix added to BGZF file name for its index file
+     */
+    public static final String INDEX_FILE_SUFFIX = ".idx";
+
+    private static final int INDEX_MAGIC = 0x42474958;
+
+    //compressed offset and uncompressed start of each block, one more entry for the end of file
+    private final long[] blockOffsets;
+    private final long[] uncompressedStarts;
+
+    private BGZFBlockIndex(long[] blockOffsets, long[] uncompressedStarts) {
+        this.blockOffsets = blockOffsets;
+        this.uncompressedStarts = uncompressedStarts;
+    }
+
+    /**
+     * load the index of a BGZF file from its index file if it is up to date, otherwise build it
+     *
+     * @param bgzfFile
+     * @return block index
+     * @throws IOException
+     */
+    public static BGZFBlockIndex getIndex(File bgzfFile) throws IOException {
+
+        File indexFile = new File(bgzfFile.getPath() + INDEX_FILE_SUFFIX);
+        if (indexFile.isFile() && indexFile.lastModified() >= bgzfFile.lastModified()) {
+            log.debug("Loading block index " + indexFile);
+            return load(indexFile);
+        }
+        return build(bgzfFile);
+    }
+
+    /**
+     * build the index by reading the header and footer of each block
+     *
+     * @param bgzfFile
+     * @return block index
+     * @throws IOException
+     */
+    public static BGZFBlockIndex build(File bgzfFile) throws IOException {
+
+        long[] blockOffsets = new long[1024];
+        long[] uncompressedStarts = new long[1024];
+        int blockCount = 0;
+
+        RandomAccessFile file = new RandomAccessFile(bgzfFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer footer = ByteBuffer.allocate(4);
+            footer.order(ByteOrder.LITTLE_ENDIAN);
+
+            long offset = 0;
+            long uncompressedStart = 0;
+            while (offset < fileSize) {
+                readFully(channel, header, offset, bgzfFile);
+                int blockSize = getBlockSize(header, offset, bgzfFile);
+                readFully(channel, footer, offset + blockSize - 4, bgzfFile);
+
+                if (blockCount + 1 >= blockOffsets.length) {
+                    blockOffsets = Arrays.copyOf(blockOffsets, blockOffsets.length * 2);
+                    uncompressedStarts = Arrays.copyOf(uncompressedStarts, uncompressedStarts.length * 2);
+                }
+                blockOffsets[blockCount] = offset;
+                uncompressedStarts[blockCount] = uncompressedStart;
+                blockCount++;
+
+                offset += blockSize;
+                uncompressedStart += footer.getInt(0) & 0xFFFFFFFFL;
+            }
+            if (offset != fileSize) {
+                throw new IOException("Last BGZF block truncated in file " + bgzfFile);
+            }
+            blockOffsets[blockCount] = offset;
+            uncompressedStarts[blockCount] = uncompressedStart;
+        } finally {
+            file.close();
+        }
+
+        log.debug("Built block index of " + blockCount + " blocks for " + bgzfFile);
+        return new BGZFBlockIndex(Arrays.copyOf(blockOffsets, blockCount + 1),
+                                  Arrays.copyOf(uncompressedStarts, blockCount + 1));
+    }
+
+    /**
+     * read from a channel at a position until the buffer is full
+     */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position, File file) throws IOException {
+
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read == -1) {
+                throw new IOException("Unexpected end of BGZF file " + file + " at " + (position + buffer.position()));
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * check a BGZF block header and get the total size of the block
+     */
+    static int getBlockSize(ByteBuffer header, long offset, File file) throws IOException {
+
+        if (header.get(0) != BlockCompressedStreamConstants.GZIP_ID1
+                || (header.get(1) & 0xFF) != BlockCompressedStreamConstants.GZIP_ID2
+                || (header.get(3) & BlockCompressedStreamConstants.GZIP_FLG) == 0
+                || header.get(12) != BlockCompressedStreamConstants.BGZF_ID1
+                || header.get(13) != BlockCompressedStreamConstants.BGZF_ID2) {
+            throw new IOException("Invalid BGZF block header in file " + file + " at " + offset);
+        }
+        return (header.getShort(BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) & 0xFFFF) + 1;
+    }
+
+    /**
+     * load an index written before
+     *
+     * @param indexFile
+     * @return block index
+     * @throws IOException
+     */
+    public static BGZFBlockIndex load(File indexFile) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != INDEX_MAGIC) {
+                throw new IOException("Not a BGZF block index file: " + indexFile);
+            }
+            int blockCount = in.readInt();
+            long[] blockOffsets = new long[blockCount + 1];
+            long[] uncompressedStarts = new long[blockCount + 1];
+            for (int i = 0; i <= blockCount; i++) {
+                blockOffsets[i] = in.readLong();
+                uncompressedStarts[i] = in.readLong();
+            }
+            return new BGZFBlockIndex(blockOffsets, uncompressedStarts);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * write this index to a file
+     *
+     * @param indexFile
+     * @throws IOException
+     */
+    public void write(File indexFile) throws IOException {
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(this.getBlockCount());
+            for (int i = 0; i < this.blockOffsets.length; i++) {
+                out.writeLong(this.blockOffsets[i]);
+                out.writeLong(this.uncompressedStarts[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * find the block containing an uncompressed position, skipping empty blocks
+     *
+     * @param uncompressedPosition
+     * @return block number, or the number of blocks if the position is at or after the end
+     */
+    public int findBlock(long uncompressedPosition) {
+
+        int blockCount = this.getBlockCount();
+        if (uncompressedPosition < 0) {
+            throw new IndexOutOfBoundsException("Negative uncompressed position: " + uncompressedPosition);
+        }
+        if (uncompressedPosition >= this.uncompressedStarts[blockCount]) {
+            return blockCount;
+        }
+        //last block starting at or before the position, which can not be empty
+        int block = Arrays.binarySearch(this.uncompressedStarts, 0, blockCount, uncompressedPosition);
+        if (block < 0) {
+            return -block - 2;
+        }
+        while (this.uncompressedStarts[block + 1] == uncompressedPosition) {
+            block++;
+        }
+        return block;
+    }
+
+    /**
+     * @return the number of blocks
+     */
+    public int getBlockCount() {
+        return this.blockOffsets.length - 1;
+    }
+
+    /**
+     * @param block block number
+     * @return the offset of the block in the compressed file
+     */
+    public long getBlockOffset(int block) {
+        return this.blockOffsets[block];
+    }
+
+    /**
+     * @param block block number
+     * @return the size of the block in the compressed file
+     */
+    public int getCompressedSize(int block) {
+        return (int) (this.blockOffsets[block + 1] - this.blockOffsets[block]);
+    }
+
+    /**
+     * @param block block number
+     * @return the position of the first byte of the block in the uncompressed data
+     */
+    public long getUncompressedStart(int block) {
+        return this.uncompressedStarts[block];
+    }
+
+    /**
+     * @param block block number
+     * @return the size of the block after inflating
+     */
+    public int getUncompressedSize(int block) {
+        return (int) (this.uncompressedStarts[block + 1] - this.uncompressedStarts[block]);
+    }
+
+    /**
+     * @return the total size of the uncompressed data
+     */
+    public long getUncompressedLength() {
+        return this.uncompressedStarts[this.getBlockCount()];
+    }
+}
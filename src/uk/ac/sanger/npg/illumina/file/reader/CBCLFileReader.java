@@ -0,0 +1,440 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina.file.reader;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import net.sf.picard.util.Log;
+
+/**
+ * This class is a reader of one tile in a cbcl file,
+ * which holds the base calls of one cycle for all tiles on one surface of a lane,
+ * L00[lane]/C[cycle].1/L00[lane]_[surface].cbcl.
+ *
+ * The header gives the quality bin remapping table and a compressed block for each tile.
+ * Only the block of the given tile is inflated, from the first read,
+ * window by window into a reusable array so that memory used does not depend on the number of clusters.
+ * Each cluster is packed in four bits, two bits of base and two bits of quality bin,
+ * and is returned as a bcl byte, so that base calls are decoded in the same way as bcl files.
+ * A cluster with quality bin 0 is a no call.
+ *
+ * If non-PF clusters are excluded from the file, the PF mask of the tile is needed
+ * to put the stored clusters back in their positions, with no calls for non-PF clusters.
+ */
+public class CBCLFileReader extends BCLFileReader {
+
+    private final Log log = Log.getInstance(CBCLFileReader.class);
+
+    /**
+     * suffix of cbcl file
+     */
+    public static final String CBCL_FILE_SUFFIX = ".cbcl";
+
+    private final Header header;
+    private final int tileNumber;
+    private final PFMask pfMask;
+
+    //number of bytes inflated in one go, two clusters in each byte
+    private static final int WINDOW_BYTES = 8192;
+
+    private final int tileIndex;
+    private final int storedClusters;
+
+    //block of the tile inflated from the first read
+    private InputStream blockStream = null;
+
+    //reusable window of inflated bytes, four bits per cluster, first cluster in low bits
+    private final byte[] packedWindow = new byte[WINDOW_BYTES];
+    private int windowPosition = 0;
+    private int windowClusters = 0;
+    private int storedClustersInflated = 0;
+
+    //bcl byte for each four bits of base and quality bin
+    private final byte[] bclByteLookup = new byte[16];
+
+    /**
+     * constructor to read the header of a cbcl file to read the block of a tile
+     *
+     * @param cbclFileName cbcl file name
+     * @param tileNumber tile to read
+     * @param pfMask PF mask of the tile, only needed if non-PF clusters excluded
+     * @throws Exception
+     */
+    public CBCLFileReader(String cbclFileName, int tileNumber, PFMask pfMask) throws Exception {
+
+        this(cbclFileName, tileNumber, pfMask, null);
+    }
+
+    /**
+     * constructor to read the block of a tile from a cbcl file with its header read before
+     *
+     * @param cbclFileName cbcl file name
+     * @param tileNumber tile to read
+     * @param pfMask PF mask of the tile, only needed if non-PF clusters excluded
+     * @param header header of the cbcl file, null to read it from the file
+     * @throws Exception
+     */
+    public CBCLFileReader(String cbclFileName, int tileNumber, PFMask pfMask, Header header) throws Exception {
+
+        super(new File(cbclFileName));
+        this.header = (header != null) ? header : readHeader(new File(cbclFileName));
+        this.tileNumber = tileNumber;
+
+        if (this.header.bitsPerBasecall != 2 || this.header.bitsPerQualityScore != 2) {
+            throw new IllegalArgumentException("Only two bits per base call and two bits per quality score supported in cbcl file "
+                    + cbclFileName + ": " + this.header.bitsPerBasecall + " " + this.header.bitsPerQualityScore);
+        }
+
+        this.tileIndex = this.header.getTileIndex(tileNumber);
+        if (this.tileIndex < 0) {
+            throw new IllegalArgumentException("Tile " + tileNumber + " not in cbcl file " + cbclFileName);
+        }
+
+        this.storedClusters = this.header.clusterCounts[this.tileIndex];
+        if (this.header.uncompressedSizes[this.tileIndex] < (this.storedClusters + 1) / 2) {
+            throw new IOException("Block of tile " + tileNumber + " too short for " + this.storedClusters
+                    + " clusters in cbcl file " + cbclFileName);
+        }
+
+        if (this.header.pfExcluded) {
+            if (pfMask == null) {
+                throw new IllegalArgumentException("PF mask needed for cbcl file with non-PF clusters excluded: " + cbclFileName);
+            }
+            if (pfMask.getPfClusters() != this.storedClusters) {
+                throw new Exception("Number of PF clusters " + pfMask.getPfClusters() + " does not match number of clusters "
+                        + this.storedClusters + " of tile " + tileNumber + " in cbcl file " + cbclFileName);
+            }
+            this.pfMask = pfMask;
+            this.totalClusters = pfMask.getTotalClusters();
+        } else {
+            this.pfMask = null;
+            this.totalClusters = this.storedClusters;
+        }
+
+        for (int bits = 0; bits < 16; bits++) {
+            int quality = this.header.qualityByBin[bits >> 2];
+            this.bclByteLookup[bits] = ((bits >> 2) == 0 || quality == 0) ? 0 : (byte) ((quality << 2) | (bits & 0x3));
+        }
+
+        log.debug("The total number of clusters:" + this.getTotalClusters() + " of tile " + tileNumber + " in " + this.getFileName() );
+    }
+
+    /**
+     * open the compressed block of the tile, limited to the block so that the next tile is not inflated
+     */
+    private InputStream openBlock() throws IOException {
+
+        final long blockLength = this.header.compressedSizes[this.tileIndex];
+        FileInputStream file = new FileInputStream(this.getFileName());
+        try {
+            file.getChannel().position(this.header.blockOffsets[this.tileIndex]);
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        }
+        InputStream block = new FilterInputStream(new BufferedInputStream(file, WINDOW_BYTES)) {
+
+            private long remaining = blockLength;
+
+            @Override
+            public int read() throws IOException {
+                if (this.remaining <= 0) {
+                    return -1;
+                }
+                int value = super.read();
+                if (value != -1) {
+                    this.remaining--;
+                }
+                return value;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (this.remaining <= 0) {
+                    return -1;
+                }
+                int read = super.read(b, off, (int) Math.min(len, this.remaining));
+                if (read > 0) {
+                    this.remaining -= read;
+                }
+                return read;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(super.available(), this.remaining);
+            }
+        };
+        return new GZIPInputStream(block, WINDOW_BYTES);
+    }
+
+    /**
+     * inflate the next window of the block, only as many bytes as the clusters left
+     */
+    private void fillWindow() throws IOException {
+
+        if (this.blockStream == null) {
+            this.blockStream = this.openBlock();
+        }
+        int clustersLeft = this.storedClusters - this.storedClustersInflated;
+        int bytesToRead = Math.min(WINDOW_BYTES, (clustersLeft + 1) / 2);
+        int total = 0;
+        while (total < bytesToRead) {
+            int read = this.blockStream.read(this.packedWindow, total, bytesToRead - total);
+            if (read == -1) {
+                throw new IOException("Block of tile " + this.tileNumber + " inflated to less than "
+                        + (this.storedClusters + 1) / 2 + " bytes in cbcl file " + this.getFileName());
+            }
+            total += read;
+        }
+        this.windowPosition = 0;
+        this.windowClusters = Math.min(2 * bytesToRead, clustersLeft);
+        this.storedClustersInflated += this.windowClusters;
+    }
+
+    /**
+     * unpack the bcl bytes of the next stored clusters
+     */
+    private void unpack(byte[] dst, int offset, int count) throws IOException {
+
+        int end = offset + count;
+        while (offset < end) {
+            if (this.windowPosition == this.windowClusters) {
+                this.fillWindow();
+            }
+            int n = Math.min(end - offset, this.windowClusters - this.windowPosition);
+            for (int stored = this.windowPosition; stored < this.windowPosition + n; stored++) {
+                int bits = (this.packedWindow[stored >> 1] >> ((stored & 1) << 2)) & 0xF;
+                dst[offset++] = this.bclByteLookup[bits];
+            }
+            this.windowPosition += n;
+        }
+    }
+
+    /**
+     * read bcl bytes of a run of clusters, no call for non-PF clusters excluded from the file
+     *
+     * @param dst array to store bcl bytes
+     * @param offset the start position in the array
+     * @param length the maximum number of clusters to read
+     * @return the number of clusters read, -1 if no more cluster
+     * @throws IOException
+     */
+    @Override
+    public int read(byte[] dst, int offset, int length) throws IOException {
+
+        int count = Math.min(length, this.getTotalClusters() - this.getCurrentCluster());
+        if (count <= 0) {
+            return -1;
+        }
+        if (this.pfMask == null) {
+            this.unpack(dst, offset, count);
+        } else {
+            //runs of PF clusters unpacked, runs of non-PF clusters filled with no calls
+            int cluster = this.getCurrentCluster();
+            int end = cluster + count;
+            while (cluster < end) {
+                int pfStart = Math.min(this.pfMask.nextPf(cluster), end);
+                Arrays.fill(dst, offset + cluster - this.getCurrentCluster(), offset + pfStart - this.getCurrentCluster(), (byte) 0);
+                int pfEnd = Math.min(this.pfMask.nextNonPf(pfStart), end);
+                this.unpack(dst, offset + pfStart - this.getCurrentCluster(), pfEnd - pfStart);
+                cluster = pfEnd;
+            }
+        }
+        this.currentCluster += count;
+        return count;
+    }
+
+    /**
+     * @return the tile number
+     */
+    public int getTileNumber() {
+        return tileNumber;
+    }
+
+    /**
+     * @return the header
+     */
+    public Header getHeader() {
+        return header;
+    }
+
+    /**
+     * close the block of the tile if inflated
+     */
+    @Override
+    public void close() {
+        if (this.blockStream != null) {
+            try {
+                this.blockStream.close();
+            } catch (IOException ex) {
+                log.error(ex, "Cannot close file " + this.getFileName());
+            }
+            this.blockStream = null;
+        }
+    }
+
+    /**
+     * read the header of a cbcl file, all numbers little endian
+     *
+     * @param cbclFile
+     * @return header
+     * @throws IOException
+     */
+    public static Header readHeader(File cbclFile) throws IOException {
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cbclFile)));
+        try {
+            Header header = new Header();
+            header.version = readUnsignedShort(in);
+            header.headerSize = readInt(in);
+            header.bitsPerBasecall = in.readUnsignedByte();
+            header.bitsPerQualityScore = in.readUnsignedByte();
+
+            int numberOfBins = readInt(in);
+            header.qualityByBin = new int[1 << header.bitsPerQualityScore];
+            for (int bin = 0; bin < header.qualityByBin.length; bin++) {
+                header.qualityByBin[bin] = bin;
+            }
+            for (int i = 0; i < numberOfBins; i++) {
+                int bin = readInt(in);
+                int quality = readInt(in);
+                if (bin < 0 || bin >= header.qualityByBin.length) {
+                    throw new IOException("Quality bin " + bin + " out of range in cbcl file " + cbclFile);
+                }
+                header.qualityByBin[bin] = quality;
+            }
+
+            int numberOfTiles = readInt(in);
+            header.tileNumbers = new int[numberOfTiles];
+            header.clusterCounts = new int[numberOfTiles];
+            header.uncompressedSizes = new int[numberOfTiles];
+            header.compressedSizes = new int[numberOfTiles];
+            header.blockOffsets = new long[numberOfTiles];
+            long blockOffset = header.headerSize;
+            for (int i = 0; i < numberOfTiles; i++) {
+                header.tileNumbers[i] = readInt(in);
+                header.clusterCounts[i] = readInt(in);
+                header.uncompressedSizes[i] = readInt(in);
+                header.compressedSizes[i] = readInt(in);
+                header.blockOffsets[i] = blockOffset;
+                blockOffset += header.compressedSizes[i];
+            }
+            header.pfExcluded = in.readUnsignedByte() != 0;
+
+            if (blockOffset > cbclFile.length()) {
+                throw new IOException("Tile blocks beyond the end of cbcl file " + cbclFile);
+            }
+            return header;
+        } catch (EOFException ex) {
+            throw new IOException("Incomplete header in cbcl file " + cbclFile);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readUnsignedShort(DataInputStream in) throws IOException {
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        return b0 | (b1 << 8);
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        int b2 = in.readUnsignedByte();
+        int b3 = in.readUnsignedByte();
+        return b0 | (b1 << 8) | (b2 << 16) | (b3 << 24);
+    }
+
+    /**
+     * header of a cbcl file
+     */
+    public static class Header {
+
+        private int version;
+        private int headerSize;
+        private int bitsPerBasecall;
+        private int bitsPerQualityScore;
+        private int[] qualityByBin;
+        private int[] tileNumbers;
+        private int[] clusterCounts;
+        private int[] uncompressedSizes;
+        private int[] compressedSizes;
+        private long[] blockOffsets;
+        private boolean pfExcluded;
+
+        private Header() {
+        }
+
+        /**
+         * @param tileNumber
+         * @return position of the tile in the file, -1 if not in the file
+         */
+        public int getTileIndex(int tileNumber) {
+            for (int i = 0; i < this.tileNumbers.length; i++) {
+                if (this.tileNumbers[i] == tileNumber) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the version
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the quality score of each quality bin
+         */
+        public int[] getQualityByBin() {
+            return qualityByBin.clone();
+        }
+
+        /**
+         * @return the tile numbers in the order of their blocks in the file
+         */
+        public int[] getTileNumbers() {
+            return tileNumbers.clone();
+        }
+
+        /**
+         * @param tileNumber
+         * @return the number of clusters stored for a tile
+         */
+        public int getClusterCount(int tileNumber) {
+            int tileIndex = this.getTileIndex(tileNumber);
+            if (tileIndex < 0) {
+                throw new IllegalArgumentException("Tile " + tileNumber + " not in cbcl file");
+            }
+            return clusterCounts[tileIndex];
+        }
+
+        /**
+         * @return true if non-PF clusters are not stored in the file
+         */
+        public boolean isPfExcluded() {
+            return pfExcluded;
+        }
+    }
+}
@@ -18,6 +18,7 @@
  */
 package uk.ac.sanger.npg.illumina.file.reader;
 
+import java.io.EOFException;
 import java.io.IOException;
 import net.sf.picard.util.Log;
 
@@ -38,6 +39,7 @@ public class CLocsFileReader extends PositionFileReader {
     private int totalBlocks;
     private int currentBlock = 0;
     private int currentBlockUnreadClusters;
+    private final int[] nextPosition = new int[2];
 
     /**
      * Constructor
@@ -59,18 +61,18 @@ public class CLocsFileReader extends PositionFileReader {
     private void readFileHeader() throws Exception {
 
         //check file version number from first byte
-        int clocsVersion = this.inputStream.readUnsignedByte();
+        int clocsVersion = this.readUnsignedByte();
         if (this.EXPECTED_CLOCS_VERSION != clocsVersion) {
             log.error("Unexpected version byte" + clocsVersion);
             throw new Exception("Unexpected version: " + clocsVersion);
         }
 
         //read blocksCount from next four bytes
-        totalBlocks = this.readFourBytes(inputStream);
+        totalBlocks = this.readFourBytes();
         log.info("Total blocks count " + this.getTotalBlocks());
 
         //read first block from next byte
-        this.currentBlockUnreadClusters = inputStream.readUnsignedByte();
+        this.currentBlockUnreadClusters = this.readUnsignedByte();
         this.currentBlock++;
     }
 
@@ -108,29 +110,14 @@ public class CLocsFileReader extends PositionFileReader {
         }
 
         try {
-            while (this.currentBlockUnreadClusters-- == 0 && this.getCurrentBlock() < this.getTotalBlocks()) {
-
-                this.currentBlockUnreadClusters = inputStream.readUnsignedByte();
-                ++currentBlock;
-            }
-
-            if (this.currentBlockUnreadClusters < 0) {
-                log.warn("There is no more block in " + this.getFileName() + ". Current block: " + this.getCurrentBlock());
+            if (!this.nextXY(this.nextPosition)) {
                 return null;
             }
 
-            int dx = inputStream.readUnsignedByte();
-            int dy = inputStream.readUnsignedByte();
-
-            int x = 10 * BLOCK_SIZE * ((getCurrentBlock() - 1) % BLOCKS_PER_LINE) + dx + 1000;
-            int y = 10 * BLOCK_SIZE * ((getCurrentBlock() - 1) / BLOCKS_PER_LINE) + dy + 1000;
-
             String[] pos = new String[2];
             
-            pos[0] = Integer.toString(x);
-            pos[1] = Integer.toString(y);
-
-            this.currentTotalClusters++;
+            pos[0] = Integer.toString(this.nextPosition[0]);
+            pos[1] = Integer.toString(this.nextPosition[1]);
 
             return new PositionFileReader.Position(pos[0],pos[1]);
 
@@ -141,6 +128,66 @@ public class CLocsFileReader extends PositionFileReader {
         return null;
     }
 
+    /**
+     * 
+     * @param xy array to store x and y coordinates
+     * @return true if a cluster read, false if no more cluster in the rest of blocks
+     * @throws IOException 
+     */
+    @Override
+    public boolean nextXY(int[] xy) throws IOException {
+
+        while (this.currentBlockUnreadClusters-- <= 0) {
+            if (this.getCurrentBlock() >= this.getTotalBlocks()) {
+                this.currentBlockUnreadClusters = 0;
+                log.warn("There is no more block in " + this.getFileName() + ". Current block: " + this.getCurrentBlock());
+                return false;
+            }
+            this.currentBlockUnreadClusters = this.readUnsignedByte();
+            ++currentBlock;
+        }
+
+        int dx = this.readUnsignedByte();
+        int dy = this.readUnsignedByte();
+
+        xy[0] = 10 * BLOCK_SIZE * ((getCurrentBlock() - 1) % BLOCKS_PER_LINE) + dx + 1000;
+        xy[1] = 10 * BLOCK_SIZE * ((getCurrentBlock() - 1) / BLOCKS_PER_LINE) + dy + 1000;
+
+        this.currentTotalClusters++;
+        return true;
+    }
+
+    /**
+     * skip the remaining clusters of each block in one read
+     * 
+     * @param clusters
+     * @return the number of clusters skipped
+     * @throws IOException 
+     */
+    @Override
+    public int skip(int clusters) throws IOException {
+
+        int skipped = 0;
+        while (skipped < clusters) {
+            if (this.currentBlockUnreadClusters <= 0) {
+                if (this.getCurrentBlock() >= this.getTotalBlocks()) {
+                    break;
+                }
+                this.currentBlockUnreadClusters = this.readUnsignedByte();
+                ++currentBlock;
+                continue;
+            }
+            int count = Math.min(clusters - skipped, this.currentBlockUnreadClusters);
+            if (this.skipBytes(2 * count) < 2 * count) {
+                throw new EOFException("Block " + this.getCurrentBlock() + " incomplete in clocs file " + this.getFileName());
+            }
+            this.currentBlockUnreadClusters -= count;
+            this.currentTotalClusters += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
     /**
      * @return the totalBlocks
      */
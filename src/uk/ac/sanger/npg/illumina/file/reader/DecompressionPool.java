@@ -0,0 +1,310 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina.file.reader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import net.sf.picard.util.Log;
+
+/**
+ * A pool of threads to inflate gzipped Illumina files ahead of their readers.
+ *
+ * Each file opened through the pool gets a bounded ring of blocks.
+ * A pool thread inflates one block at a time for a file and queues itself again while the ring has room,
+ * so that many files can be inflated at the same time by fewer threads,
+ * and a file whose reader is behind never holds a thread.
+ */
+public class DecompressionPool {
+
+    private final Log log = Log.getInstance(DecompressionPool.class);
+
+    /**
+     * size of each inflated block
+     */
+    public static final int BLOCK_SIZE = 65536;
+
+    /**
+     * default number of blocks inflated ahead of the reader for each file
+     */
+    public static final int DEFAULT_READ_AHEAD_BLOCKS = 4;
+
+    //milliseconds between checks whether the pool shut down while waiting for a block
+    private static final long SHUTDOWN_CHECK_INTERVAL = 1000;
+
+    private final ExecutorService executor;
+    private final int readAheadBlocks;
+
+    /**
+     *
+     * @param threads number of threads to inflate files
+     * @param readAheadBlocks number of blocks inflated ahead of the reader for each file
+     */
+    public DecompressionPool(int threads, int readAheadBlocks) {
+
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of decompression threads must be positive: " + threads);
+        }
+        if (readAheadBlocks < 1) {
+            throw new IllegalArgumentException("Number of read ahead blocks must be positive: " + readAheadBlocks);
+        }
+        this.readAheadBlocks = readAheadBlocks;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            private int count = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "decompression-" + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        log.info("Inflating gzipped files with " + threads + " threads, " + readAheadBlocks + " blocks ahead per file");
+    }
+
+    /**
+     * open a gzipped file and start inflating it in the pool
+     *
+     * @param file gzipped file
+     * @return input stream of inflated data
+     * @throws IOException
+     */
+    public InputStream openGzipFile(File file) throws IOException {
+
+        ReadAheadInputStream inputStream =
+                new ReadAheadInputStream(new GZIPInputStream(new FileInputStream(file), BLOCK_SIZE), file.getPath());
+        synchronized (inputStream) {
+            inputStream.schedule();
+        }
+        return inputStream;
+    }
+
+    /**
+     * stop all threads, files still open can not be read any more
+     */
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * inflated input stream, filled by the pool through a bounded ring of blocks
+     */
+    private class ReadAheadInputStream extends InputStream implements Runnable {
+
+        private final InputStream source;
+        private final String fileName;
+
+        //blocks inflated but not read yet, and blocks free to be filled
+        private final LinkedList<byte[]> filledBlocks = new LinkedList<byte[]>();
+        private final LinkedList<Integer> filledLengths = new LinkedList<Integer>();
+        private final LinkedList<byte[]> freeBlocks = new LinkedList<byte[]>();
+
+        private boolean scheduled = false;
+        private boolean endOfSource = false;
+        private boolean closed = false;
+        private IOException error = null;
+
+        //block being read
+        private byte[] currentBlock = null;
+        private int currentLength = 0;
+        private int currentPosition = 0;
+
+        ReadAheadInputStream(InputStream source, String fileName) {
+
+            this.source = source;
+            this.fileName = fileName;
+            for (int i = 0; i <= readAheadBlocks; i++) {
+                this.freeBlocks.add(new byte[BLOCK_SIZE]);
+            }
+        }
+
+        /**
+         * queue this stream to inflate a block if there is a free block and it is not queued already,
+         * must be called holding the lock of this stream
+         */
+        private void schedule() {
+
+            if (this.scheduled || this.endOfSource || this.closed || this.error != null || this.freeBlocks.isEmpty()) {
+                return;
+            }
+            this.scheduled = true;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException ex) {
+                this.scheduled = false;
+                this.error = new IOException("Decompression pool shut down while inflating " + this.fileName);
+                this.notifyAll();
+            }
+        }
+
+        /**
+         * inflate one block in a pool thread
+         */
+        @Override
+        public void run() {
+
+            byte[] block;
+            synchronized (this) {
+                block = this.freeBlocks.poll();
+            }
+
+            int length = 0;
+            boolean end = false;
+            IOException exception = null;
+            try {
+                while (length < block.length) {
+                    int read = this.source.read(block, length, block.length - length);
+                    if (read == -1) {
+                        end = true;
+                        break;
+                    }
+                    length += read;
+                }
+            } catch (IOException ex) {
+                exception = ex;
+            }
+
+            synchronized (this) {
+                this.scheduled = false;
+                if (length > 0) {
+                    this.filledBlocks.add(block);
+                    this.filledLengths.add(length);
+                } else {
+                    this.freeBlocks.add(block);
+                }
+                this.endOfSource = end;
+                this.error = exception;
+                if (this.closed || end || exception != null) {
+                    this.closeSource();
+                } else {
+                    this.schedule();
+                }
+                this.notifyAll();
+            }
+        }
+
+        /**
+         * make sure there is a block with unread data
+         * @return false if no more data
+         * @throws IOException
+         */
+        private boolean nextBlock() throws IOException {
+
+            if (this.currentBlock != null && this.currentPosition < this.currentLength) {
+                return true;
+            }
+
+            synchronized (this) {
+                if (this.currentBlock != null) {
+                    this.freeBlocks.add(this.currentBlock);
+                    this.currentBlock = null;
+                }
+                this.schedule();
+                while (this.filledBlocks.isEmpty() && !this.endOfSource && this.error == null && !this.closed) {
+                    try {
+                        this.wait(SHUTDOWN_CHECK_INTERVAL);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for " + this.fileName + " to be inflated");
+                    }
+                    //queued tasks are dropped when the pool shut down
+                    if (this.filledBlocks.isEmpty() && executor.isTerminated()) {
+                        this.error = new IOException("Decompression pool shut down while inflating " + this.fileName);
+                    }
+                }
+                if (this.filledBlocks.isEmpty()) {
+                    if (this.error != null) {
+                        throw this.error;
+                    }
+                    return false;
+                }
+                this.currentBlock = this.filledBlocks.poll();
+                this.currentLength = this.filledLengths.poll();
+                this.currentPosition = 0;
+                this.schedule();
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            if (!this.nextBlock()) {
+                return -1;
+            }
+            return this.currentBlock[this.currentPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] dst, int offset, int length) throws IOException {
+
+            if (length == 0) {
+                return 0;
+            }
+            if (!this.nextBlock()) {
+                return -1;
+            }
+            int count = Math.min(length, this.currentLength - this.currentPosition);
+            System.arraycopy(this.currentBlock, this.currentPosition, dst, offset, count);
+            this.currentPosition += count;
+            return count;
+        }
+
+        @Override
+        public synchronized int available() {
+
+            int available = this.currentLength - this.currentPosition;
+            for (int length : this.filledLengths) {
+                available += length;
+            }
+            return available;
+        }
+
+        @Override
+        public synchronized void close() {
+
+            this.closed = true;
+            this.currentBlock = null;
+            this.currentLength = 0;
+            this.currentPosition = 0;
+            this.filledBlocks.clear();
+            this.filledLengths.clear();
+            if (!this.scheduled) {
+                this.closeSource();
+            }
+            this.notifyAll();
+        }
+
+        private void closeSource() {
+            try {
+                this.source.close();
+            } catch (IOException ex) {
+                log.error(ex, "Cannot close file " + this.fileName);
+            }
+        }
+    }
+}
@@ -35,6 +35,7 @@ public class FilterFileReader extends IlluminaFileReader {
     private int currentCluster = 0;
     private int totalClusters = 0;
     private int currentPFClusters = 0;
+    private final byte[] nextCluster = new byte[1];
 
     /**
      *
@@ -55,7 +56,7 @@ public class FilterFileReader extends IlluminaFileReader {
 
         //fisrt four bytes are empty
         //it should be zero for new version of filter file, backward compatibility
-        int emptyBytes = this.readFourBytes(inputStream);
+        int emptyBytes = this.readFourBytes();
         if (emptyBytes != 0) {
             
             log.warn("The first four bytes are not zero: " + emptyBytes + ". This is an old format filter file.");
@@ -64,14 +65,14 @@ public class FilterFileReader extends IlluminaFileReader {
         }
 
         //next four bytes should be version and greater or equal to the expected
-        int version = this.readFourBytes(inputStream);
+        int version = this.readFourBytes();
         if (version != this.EXPECTED_FILTER_VERSION) {
             log.error("Unexpected version byte: " + version);
             throw new Exception("Unexpected version number in filter file");
         }
 
         //next four bytes should be the total number of clusters
-        this.totalClusters = this.readFourBytes(inputStream);
+        this.totalClusters = this.readFourBytes();
         log.info("The total number of clusters: " + this.getTotalClusters());
     }
 
@@ -85,20 +86,11 @@ public class FilterFileReader extends IlluminaFileReader {
     public Object next() {
 
         try {
-            int nextByte = this.inputStream.read();
-
-            if (nextByte == -1) {
+            if (this.read(this.nextCluster, 0, 1) == -1) {
                 log.warn("There is no more cluster in Filter file after cluster " + this.getCurrentCluster() + " in file " + this.getFileName());
                 return null;
             }
-
-            this.currentCluster++;
-            nextByte = nextByte & 0x1;
-            if (nextByte == 1) {
-                this.currentPFClusters++;
-            }
-
-            return new Integer(nextByte);
+            return Integer.valueOf(this.nextCluster[0]);
 
         } catch (IOException ex) {
             log.error(ex, "Problems to read filter file");
@@ -107,6 +99,58 @@ public class FilterFileReader extends IlluminaFileReader {
         return null;
     }
 
+    /**
+     * read pass filter flags of a run of clusters, 1 for PF cluster and 0 for not
+     * 
+     * @param dst array to store filter flags
+     * @param offset the start position in the array
+     * @param length the maximum number of clusters to read
+     * @return the number of clusters read, -1 if no more cluster
+     * @throws IOException 
+     */
+    @Override
+    public int read(byte[] dst, int offset, int length) throws IOException {
+
+        int count = Math.min(length, this.getTotalClusters() - this.getCurrentCluster());
+        if (count <= 0) {
+            return -1;
+        }
+        int read = this.readBytes(dst, offset, count);
+        if (read == 0) {
+            return -1;
+        }
+
+        int end = offset + read;
+        for (int i = offset; i < end; i++) {
+            byte filtered = (byte) (dst[i] & 0x1);
+            dst[i] = filtered;
+            this.currentPFClusters += filtered;
+        }
+        this.currentCluster += read;
+        return read;
+    }
+
+    /**
+     * read pass filter flags of all remaining clusters in one bulk read into a mask,
+     * the mask being shorter than the total number of clusters if the file is truncated
+     *
+     * @return PF mask from the current cluster to the end of the file
+     * @throws IOException
+     */
+    public PFMask readPFMask() throws IOException {
+
+        byte[] flags = new byte[Math.max(this.getTotalClusters() - this.getCurrentCluster(), 0)];
+        int count = 0;
+        int read;
+        while (count < flags.length && (read = this.read(flags, count, flags.length - count)) != -1) {
+            count += read;
+        }
+        if (count < flags.length) {
+            log.warn("There is no more cluster in Filter file after cluster " + this.getCurrentCluster() + " in file " + this.getFileName());
+        }
+        return new PFMask(flags, count);
+    }
+
     /**
      * @return the currentCluster
      */
@@ -19,13 +19,20 @@
 package uk.ac.sanger.npg.illumina.file.reader;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Iterator;
 import java.util.zip.GZIPInputStream;
 import net.sf.picard.util.Log;
 
 
 /**
- * This class tries to open a Illumina file into a data input stream. 
+ * This class tries to open a Illumina file into a channel read through a direct byte buffer,
+ * the file channel for an uncompressed file, or a channel over the inflating stream for a gzipped file.
+ * Numbers are read from the buffer in little endian order.
  * It is a base class for all file reader classes.
  * 
  * @author gq1@sanger.ac.uk
@@ -33,9 +40,17 @@ import net.sf.picard.util.Log;
 public class IlluminaFileReader implements Iterator<Object>, Closeable {
     
     private final Log log = Log.getInstance(IlluminaFileReader.class);
+
+    /**
+     * default size of the buffer of a reader
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
     
     protected final String fileName;
-    protected DataInputStream inputStream;
+    private ReadableByteChannel channel;
+    private FileChannel fileChannel;
+    private ByteBuffer buffer;
+    private boolean endOfFile = false;
 
     /**
      *
@@ -44,16 +59,68 @@ public class IlluminaFileReader implements Iterator<Object>, Closeable {
      */
     public IlluminaFileReader(String fileName) throws FileNotFoundException, IOException {
 
+        this(fileName, null);
+    }
+
+    /**
+     *
+     * @param fileName bcl, scl, clocs, locs, pos and filter etc Illumina file name
+     * @param decompressionPool pool to inflate a gzipped file ahead of reading, null to inflate it when reading
+     * @throws FileNotFoundException, IOException
+     */
+    public IlluminaFileReader(String fileName, DecompressionPool decompressionPool) throws FileNotFoundException, IOException {
+
+        this(fileName, decompressionPool, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     *
+     * @param fileName bcl, scl, clocs, locs, pos and filter etc Illumina file name
+     * @param decompressionPool pool to inflate a gzipped file ahead of reading, null to inflate it when reading
+     * @param bufferSize size of the buffer between the file and the reader, bigger for sequential reading of big files
+     * @throws FileNotFoundException, IOException
+     */
+    public IlluminaFileReader(String fileName, DecompressionPool decompressionPool, int bufferSize) throws FileNotFoundException, IOException {
+
+        if (bufferSize < 8) {
+            throw new IllegalArgumentException("Buffer size too small: " + bufferSize);
+        }
         this.fileName = fileName;
-        this.openInputFile(fileName);
+        this.openInputFile(fileName, decompressionPool);
+        this.buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        this.buffer.limit(0);
+    }
+
+    /**
+     * constructor for subclasses which may read the file themselves without a channel
+     * 
+     * @param file bcl, scl, clocs, locs, pos and filter etc Illumina file
+     * @param openChannel open a channel to read the file through a buffer,
+     * or only check the file is a readable uncompressed file
+     * @throws FileNotFoundException, IOException
+     */
+    protected IlluminaFileReader(File file, boolean openChannel) throws FileNotFoundException, IOException {
+
+        if (file == null) {
+            throw new IllegalArgumentException("File name must be given.");
+        }
+        this.fileName = file.getPath();
+        if (openChannel) {
+            this.openInputFile(this.fileName, null);
+            this.buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            this.buffer.limit(0);
+        } else {
+            this.checkInputFile(file);
+        }
     }
 
     /**
      * check file, open it if it is valid
      * @param fileName
+     * @param decompressionPool
      * @throws Exception
      */
-    private void openInputFile(String fileName) throws FileNotFoundException, IOException {
+    private void openInputFile(String fileName, DecompressionPool decompressionPool) throws FileNotFoundException, IOException {
         /*
           fileName is not necessarily a complete path.
           If fileName ends with .gz, assume it is the path to a gzipped file.
@@ -72,29 +139,38 @@ public class IlluminaFileReader implements Iterator<Object>, Closeable {
                 file = new File(fileName+".gz");
             }
             // check validity of File object and open relevant input stream
-            if (!file.exists()) {
-                throw new FileNotFoundException("Input does not exist: " 
-                                                + fileName);
-            } else if (file.isDirectory()) {
-                throw new IllegalArgumentException("File name is a directory: " 
-                                                   + fileName);
-            } else if (!file.canRead()) {
-                throw new FileNotFoundException("Input cannot be read: " 
-                                                + fileName);
+            this.checkInputFile(file);
+            if (gzip && decompressionPool != null) {
+                this.channel = Channels.newChannel(decompressionPool.openGzipFile(file));
+            } else if (gzip) {
+                // constructor may throw IOException
+                this.channel = Channels.newChannel(new GZIPInputStream(new FileInputStream(file)));
             } else {
-                InputStream inputBase;
-                if (gzip) {
-                    // constructor may throw IOException
-                    inputBase = new GZIPInputStream(new FileInputStream(file));
-                } else {
-                    inputBase = new FileInputStream(file);
-                }
-                this.inputStream = 
-                    new DataInputStream(new BufferedInputStream(inputBase));
+                this.fileChannel = new FileInputStream(file).getChannel();
+                this.channel = this.fileChannel;
             }
         }
     }
 
+    /**
+     * check a file exists, is not a directory and is readable
+     * @param file
+     * @throws FileNotFoundException 
+     */
+    private void checkInputFile(File file) throws FileNotFoundException {
+
+        if (!file.exists()) {
+            throw new FileNotFoundException("Input does not exist: " 
+                                            + fileName);
+        } else if (file.isDirectory()) {
+            throw new IllegalArgumentException("File name is a directory: " 
+                                               + fileName);
+        } else if (!file.canRead()) {
+            throw new FileNotFoundException("Input cannot be read: " 
+                                            + fileName);
+        }
+    }
+
     @Override
     public boolean hasNext() {
         throw new UnsupportedOperationException("Not supported yet.");
@@ -110,15 +186,141 @@ public class IlluminaFileReader implements Iterator<Object>, Closeable {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    /**
+     * read the values of a run of clusters into a byte array, one byte per cluster,
+     * raw bytes from the current position of the file here, decoded by subclasses
+     * 
+     * @param dst array to store the values
+     * @param offset the start position in the array
+     * @param length the maximum number of clusters to read
+     * @return the number of clusters read, -1 if no more cluster
+     * @throws IOException 
+     */
+    public int read(byte[] dst, int offset, int length) throws IOException {
+
+        if (length <= 0) {
+            return 0;
+        }
+        int read = this.readBytes(dst, offset, length);
+        return (read > 0) ? read : -1;
+    }
+
+    /**
+     * read bytes from its buffer until the given length or the end of the file
+     * 
+     * @param dst
+     * @param offset
+     * @param length
+     * @return the number of bytes read, less than length only at the end of the file
+     * @throws IOException 
+     */
+    protected int readBytes(byte[] dst, int offset, int length) throws IOException {
+
+        int total = 0;
+        while (total < length) {
+            if (!this.buffer.hasRemaining() && !this.fillBuffer(1)) {
+                break;
+            }
+            int count = Math.min(length - total, this.buffer.remaining());
+            this.buffer.get(dst, offset + total, count);
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * read from the channel until at least the given number of bytes in the buffer,
+     * or the end of the file
+     * 
+     * @param needed number of bytes needed, no more than the buffer size
+     * @return true if the bytes needed are in the buffer
+     * @throws IOException 
+     */
+    private boolean fillBuffer(int needed) throws IOException {
+
+        if (this.buffer.remaining() >= needed) {
+            return true;
+        }
+        this.buffer.compact();
+        while (this.buffer.position() < needed && !this.endOfFile) {
+            if (this.channel.read(this.buffer) == -1) {
+                this.endOfFile = true;
+            }
+        }
+        this.buffer.flip();
+        return this.buffer.remaining() >= needed;
+    }
+
+    /**
+     * make sure some bytes are in the buffer to read a number
+     */
+    private void requireBytes(int needed) throws IOException {
+
+        if (!this.fillBuffer(needed)) {
+            throw new EOFException("Less than " + needed + " bytes left in file " + this.fileName);
+        }
+    }
+
+    /**
+     * read one unsigned byte
+     * 
+     * @return an unsigned byte
+     * @throws IOException, EOFException at the end of the file
+     */
+    protected int readUnsignedByte() throws IOException {
+
+        this.requireBytes(1);
+        return this.buffer.get() & 0xFF;
+    }
+
+    /**
+     * read a little endian float
+     * 
+     * @return a float
+     * @throws IOException, EOFException at the end of the file
+     */
+    protected float readFloat() throws IOException {
+
+        this.requireBytes(4);
+        return this.buffer.getFloat();
+    }
+
+    /**
+     * skip bytes until the given length or the end of the file,
+     * moving the file position without reading if not compressed
+     * 
+     * @param length
+     * @return the number of bytes skipped, less than length only at the end of the file
+     * @throws IOException 
+     */
+    protected int skipBytes(int length) throws IOException {
+
+        int total = Math.min(length, this.buffer.remaining());
+        this.buffer.position(this.buffer.position() + total);
+        if (total < length && this.fileChannel != null) {
+            //move the file position, no need to read the bytes
+            long position = this.fileChannel.position();
+            long skipped = Math.min(length - total, Math.max(this.fileChannel.size() - position, 0));
+            this.fileChannel.position(position + skipped);
+            total += (int) skipped;
+        }
+        while (total < length && this.fillBuffer(1)) {
+            int count = Math.min(length - total, this.buffer.remaining());
+            this.buffer.position(this.buffer.position() + count);
+            total += count;
+        }
+        return total;
+    }
+
     /**
      * close file input stream
      */
     @Override
     public void close() {
 
-        if (this.inputStream != null) {
+        if (this.channel != null) {
             try {
-                this.inputStream.close();
+                this.channel.close();
             } catch (IOException ex) {
                 log.error(ex, "Cannot close file");
             }
@@ -126,32 +328,25 @@ public class IlluminaFileReader implements Iterator<Object>, Closeable {
     }
 
     /**
-     * read four bytes from its input stream and convert to unsigned integer
+     * read four bytes from its buffer as a little endian unsigned integer
      * @return an unsigned integer
-     * @throws IOException
+     * @throws IOException, EOFException if less than four bytes left
      */
     public int readFourBytes() throws IOException {
-        return this.readFourBytes(this.inputStream);
+
+        this.requireBytes(4);
+        return this.buffer.getInt();
     }
 
     /**
      * read four bytes from an input stream and convert to unsigned integer
      * @param inputStream
      * @return an unsigned integer
-     * @throws IOException
+     * @throws IOException, EOFException if less than four bytes left
      */
     public int readFourBytes(DataInputStream inputStream) throws IOException {
 
-        int unsignedInt = 0;
-
-        byte[] fourBytes = new byte[4];
-        inputStream.read(fourBytes);
-        for (int i = 0; i < 4; i++) {
-            int intValue = (int) (fourBytes[i] & 0xFF);
-            unsignedInt = unsignedInt + (intValue << 8 * i);
-        }
-
-        return unsignedInt;
+        return Integer.reverseBytes(inputStream.readInt());
     }
 
     /**
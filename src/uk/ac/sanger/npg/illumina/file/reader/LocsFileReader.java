@@ -35,6 +35,7 @@ public class LocsFileReader extends PositionFileReader {
     private final Log log = Log.getInstance(LocsFileReader.class);
 
     private int totalCluster;
+    private final int[] nextPosition = new int[2];
 
     /**
      * Constructor
@@ -56,9 +57,9 @@ public class LocsFileReader extends PositionFileReader {
      */
     private void readFileHeader() throws IOException {
        // first 8 bytes are unused
-       this.inputStream.skipBytes(8);
+       this.skipBytes(8);
        // 4 bytes little endian
-       this.totalCluster = this.readFourBytes(inputStream);
+       this.totalCluster = this.readFourBytes();
     }
 
     /**
@@ -86,18 +87,12 @@ public class LocsFileReader extends PositionFileReader {
         }
 
         try {
-            float xFloat = Float.intBitsToFloat(this.readFourBytes());
-            float yFloat = Float.intBitsToFloat(this.readFourBytes());
-            
-            int x = Math.round( 10 * xFloat + 1000 ) ;
-            int y = Math.round( 10 * yFloat + 1000 ) ; 
+            this.nextXY(this.nextPosition);
 
             String[] pos = new String[2];
             
-            pos[0] = Integer.toString(x);
-            pos[1] = Integer.toString(y);
-
-            this.currentTotalClusters++;
+            pos[0] = Integer.toString(this.nextPosition[0]);
+            pos[1] = Integer.toString(this.nextPosition[1]);
 
             return new PositionFileReader.Position(pos[0], pos[1]);
 
@@ -108,6 +103,45 @@ public class LocsFileReader extends PositionFileReader {
         return null;
     }
  
+    /**
+     * 
+     * @param xy array to store x and y coordinates
+     * @return true if a cluster read, false if no more cluster
+     * @throws IOException 
+     */
+    @Override
+    public boolean nextXY(int[] xy) throws IOException {
+
+        if (!this.hasNext()) {
+            return false;
+        }
+
+        float xFloat = this.readFloat();
+        float yFloat = this.readFloat();
+
+        xy[0] = Math.round( 10 * xFloat + 1000 ) ;
+        xy[1] = Math.round( 10 * yFloat + 1000 ) ;
+
+        this.currentTotalClusters++;
+        return true;
+    }
+
+    /**
+     * skip eight bytes of each cluster
+     * 
+     * @param clusters
+     * @return the number of clusters skipped
+     * @throws IOException 
+     */
+    @Override
+    public int skip(int clusters) throws IOException {
+
+        int count = Math.max(Math.min(clusters, this.totalCluster - this.currentTotalClusters), 0);
+        int skipped = this.skipBytes(8 * count) / 8;
+        this.currentTotalClusters += skipped;
+        return skipped;
+    }
+
     /**
      * @return the totalCluster
      */
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina.file.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import net.sf.picard.util.Log;
+
+/**
+ * This class is a reader of an uncompressed bcl file,
+ * which maps the whole file into memory instead of reading it byte by byte from an input stream.
+ *
+ * Runs of clusters can be decoded into base and quality arrays given by the caller.
+ *
+ * The mapping is released when the reader is closed, not when the buffer is garbage collected,
+ * so that mappings of the files of all tiles converted do not pile up to the limit of mappings of the process.
+ * If the JVM gives no way to release it, the mapping is left to the garbage collector.
+ */
+public class MappedBCLFileReader extends BCLFileReader {
+
+    private final Log log = Log.getInstance(MappedBCLFileReader.class);
+
+    private final int HEADER_SIZE = 4;
+
+    private MappedByteBuffer buffer;
+
+    //Unsafe.invokeCleaner from Java 9, or DirectBuffer.cleaner and Cleaner.clean before
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    private static final Method DIRECT_BUFFER_CLEANER;
+    private static final Method CLEANER_CLEAN;
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        Method directBufferCleaner = null;
+        Method cleanerClean = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (Exception ex) {
+            invokeCleaner = null;
+            try {
+                directBufferCleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                cleanerClean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            } catch (Exception ex2) {
+                directBufferCleaner = null;
+                cleanerClean = null;
+            }
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+        DIRECT_BUFFER_CLEANER = directBufferCleaner;
+        CLEANER_CLEAN = cleanerClean;
+    }
+
+    /**
+     * constructor to map bcl file into memory
+     * and read the number of clusters
+     *
+     * @param bclFileName uncompressed bcl file name
+     * @throws Exception
+     */
+    public MappedBCLFileReader(String bclFileName) throws Exception {
+
+        super(new File(bclFileName));
+        this.mapFile();
+        this.readFileHeader();
+    }
+
+    /**
+     * map the whole bcl file into memory
+     * @throws IOException
+     */
+    private void mapFile() throws IOException {
+
+        RandomAccessFile file = new RandomAccessFile(this.getFileName(), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long fileSize = channel.size();
+            if (fileSize > Integer.MAX_VALUE) {
+                throw new IOException("BCL file too big to map into memory: " + this.getFileName());
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        } finally {
+            file.close();
+        }
+        this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * read total number of clusters from header
+     */
+    private void readFileHeader() {
+
+        //first four bytes - unsigned 32bits little endian integer
+        if (this.buffer.remaining() >= HEADER_SIZE) {
+            this.totalClusters = this.buffer.getInt();
+        } else {
+            log.warn("BCL file too short to have a header: " + this.getFileName());
+            this.buffer.position(this.buffer.limit());
+        }
+        log.debug("The total number of clusters:" + this.getTotalClusters() + " in " + this.getFileName() );
+    }
+
+    /**
+     * read undecoded bcl bytes of a run of clusters from the mapped file
+     * 
+     * @param dst array to store bcl bytes
+     * @param offset the start position in the array
+     * @param length the maximum number of clusters to read
+     * @return the number of clusters read, -1 if no more cluster
+     */
+    @Override
+    public int read(byte[] dst, int offset, int length) {
+
+        int count = Math.min(length, this.getTotalClusters() - this.getCurrentCluster());
+        if (count <= 0) {
+            return -1;
+        }
+        if (this.buffer == null || this.buffer.remaining() < count) {
+            int remaining = (this.buffer == null) ? 0 : this.buffer.remaining();
+            log.error("There is no more cluster in BCL file after cluster " + (this.getCurrentCluster() + remaining)
+                    + " in file " + this.getFileName() );
+            if (remaining == 0) {
+                return -1;
+            }
+            count = remaining;
+        }
+        this.buffer.get(dst, offset, count);
+        this.currentCluster += count;
+        return count;
+    }
+
+    /**
+     * read the whole mapped file into physical memory ahead of decoding it,
+     * not changing the current cluster
+     */
+    public void load() {
+        if (this.buffer != null) {
+            this.buffer.load();
+        }
+    }
+
+    /**
+     * release the mapped file
+     */
+    @Override
+    public void close() {
+
+        if (this.buffer != null && !unmap(this.buffer)) {
+            log.debug("Mapping of BCL file left to the garbage collector: " + this.getFileName());
+        }
+        this.buffer = null;
+    }
+
+    /**
+     * release a mapping at once, the buffer must never be used again
+     *
+     * @return true if released, false if no way to release it in this JVM
+     */
+    private static boolean unmap(MappedByteBuffer mappedBuffer) {
+
+        try {
+            if (INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, mappedBuffer);
+                return true;
+            }
+            if (DIRECT_BUFFER_CLEANER != null) {
+                Object cleaner = DIRECT_BUFFER_CLEANER.invoke(mappedBuffer);
+                if (cleaner != null) {
+                    CLEANER_CLEAN.invoke(cleaner);
+                    return true;
+                }
+            }
+        } catch (Exception ex) {
+            return false;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ */
+package uk.ac.sanger.npg.illumina.file.reader;
+
+/**
+ * Pass filter flags of all clusters in a tile, one bit per cluster.
+ *
+ * The mask is read once from the filter file
+ * and can be shared by any stage needing to know or skip non-PF clusters.
+ */
+public class PFMask {
+
+    private final long[] bits;
+    private final int totalClusters;
+    private final int pfClusters;
+
+    /**
+     * build a mask from pass filter flags, one byte per cluster, PF if the lowest bit set
+     *
+     * @param flags
+     */
+    public PFMask(byte[] flags) {
+
+        this(flags, flags.length);
+    }
+
+    /**
+     * build a mask from the first clusters of pass filter flags
+     *
+     * @param flags one byte per cluster, PF if the lowest bit set
+     * @param totalClusters number of clusters
+     */
+    PFMask(byte[] flags, int totalClusters) {
+
+        this.totalClusters = totalClusters;
+        this.bits = new long[(totalClusters + 63) >>> 6];
+        int count = 0;
+        for (int i = 0; i < totalClusters; i++) {
+            if ((flags[i] & 1) != 0) {
+                this.bits[i >>> 6] |= 1L << i;
+                count++;
+            }
+        }
+        this.pfClusters = count;
+    }
+
+    /**
+     * build a mask from bits, one bit per cluster in order, set if the cluster is kept,
+     * for example a selection of clusters instead of pass filter flags
+     *
+     * @param bits one long for each 64 clusters, lowest bit first
+     * @param totalClusters number of clusters
+     */
+    public PFMask(long[] bits, int totalClusters) {
+
+        if (bits.length != (totalClusters + 63) >>> 6) {
+            throw new IllegalArgumentException("Mask of " + bits.length + " longs not the size for " + totalClusters + " clusters");
+        }
+        this.totalClusters = totalClusters;
+        this.bits = bits;
+        //bits past the last cluster never set
+        if ((totalClusters & 63) != 0) {
+            this.bits[bits.length - 1] &= (1L << totalClusters) - 1;
+        }
+        int count = 0;
+        for (long word : this.bits) {
+            count += Long.bitCount(word);
+        }
+        this.pfClusters = count;
+    }
+
+    /**
+     * @param other mask of the same clusters
+     * @return a mask of the clusters set in both masks
+     */
+    public PFMask and(PFMask other) {
+
+        if (other.totalClusters != this.totalClusters) {
+            throw new IllegalArgumentException("Masks of different numbers of clusters: " + this.totalClusters + " " + other.totalClusters);
+        }
+        long[] both = new long[this.bits.length];
+        for (int i = 0; i < both.length; i++) {
+            both[i] = this.bits[i] & other.bits[i];
+        }
+        return new PFMask(both, this.totalClusters);
+    }
+
+    /**
+     * @param clusterIndex index of a cluster in the tile, from 0
+     * @return true if the cluster passed filter
+     */
+    public boolean isPf(int clusterIndex) {
+
+        if (clusterIndex < 0 || clusterIndex >= this.totalClusters) {
+            throw new IndexOutOfBoundsException("Cluster " + clusterIndex + " out of range of PF mask: " + this.totalClusters);
+        }
+        return (this.bits[clusterIndex >>> 6] & (1L << clusterIndex)) != 0;
+    }
+
+    /**
+     * @param from index of a cluster in the tile
+     * @return index of the first PF cluster at or after the given one, the total number of clusters if none
+     */
+    public int nextPf(int from) {
+
+        if (from >= this.totalClusters) {
+            return this.totalClusters;
+        }
+        int word = from >>> 6;
+        long current = this.bits[word] & (-1L << from);
+        while (current == 0) {
+            if (++word == this.bits.length) {
+                return this.totalClusters;
+            }
+            current = this.bits[word];
+        }
+        return Math.min((word << 6) + Long.numberOfTrailingZeros(current), this.totalClusters);
+    }
+
+    /**
+     * @param from index of a cluster in the tile
+     * @return index of the first non-PF cluster at or after the given one, the total number of clusters if none
+     */
+    public int nextNonPf(int from) {
+
+        if (from >= this.totalClusters) {
+            return this.totalClusters;
+        }
+        int word = from >>> 6;
+        long current = ~this.bits[word] & (-1L << from);
+        while (current == 0) {
+            if (++word == this.bits.length) {
+                return this.totalClusters;
+            }
+            current = ~this.bits[word];
+        }
+        return Math.min((word << 6) + Long.numberOfTrailingZeros(current), this.totalClusters);
+    }
+
+    /**
+     * @param from index of the first cluster
+     * @param to index after the last cluster
+     * @return the number of PF clusters in the range
+     */
+    public int countPf(int from, int to) {
+
+        int count = 0;
+        int cluster = this.nextPf(from);
+        while (cluster < to) {
+            int runEnd = Math.min(this.nextNonPf(cluster), to);
+            count += runEnd - cluster;
+            cluster = this.nextPf(runEnd);
+        }
+        return count;
+    }
+
+    /**
+     * move the values of PF clusters in a run of clusters to the front of the run in place,
+     * copying each run of PF clusters in one go and skipping non-PF clusters
+     *
+     * @param data one value per cluster
+     * @param offset position of the first cluster in the array
+     * @param firstCluster index of the first cluster in the tile
+     * @param count the number of clusters
+     * @return the number of PF clusters kept at the front
+     */
+    public int compact(byte[] data, int offset, int firstCluster, int count) {
+
+        int end = firstCluster + count;
+        int kept = 0;
+        int cluster = this.nextPf(firstCluster);
+        while (cluster < end) {
+            int runEnd = Math.min(this.nextNonPf(cluster), end);
+            System.arraycopy(data, offset + cluster - firstCluster, data, offset + kept, runEnd - cluster);
+            kept += runEnd - cluster;
+            cluster = this.nextPf(runEnd);
+        }
+        return kept;
+    }
+
+    /**
+     * @return the number of clusters
+     */
+    public int getTotalClusters() {
+        return totalClusters;
+    }
+
+    /**
+     * @return the number of PF clusters
+     */
+    public int getPfClusters() {
+        return pfClusters;
+    }
+}
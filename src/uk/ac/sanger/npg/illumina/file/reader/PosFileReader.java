@@ -19,17 +19,42 @@
 package uk.ac.sanger.npg.illumina.file.reader;
 
 import java.io.*;
+import java.util.Arrays;
 import net.sf.picard.util.Log;
 
 /**
+ * This class is a reader of a pos text file, one line of x and y coordinates for each cluster.
  *
+ * The file is read in one pass as bytes, and each coordinate is converted straight from its digits
+ * to the same scaled integer as rounding its double value times ten, without creating a string.
+ * A line not in the plain decimal format is parsed as a string instead.
+ * 
  * @author gq1@sanger.ac.uk
  */
 public class PosFileReader extends PositionFileReader  {
 
     private final Log log = Log.getInstance(IlluminaFileReader.class);
-    private BufferedReader fileReader;
-    private int totalCluster;
+
+    private static final int BUFFER_SIZE = 65536;
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    //powers of ten exactly represented as double
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+        }
+    }
+
+    private int totalCluster = -1;
+    private final int[] nextPosition = new int[2];
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
+    private boolean endOfStream = false;
+    private int lineStart;
+    private int lineEnd;
     
     /**
      * 
@@ -39,10 +64,6 @@ public class PosFileReader extends PositionFileReader  {
     public PosFileReader(String fileName) throws FileNotFoundException, IOException {
         
         super(fileName);
-        
-        this.fileReader = new BufferedReader(new FileReader(this.fileName));
-        
-        this.countTotalClusters();
     }
 
 
@@ -69,45 +90,213 @@ public class PosFileReader extends PositionFileReader  {
     public PositionFileReader.Position next() {
         String [] pos = new String [2];
         try {
-            String nextLine = this.fileReader.readLine();
-            if(nextLine == null){
+            if(!this.nextXY(this.nextPosition)){
                 this.log.error("There is no more cluster in this pos file");
                 return null;
             }
-            String [] coordinates = nextLine.split(" ");
-            if(coordinates.length != 2){
-                throw new RuntimeException("A line in pos file wrong format: " + nextLine);
-            }
             for (int i= 0; i<2; i++){
-                double tempCoor = Math.round( Double.parseDouble(coordinates[i]) * 10.0 );
-                pos [i] = Integer.toString ( (int)tempCoor + 1000 );
+                pos [i] = Integer.toString ( this.nextPosition[i] );
             }
-            this.currentTotalClusters++;
         } catch (IOException ex) {
             log.error(ex, "Problem to read pos file: " + ex);
         }
         return new PositionFileReader.Position(pos[0], pos[1]);
     }
 
+    /**
+     * 
+     * @param xy array to store x and y coordinates
+     * @return true if a cluster read, false if no more line
+     * @throws IOException 
+     */
     @Override
-    public boolean hasNext() {
-          return (this.currentTotalClusters < this.totalCluster) ? true : false;
+    public boolean nextXY(int[] xy) throws IOException {
+
+        if(!this.nextLine()){
+            return false;
+        }
+
+        //same fields as splitting by single spaces, trailing spaces ignored
+        int end = this.lineEnd;
+        while (end > this.lineStart && this.buffer[end - 1] == ' ') {
+            end--;
+        }
+        int separator = this.lineStart;
+        while (separator < end && this.buffer[separator] != ' ') {
+            separator++;
+        }
+
+        if (separator == end
+                || !this.parseCoordinate(this.lineStart, separator, xy, 0)
+                || !this.parseCoordinate(separator + 1, end, xy, 1)) {
+            this.parseLine(new String(this.buffer, this.lineStart, this.lineEnd - this.lineStart), xy);
+        }
+        this.currentTotalClusters++;
+        return true;
+    }
+
+    /**
+     * parse one coordinate in plain decimal format from the buffer,
+     * the double value built from its digits is the same as parsing it as a string
+     * when the digits fit in the double mantissa and the power of ten is exact
+     *
+     * @return false if not in plain decimal format or too many digits
+     */
+    private boolean parseCoordinate(int start, int end, int[] xy, int index) {
+
+        int i = start;
+        boolean negative = false;
+        if (i < end && (this.buffer[i] == '-' || this.buffer[i] == '+')) {
+            negative = this.buffer[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            byte b = this.buffer[i];
+            if (b >= '0' && b <= '9') {
+                if (++digits > 18) {
+                    return false;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (point) {
+                    decimals++;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                return false;
+            }
+        }
+        if (digits == 0 || mantissa > MAX_EXACT_MANTISSA || decimals >= POWERS_OF_TEN.length) {
+            return false;
+        }
+
+        double value = mantissa / POWERS_OF_TEN[decimals];
+        double tempCoor = Math.round( (negative ? -value : value) * 10.0 );
+        xy[index] = (int)tempCoor + 1000;
+        return true;
+    }
+
+    /**
+     * parse a line as a string
+     */
+    private void parseLine(String nextLine, int[] xy) {
+
+        String [] coordinates = nextLine.split(" ");
+        if(coordinates.length != 2){
+            throw new RuntimeException("A line in pos file wrong format: " + nextLine);
+        }
+        for (int i= 0; i<2; i++){
+            double tempCoor = Math.round( Double.parseDouble(coordinates[i]) * 10.0 );
+            xy[i] = (int)tempCoor + 1000;
+        }
+    }
+
+    /**
+     * find the next line in the buffer, ended by a new line, a carriage return or both,
+     * refilling the buffer when needed
+     *
+     * @return false if no more line
+     */
+    private boolean nextLine() throws IOException {
+
+        int scan = this.bufferPosition;
+        while (true) {
+            for (; scan < this.bufferLimit; scan++) {
+                byte b = this.buffer[scan];
+                if (b == '\n' || b == '\r') {
+                    if (b == '\r' && scan + 1 == this.bufferLimit && !this.endOfStream) {
+                        //need the next byte to know whether a new line follows
+                        break;
+                    }
+                    this.lineStart = this.bufferPosition;
+                    this.lineEnd = scan;
+                    this.bufferPosition = scan + 1;
+                    if (b == '\r' && this.bufferPosition < this.bufferLimit && this.buffer[this.bufferPosition] == '\n') {
+                        this.bufferPosition++;
+                    }
+                    return true;
+                }
+            }
+            if (this.endOfStream) {
+                if (this.bufferPosition == this.bufferLimit) {
+                    return false;
+                }
+                this.lineStart = this.bufferPosition;
+                this.lineEnd = this.bufferLimit;
+                this.bufferPosition = this.bufferLimit;
+                return true;
+            }
+            scan -= this.bufferPosition;
+            this.fillBuffer();
+            scan += this.bufferPosition;
+        }
+    }
+
+    /**
+     * move unread bytes to the start of the buffer, growing it if full, and read more after them
+     */
+    private void fillBuffer() throws IOException {
+
+        int remaining = this.bufferLimit - this.bufferPosition;
+        if (remaining == this.buffer.length) {
+            this.buffer = Arrays.copyOf(this.buffer, 2 * this.buffer.length);
+        } else if (this.bufferPosition > 0) {
+            System.arraycopy(this.buffer, this.bufferPosition, this.buffer, 0, remaining);
+        }
+        this.bufferPosition = 0;
+        this.bufferLimit = remaining;
+
+        int read = this.readBytes(this.buffer, remaining, this.buffer.length - remaining);
+        if (read < this.buffer.length - remaining) {
+            this.endOfStream = true;
+        }
+        this.bufferLimit += read;
     }
 
+    /**
+     * skip one line of each cluster without parsing it
+     * 
+     * @param clusters
+     * @return the number of clusters skipped
+     * @throws IOException 
+     */
     @Override
-    public void close() {
-        super.close();
-        try {
-            this.fileReader.close();
-        } catch (IOException ex) {
-            log.error(ex, "problems to close pos file");
+    public int skip(int clusters) throws IOException {
+
+        int skipped = 0;
+        while (skipped < clusters && this.nextLine()) {
+            skipped++;
         }
+        this.currentTotalClusters += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (this.bufferPosition == this.bufferLimit && !this.endOfStream) {
+            try {
+                this.fillBuffer();
+            } catch (IOException ex) {
+                log.error(ex, "problems to read pos file");
+            }
+        }
+        return this.bufferPosition < this.bufferLimit;
     }
     
     /**
+     * count lines in the file, only when asked as clusters are read without knowing the total
+     * 
      * @return the totalCluster
      */
     public int getTotalCluster() {
+        if (this.totalCluster < 0) {
+            this.countTotalClusters();
+        }
         return totalCluster;
     }
     
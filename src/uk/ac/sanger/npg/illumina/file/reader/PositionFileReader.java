@@ -41,6 +41,24 @@ public abstract class PositionFileReader extends IlluminaFileReader {
     
     @Override
     public abstract Position next(); 
+
+    /**
+     * read the coordinates of the next cluster as numbers, without creating any object
+     * 
+     * @param xy array to store x and y coordinates
+     * @return true if a cluster read, false if no more cluster
+     * @throws IOException 
+     */
+    public abstract boolean nextXY(int[] xy) throws IOException;
+
+    /**
+     * move past the positions of some clusters without decoding them
+     * 
+     * @param clusters the number of clusters to skip
+     * @return the number of clusters skipped, less than required only at the end of the file
+     * @throws IOException 
+     */
+    public abstract int skip(int clusters) throws IOException;
     
     /**
      * @return the currentTotalClusters
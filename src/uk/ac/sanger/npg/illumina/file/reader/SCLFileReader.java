@@ -24,6 +24,10 @@ import net.sf.picard.util.Log;
 /**
  * This class is a reader of a scl file
  * 
+ * Packed bytes are read window by window into a reusable array,
+ * so that memory used does not depend on the number of clusters,
+ * and only the bases of the clusters kept are unpacked from them.
+ * 
  * @author gq1@sanger.ac.uk
  * 
  */
@@ -31,27 +35,66 @@ public class SCLFileReader extends IlluminaFileReader {
     
     private final Log log = Log.getInstance(SCLFileReader.class);
     
-    private final char[] BASE_ARRAY = {'A', 'C', 'G', 'T'};
-    private char[] bases;
+    /**
+     * default buffer size, big for sequential reading of a whole cycle file
+     */
+    public static final int BUFFER_SIZE = 65536;
+
+    private static final char[] BASE_ARRAY = {'A', 'C', 'G', 'T'};
+
+    //number of bytes read from file in one go, four clusters in each byte
+    private static final int WINDOW_BYTES = 8192;
+
+    //bases of the four clusters packed in each byte value, first cluster in the highest two bits
+    private static final byte[] UNPACKED_BASES = new byte[256 * 4];
+    static {
+        for (int value = 0; value < 256; value++) {
+            for (int j = 0; j < 4; j++) {
+                UNPACKED_BASES[value * 4 + j] = (byte) BASE_ARRAY[(value >> (6 - 2 * j)) & 3];
+            }
+        }
+    }
+
+    //reusable window of packed bytes, windowPosition and windowLength counted in clusters
+    private final byte[] packedWindow = new byte[WINDOW_BYTES];
+    private int windowPosition = 0;
+    private int windowLength = 0;
+
     private int currentCluster = 0;
     private int totalClusters = 0;
+    private final byte[] nextCluster = new byte[1];
 
     /**
      * constructor to generate scl file input stream,
      * and read the number of clusters
-     * and read all bases to an array
+     * and unpack the bases of the first clusters
      *
      * @param sclFileName scl file name
      * @throws Exception
      */
     public SCLFileReader(String sclFileName) throws Exception {
 
-        super(sclFileName);
+        this(sclFileName, BUFFER_SIZE);
+    }
 
-        this.readFileHeader();
-        //TODO: stop read all bases to memory if using too much memory
-        this.readBases();
+    /**
+     * constructor to generate scl file input stream with a given buffer size,
+     * and read the number of clusters
+     * and unpack the bases of the first clusters
+     *
+     * @param sclFileName scl file name
+     * @param bufferSize size of the buffer between the file and the reader
+     * @throws Exception
+     */
+    public SCLFileReader(String sclFileName, int bufferSize) throws Exception {
+
+        super(sclFileName, null, bufferSize);
 
+        this.readFileHeader();
+        if (this.getTotalClusters() > 0 && this.fillWindow() == 0) {
+            log.error("The file does not have the required number of clusters: " + this.getTotalClusters());
+            throw new Exception("The file does not have the required number of clusters");
+        }
     }
 
     /**
@@ -61,49 +104,64 @@ public class SCLFileReader extends IlluminaFileReader {
     private void readFileHeader() throws IOException {
 
         //first four bytes - unsigned 32bits little endian integer
-        this.totalClusters = this.readFourBytes(inputStream);
+        this.totalClusters = this.readFourBytes();
         log.debug("The total number of clusters: " + this.getTotalClusters() + " in " + this.getFileName());
     }
 
     /**
-     * read all bases into an array
+     * read the next window of packed bytes from the file,
+     * only as many as the clusters left in the file
+     * 
+     * @return the number of clusters in the window, 0 at the end of the file
      * @throws IOException
      */
-    private void readBases() throws Exception {
+    private int fillWindow() throws IOException {
 
-        this.bases = new char[this.getTotalClusters()];
+        int clustersLeft = this.getTotalClusters() - this.getCurrentCluster();
+        int bytesToRead = Math.min(WINDOW_BYTES, (clustersLeft + 3) / 4);
+        int read = (bytesToRead > 0) ? this.readBytes(this.packedWindow, 0, bytesToRead) : 0;
 
-        int numberBaseBytes = (int) Math.ceil(this.getTotalClusters() / 4.0);
-        byte[] baseBytes = new byte[numberBaseBytes];
+        this.windowPosition = 0;
+        this.windowLength = Math.min(read * 4, clustersLeft);
+        return this.windowLength;
+    }
 
-        int read = this.inputStream.read(baseBytes);
+    /**
+     * make sure the window has clusters left to read, reading the next window if needed
+     *
+     * @return false if no more cluster in the file
+     */
+    private boolean ensureWindow() {
 
-        if (read == -1) {
-            log.error("The file does not have the required number of clusters: " + this.getTotalClusters());
-            throw new Exception("The file does not have the required number of clusters");
+        if (this.windowPosition < this.windowLength) {
+            return true;
         }
-
-        this.close();
-        this.inputStream = null;
-
-        for (int b = 0; b < this.getTotalClusters(); b++) {
-            int i = b / 4;
-            int j = b % 4;
-            switch (j) {
-                case 0:
-                    bases[b] = BASE_ARRAY[(baseBytes[i] >> 6) & 3];
-                    break;
-                case 1:
-                    bases[b] = BASE_ARRAY[(baseBytes[i] >> 4) & 3];
-                    break;
-                case 2:
-                    bases[b] = BASE_ARRAY[(baseBytes[i] >> 2) & 3];
-                    break;
-                case 3:
-                    bases[b] = BASE_ARRAY[(baseBytes[i]) & 3];
-                    break;
+        try {
+            if (this.fillWindow() == 0) {
+                log.error("There is no more cluster in SCL file after cluster " + this.getCurrentCluster()
+                        + " in file " + this.getFileName());
+                return false;
             }
+        } catch (IOException ex) {
+            log.error(ex, "There is problems to read the file " + this.getFileName());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * unpack the bases of a run of clusters in the window
+     *
+     * @param dst array to store bases
+     * @param offset the start position in the array
+     * @param windowCluster index of the first cluster in the window
+     * @param count the number of clusters
+     */
+    private void unpack(byte[] dst, int offset, int windowCluster, int count) {
 
+        int end = windowCluster + count;
+        for (int cluster = windowCluster; cluster < end; cluster++) {
+            dst[offset++] = UNPACKED_BASES[(this.packedWindow[cluster >> 2] & 0xFF) * 4 + (cluster & 3)];
         }
     }
 
@@ -124,12 +182,74 @@ public class SCLFileReader extends IlluminaFileReader {
     @Override
     public Character next() {
 
-        if (!this.hasNext()) {
+        if (this.read(this.nextCluster, 0, 1) == -1) {
             log.error("The required cluster out of range: " + this.getCurrentCluster());
             return null;
         }
 
-        return this.bases[currentCluster++];
+        return (char) this.nextCluster[0];
+    }
+
+    /**
+     * read second base calls of a run of clusters
+     * 
+     * @param dst array to store bases
+     * @param offset the start position in the array
+     * @param length the maximum number of clusters to read
+     * @return the number of clusters read, -1 if no more cluster
+     */
+    @Override
+    public int read(byte[] dst, int offset, int length) {
+
+        int count = Math.min(length, this.getTotalClusters() - this.getCurrentCluster());
+        if (count <= 0) {
+            return -1;
+        }
+        int total = 0;
+        while (total < count && this.ensureWindow()) {
+            int n = Math.min(count - total, this.windowLength - this.windowPosition);
+            this.unpack(dst, offset + total, this.windowPosition, n);
+            this.windowPosition += n;
+            this.currentCluster += n;
+            total += n;
+        }
+        return (total > 0) ? total : -1;
+    }
+
+    /**
+     * read a run of clusters, unpacking only the second base calls of PF clusters,
+     * stored one after another without gaps for non-PF clusters
+     *
+     * @param dst array to store bases of PF clusters
+     * @param offset the start position in the array
+     * @param length the maximum number of clusters to read
+     * @param pfMask PF mask of the tile
+     * @return the number of clusters read, PF or not, -1 if no more cluster
+     */
+    public int readPF(byte[] dst, int offset, int length, PFMask pfMask) {
+
+        int count = Math.min(length, this.getTotalClusters() - this.getCurrentCluster());
+        if (count <= 0) {
+            return -1;
+        }
+        int total = 0;
+        int kept = 0;
+        while (total < count && this.ensureWindow()) {
+            int n = Math.min(count - total, this.windowLength - this.windowPosition);
+            int first = this.currentCluster;
+            int end = first + n;
+            int cluster = pfMask.nextPf(first);
+            while (cluster < end) {
+                int runEnd = Math.min(pfMask.nextNonPf(cluster), end);
+                this.unpack(dst, offset + kept, this.windowPosition + cluster - first, runEnd - cluster);
+                kept += runEnd - cluster;
+                cluster = pfMask.nextPf(runEnd);
+            }
+            this.windowPosition += n;
+            this.currentCluster += n;
+            total += n;
+        }
+        return (total > 0) ? total : -1;
     }
 
     /**
@@ -162,19 +282,7 @@ public class SCLFileReader extends IlluminaFileReader {
 
         System.out.println(scl.getTotalClusters());
 
-        char[] bases = scl.bases;
         int count = 0;
-        for (char b : bases) {
-            count++;
-            if ((count % 1000 == 1) || (count == 2609912)) {
-                System.out.println(b);
-            }
-        }
-        System.out.println(count);
-
-        System.out.println("------------");
-
-        count = 0;
         while (scl.hasNext()) {
             count++;
             char b = scl.next();
@@ -26,6 +26,7 @@ import net.sf.picard.cmdline.Usage;
 import net.sf.picard.io.IoUtil;
 import net.sf.picard.util.Log;
 import net.sf.samtools.*;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
 
 /**
  *
@@ -124,7 +125,7 @@ public class AlignmentFilter extends PicardCommandLine {
            final SAMFileHeader outputHeader = header.clone();           
            outputHeader.setSortOrder(SAMFileHeader.SortOrder.unsorted);
            this.addProgramRecordToHead(outputHeader, this.getThisProgramRecord(programName, programDS));
-           final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,  true, outFile);
+           final SAMFileWriter out = new ParallelSAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,  true, outFile);
            outputWriterList.add(out);
            outputCount++;
         }
@@ -135,7 +136,7 @@ public class AlignmentFilter extends PicardCommandLine {
             outputHeader.setSequenceDictionary(new SAMSequenceDictionary());
             outputHeader.setSortOrder(SAMFileHeader.SortOrder.unsorted);
             outputHeader.addProgramRecord(this.getThisProgramRecord(programName, programDS));
-            outputWriterUnaligned = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,  true, this.OUTPUT_UNALIGNED);
+            outputWriterUnaligned = new ParallelSAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,  true, this.OUTPUT_UNALIGNED);
         }
 
         log.info("Starting read and writing records");
@@ -26,9 +26,9 @@ import net.sf.picard.util.Log;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
 import net.sf.samtools.SAMFileWriter;
-import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.util.SequenceUtil;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
 
 /**
  * Class to read matching forward/reverse BAM records and identify
@@ -81,7 +81,7 @@ public class BamAdapterFinder extends PicardCommandLine {
         this.addProgramRecordToHead(outputHeader, this.getThisProgramRecord(programName, programDS));
 
         this.log.info("Open output file with header: " + OUTPUT.getName());
-        final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader, true, OUTPUT);
+        final SAMFileWriter out = new ParallelSAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader, true, OUTPUT);
 
         long totPairs = 0;
         long[] overlaps = new long[ARRAY_SIZE];    // indexed by offset, sized to be far larger
@@ -29,6 +29,7 @@ import net.sf.picard.io.IoUtil;
 import net.sf.picard.metrics.MetricsFile;
 import net.sf.picard.util.Log;
 import net.sf.samtools.*;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
 
 /**
  * This class is used decode the multiplexed bam file.
@@ -348,7 +349,7 @@ public class BamIndexDecoder extends PicardCommandLine {
                         + OUTPUT_FORMAT;
                 final SAMFileHeader perBarcodeOutputHeader = outputHeader.clone();
                 perBarcodeOutputHeader.setReadGroups(readGroupList);
-                final SAMFileWriter outPerBarcode = new SAMFileWriterFactory().makeSAMOrBAMWriter(perBarcodeOutputHeader, true, new File(barcodeBamOutputName));
+                final SAMFileWriter outPerBarcode = new ParallelSAMFileWriterFactory().makeSAMOrBAMWriter(perBarcodeOutputHeader, true, new File(barcodeBamOutputName));
                 outputList.put(barcode, outPerBarcode);
             }
             barcodeNameList.put(barcode, barcodeName);
@@ -357,7 +358,7 @@ public class BamIndexDecoder extends PicardCommandLine {
         if (OUTPUT != null) {
             log.info("Open output file with header: " + OUTPUT.getName());
             outputHeader.setReadGroups(fullReadGroupList);
-            this.out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader, true, OUTPUT);
+            this.out = new ParallelSAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader, true, OUTPUT);
         }
 
     }
@@ -29,6 +29,7 @@ import net.sf.picard.io.IoUtil;
 import net.sf.picard.util.Log;
 import net.sf.samtools.SAMRecord.SAMTagAndValue;
 import net.sf.samtools.*;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
 
 
 /**
@@ -132,7 +133,7 @@ public class BamMerger extends PicardCommandLine {
 
         
         log.info("Open output file with header: " + OUTPUT.getName());
-        final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,  true, OUTPUT);
+        final SAMFileWriter out = new ParallelSAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,  true, OUTPUT);
     
         log.info("Starting to merge");
 
@@ -26,6 +26,7 @@ import net.sf.picard.cmdline.Usage;
 import net.sf.picard.io.IoUtil;
 import net.sf.picard.util.Log;
 import net.sf.samtools.*;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
 
 /**
  *
@@ -77,7 +78,7 @@ public class BamQualityQuantisation extends PicardCommandLine {
         this.addProgramRecordToHead(outputHeader, this.getThisProgramRecord(programName, programDS));
         
         log.info("Open output file with header: " + OUTPUT.getName());
-        final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader, true, OUTPUT);
+        final SAMFileWriter out = new ParallelSAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader, true, OUTPUT);
         
         log.info("Quantising records");
         for (SAMRecord record : in) {
@@ -28,6 +28,7 @@ import net.sf.picard.io.IoUtil;
 import net.sf.picard.util.Log;
 import net.sf.samtools.*;
 import uk.ac.sanger.npg.bam.util.BamUtils;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
 
 
 /**
@@ -93,7 +94,7 @@ public class BamReadTrimmer extends PicardCommandLine {
         this.addProgramRecordToHead(outputHeader, this.getThisProgramRecord(programName, programDS));
         
         log.info("Open output file with header: " + OUTPUT.getName());
-        final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,  true, OUTPUT);
+        final SAMFileWriter out = new ParallelSAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,  true, OUTPUT);
         
         this.TAG_TO_KEEP.add("RG");
         
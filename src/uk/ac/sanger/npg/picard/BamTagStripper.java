@@ -31,6 +31,7 @@ import net.sf.picard.io.IoUtil;
 import net.sf.picard.util.Log;
 import net.sf.samtools.*;
 import net.sf.samtools.SAMRecord.SAMTagAndValue;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
 
 /**
  *
@@ -77,7 +78,7 @@ public class BamTagStripper extends PicardCommandLine {
         this.addProgramRecordToHead(outputHeader, this.getThisProgramRecord(programName, programDS));
         
         log.info("Open output file with header: " + OUTPUT.getName());
-        final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,  true, OUTPUT);
+        final SAMFileWriter out = new ParallelSAMFileWriterFactory().makeSAMOrBAMWriter(outputHeader,  true, OUTPUT);
 
         final HashMap<String, Boolean> tagToKeepHash = new HashMap<String,Boolean>();
         for(final String tag : this.TAG_TO_KEEP){
@@ -99,6 +99,28 @@ public class IndexDecoder {
         this.barcodeStringList = barcodeStringList;        
     }
 
+    /**
+     * constructor from a prepared decoder, with the same bar codes and settings but its own metrics,
+     * so that reads can be decoded on several threads and their metrics added together
+     * 
+     * @param indexDecoder 
+     */
+    public IndexDecoder(IndexDecoder indexDecoder){
+
+        this.maxMismatches = indexDecoder.maxMismatches;
+        this.minMismatchDelta = indexDecoder.minMismatchDelta;
+        this.maxNoCalls = indexDecoder.maxNoCalls;
+        this.inputBarcodeFile = indexDecoder.inputBarcodeFile;
+        this.barcodeStringList = indexDecoder.barcodeStringList;
+        this.barcodeLength = indexDecoder.barcodeLength;
+        this.namedBarcodes = indexDecoder.namedBarcodes;
+
+        for (final NamedBarcode namedBarcode : this.namedBarcodes) {
+            barcodeMetrics.add(new BarcodeMetric(namedBarcode));
+        }
+        noMatchBarcodeMetric = new BarcodeMetric(new NamedBarcode(indexDecoder.noMatchBarcodeMetric.BARCODE));
+    }
+
     /**
      * check input bar codes and initial bar codes object and metrics list
      * 
@@ -145,6 +167,19 @@ public class IndexDecoder {
         return match;
     } 
 
+    /**
+     * add the read counts of a decoder created from this one to the metrics of this decoder
+     * 
+     * @param indexDecoder 
+     */
+    public synchronized void addMetrics(IndexDecoder indexDecoder){
+
+        for (int i = 0; i < barcodeMetrics.size(); i++) {
+            barcodeMetrics.get(i).addCounts(indexDecoder.barcodeMetrics.get(i));
+        }
+        noMatchBarcodeMetric.addCounts(indexDecoder.noMatchBarcodeMetric);
+    }
+
     /**
      * 
      * @param metrics
@@ -414,6 +449,27 @@ public class IndexDecoder {
         this.maxNoCalls = maxNoCalls;
     }
 
+    /**
+     * @return the maxMismatches
+     */
+    public int getMaxMismatches() {
+        return this.maxMismatches;
+    }
+
+    /**
+     * @return the minMismatchDelta
+     */
+    public int getMinMismatchDelta() {
+        return this.minMismatchDelta;
+    }
+
+    /**
+     * @return the maxNoCalls
+     */
+    public int getMaxNoCalls() {
+        return this.maxNoCalls;
+    }
+
     /**
      * @return the barcodeLength
      */
@@ -436,6 +492,20 @@ public class IndexDecoder {
         String barcode;
         int mismatches;
         int mismatchesToSecondBest;
+
+        /**
+         * @return true if matched one of the bar codes
+         */
+        public boolean isMatched() {
+            return matched;
+        }
+
+        /**
+         * @return the matched bar code, or the closest bar code in lower case if not matched
+         */
+        public String getBarcode() {
+            return barcode;
+        }
     }
 
     /**
@@ -569,5 +639,19 @@ public class IndexDecoder {
         public BarcodeMetric() {
             barcodeBytes = null;
         }
+
+        /**
+         * add read counts of the same bar code from another metric
+         * 
+         * @param metric 
+         */
+        private void addCounts(BarcodeMetric metric) {
+            this.READS += metric.READS;
+            this.PF_READS += metric.PF_READS;
+            this.PERFECT_MATCHES += metric.PERFECT_MATCHES;
+            this.PF_PERFECT_MATCHES += metric.PF_PERFECT_MATCHES;
+            this.ONE_MISMATCH_MATCHES += metric.ONE_MISMATCH_MATCHES;
+            this.PF_ONE_MISMATCH_MATCHES += metric.PF_ONE_MISMATCH_MATCHES;
+        }
     }
 }
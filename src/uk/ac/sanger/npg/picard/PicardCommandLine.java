@@ -22,8 +22,10 @@ package uk.ac.sanger.npg.picard;
 import java.util.HashMap;
 import java.util.List;
 import net.sf.picard.cmdline.CommandLineProgram;
+import net.sf.picard.cmdline.Option;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMProgramRecord;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
 
 /**
  * This is the base class for any command line program class
@@ -34,6 +36,26 @@ public abstract class PicardCommandLine extends CommandLineProgram {
     
     public static final String version = "1.11";
     
+    @Option(doc="Number of threads compressing BGZF blocks of BAM output, the blocks compressed by the writing thread if not given.", optional=true)
+    public Integer COMPRESSION_THREADS;
+    
+    /**
+     * Pass the writer options to the writer factory after parsing the command line
+     * @param argv
+     * @return true if the command line is valid
+     */
+    @Override
+    protected boolean parseArgs(String[] argv){
+        
+        if( !super.parseArgs(argv) ){
+            return false;
+        }
+        ParallelSAMFileWriterFactory.setDefaultCompressionThreads(COMPRESSION_THREADS == null ? 0 : COMPRESSION_THREADS);
+        ParallelSAMFileWriterFactory.setDefaultCreateIndex(CREATE_INDEX != null && CREATE_INDEX);
+        ParallelSAMFileWriterFactory.setDefaultCreateMd5File(CREATE_MD5_FILE);
+        return true;
+    }
+    
     /**
      * Generate Program Record for this program itself
      * @param programName
@@ -29,6 +29,7 @@ import net.sf.picard.cmdline.Usage;
 import net.sf.picard.io.IoUtil;
 import net.sf.picard.util.Log;
 import net.sf.samtools.*;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
 
 /**
  * @author ib5@sanger.ac.uk
@@ -148,7 +149,7 @@ public class SplitBamByChromosomes extends PicardCommandLine {
 	     */
 	    HashMap<Integer, SAMFileWriter> writers = 
 		    new HashMap<Integer, SAMFileWriter>();
-	    SAMFileWriterFactory factory = new SAMFileWriterFactory();
+	    ParallelSAMFileWriterFactory factory = new ParallelSAMFileWriterFactory();
 	    String[] paths = {EXCLUDED_PATH, TARGET_PATH};
 	    int[] indices = {EXCLUDED_INDEX, TARGET_INDEX};
 	    for (int i=0; i<2; i++) {
@@ -28,6 +28,7 @@ import net.sf.picard.cmdline.Usage;
 import net.sf.picard.io.IoUtil;
 import net.sf.picard.util.Log;
 import net.sf.samtools.*;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
 
 /**
  *
@@ -104,7 +105,7 @@ public class SplitBamByReadGroup extends PicardCommandLine {
 
             this.addProgramRecordToHead(newHeader, this.getThisProgramRecord(programName, programDS));
             
-            final SAMFileWriter out = new SAMFileWriterFactory().makeSAMOrBAMWriter(newHeader,  true, outputFile);
+            final SAMFileWriter out = new ParallelSAMFileWriterFactory().makeSAMOrBAMWriter(newHeader,  true, outputFile);
             
             outputFileList.put(id, out);
         }
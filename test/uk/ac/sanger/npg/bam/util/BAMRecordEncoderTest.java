@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for BAMRecordEncoder
+ */
+package uk.ac.sanger.npg.bam.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import net.sf.samtools.BAMRecordCodec;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class BAMRecordEncoderTest {
+
+    private final SAMFileHeader header = new SAMFileHeader();
+    private final BAMRecordEncoder encoder = new BAMRecordEncoder();
+
+    private byte[] encodeWithPicard(SAMRecord record) {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BAMRecordCodec codec = new BAMRecordCodec(this.header);
+        codec.setOutputStream(out);
+        codec.encode(record);
+        return out.toByteArray();
+    }
+
+    private byte[] getEncoded() {
+        return Arrays.copyOf(this.encoder.getRecord(), this.encoder.finishRecord());
+    }
+
+    @Test
+    public void checkSameBytesAsBAMRecordCodec() {
+        System.out.println("Unmapped read encoded the same as BAMRecordCodec");
+
+        byte[] name = "xxHS13_6000:1:1101:1234:5678".getBytes();
+        byte[] bases = "NNACGTNacgtn.=".getBytes();
+        byte[] quals = {0, 0, 30, 31, 2, 40, 0, 10, 11, 12, 13, 14, 15, 0};
+        byte[] index = "GATTACA".getBytes();
+        byte[] indexQuals = {30, 30, 2, 3, 40, 41, 0};
+
+        for (int clusterIndex : new int[] {1, 127, 128, 255, 256, 32767, 32768, 65535, 65536, 4000000}) {
+            for (int flags : new int[] {0, BAMRecordEncoder.READ_FAILS_VENDOR_QUALITY_CHECK_FLAG,
+                        BAMRecordEncoder.READ_PAIRED_FLAG | BAMRecordEncoder.MATE_UNMAPPED_FLAG | BAMRecordEncoder.SECOND_OF_PAIR_FLAG}) {
+
+                SAMRecord record = new SAMRecord(this.header);
+                record.setReadName("HS13_6000:1:1101:1234:5678");
+                record.setAttribute("ci", clusterIndex);
+                record.setReadBases(Arrays.copyOfRange(bases, 2, 13));
+                record.setBaseQualities(Arrays.copyOfRange(quals, 2, 13));
+                record.setFlags(flags | BAMRecordEncoder.READ_UNMAPPED_FLAG);
+                record.setAttribute("RG", "1");
+                record.setAttribute("E2", "ACGTACGTACG");
+                record.setAttribute("BC", "GATTACA");
+                record.setAttribute("QT", "??#$IJ!");
+                record.setAttribute("B2", "TTAC");
+                record.setAttribute("Q2", "#$IJ");
+
+                this.encoder.startRecord(name, 2, name.length - 2, flags, bases, quals, 2, 11);
+                this.encoder.addIntTag("ci", clusterIndex);
+                this.encoder.addStringTag("RG", "1");
+                this.encoder.addStringTag("E2", "xACGTACGTACG".getBytes(), 1, 11);
+                this.encoder.addStringTag("BC", index, 0, index.length);
+                this.encoder.addQualityStringTag("QT", indexQuals, 0, indexQuals.length);
+                this.encoder.addStringTag("B2", index, 2, 4);
+                this.encoder.addQualityStringTag("Q2", indexQuals, 2, 4);
+
+                assertArrayEquals(this.encodeWithPicard(record), this.getEncoded());
+            }
+        }
+    }
+
+    @Test
+    public void checkTagReplaced() {
+        System.out.println("Tag added twice keeps its last value");
+
+        SAMRecord record = new SAMRecord(this.header);
+        record.setReadName("r");
+        record.setReadBases("ACG".getBytes());
+        record.setBaseQualities(new byte[] {1, 2, 3});
+        record.setReadUnmappedFlag(true);
+        record.setAttribute("RG", "2");
+
+        this.encoder.startRecord("r".getBytes(), 0, 1, 0, "ACG".getBytes(), new byte[] {1, 2, 3}, 0, 3);
+        this.encoder.addStringTag("RG", "1");
+        this.encoder.addStringTag("RG", "2");
+        assertArrayEquals(this.encodeWithPicard(record), this.getEncoded());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkBadBase() {
+        System.out.println("Base not allowed in BAM");
+        this.encoder.startRecord("r".getBytes(), 0, 1, 0, "AXG".getBytes(), new byte[3], 0, 3);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for ParallelSAMFileWriterFactory
+ */
+package uk.ac.sanger.npg.bam.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.RuntimeIOException;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class ParallelSAMFileWriterFactoryTest {
+
+    private static SAMFileHeader header;
+    private static final List<SAMRecord> records = new ArrayList<SAMRecord>();
+
+    @BeforeClass
+    public static void setUpClass() {
+
+        SAMFileReader reader = new SAMFileReader(new File("testdata/bam/6210_8_aligned.sam"));
+        header = reader.getFileHeader();
+        for (SAMRecord record : reader) {
+            records.add(record);
+        }
+        reader.close();
+    }
+
+    private static File writeRecords(SAMFileWriter writer, File outputFile) {
+
+        //enough copies of the records to fill several BGZF blocks
+        for (int i = 0; i < 1000; i++) {
+            for (SAMRecord record : records) {
+                writer.addAlignment(record);
+            }
+        }
+        writer.close();
+        outputFile.deleteOnExit();
+        return outputFile;
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        int offset = 0;
+        while (offset < bytes.length) {
+            offset += in.read(bytes, offset, bytes.length - offset);
+        }
+        in.close();
+        return bytes;
+    }
+
+    private static int countBlocks(byte[] bgzf) {
+
+        int blocks = 0;
+        int offset = 0;
+        while (offset < bgzf.length) {
+            offset += ((bgzf[offset + 16] & 0xFF) | ((bgzf[offset + 17] & 0xFF) << 8)) + 1;
+            blocks++;
+        }
+        return blocks;
+    }
+
+    @Test
+    public void checkSameBytesAsPicardWriter() throws Exception {
+        System.out.println("BAM compressed on a thread pool byte-identical to BAMFileWriter");
+
+        for (int level : new int[] {1, 5, 9}) {
+            File expectedFile = File.createTempFile("picard_writer", ".bam");
+            writeRecords(new SAMFileWriterFactory().makeBAMWriter(header, true, expectedFile, level), expectedFile);
+            byte[] expected = readBytes(expectedFile);
+            assertTrue(countBlocks(expected) > 3);
+
+            for (int threads = 1; threads <= 3; threads++) {
+                File outputFile = File.createTempFile("parallel_writer", ".bam");
+                ParallelSAMFileWriterFactory factory = new ParallelSAMFileWriterFactory().setCompressionThreads(threads);
+                writeRecords(factory.makeBAMWriter(header, true, outputFile, level), outputFile);
+                assertTrue(Arrays.equals(readBytes(outputFile), expected));
+            }
+        }
+    }
+
+    @Test
+    public void checkWriterOpenWhilePoolGrows() throws Exception {
+        System.out.println("Writer still compressing after another writer asks for more threads");
+
+        File expectedFile = File.createTempFile("picard_writer", ".bam");
+        writeRecords(new SAMFileWriterFactory().makeBAMWriter(header, true, expectedFile, 5), expectedFile);
+        byte[] expected = readBytes(expectedFile);
+
+        File openFile = File.createTempFile("parallel_writer", ".bam");
+        SAMFileWriter openWriter = new ParallelSAMFileWriterFactory().setCompressionThreads(1)
+                .makeBAMWriter(header, true, openFile, 5);
+        openWriter.addAlignment(records.get(0));
+
+        File outputFile = File.createTempFile("parallel_writer", ".bam");
+        ParallelSAMFileWriterFactory factory = new ParallelSAMFileWriterFactory().setCompressionThreads(8);
+        writeRecords(factory.makeBAMWriter(header, true, outputFile, 5), outputFile);
+        assertTrue(Arrays.equals(readBytes(outputFile), expected));
+
+        for (int i = 1; i < records.size(); i++) {
+            openWriter.addAlignment(records.get(i));
+        }
+        writeRecords(openWriter, openFile);
+        assertTrue(readBytes(openFile).length > 0);
+        SAMFileReader reader = new SAMFileReader(openFile);
+        int count = 0;
+        for (SAMRecord record : reader) {
+            count++;
+        }
+        reader.close();
+        assertEquals(1001 * records.size(), count);
+    }
+
+    @Test
+    public void checkMd5File() throws Exception {
+        System.out.println("md5 file of BAM compressed on a thread pool");
+
+        File expectedFile = File.createTempFile("picard_writer", ".bam");
+        new File(expectedFile.getPath() + ".md5").deleteOnExit();
+        writeRecords(new SAMFileWriterFactory().setCreateMd5File(true).makeSAMOrBAMWriter(header, true, expectedFile),
+                expectedFile);
+
+        File outputFile = File.createTempFile("parallel_writer", ".bam");
+        File md5File = new File(outputFile.getPath() + ".md5");
+        md5File.deleteOnExit();
+        ParallelSAMFileWriterFactory factory
+                = new ParallelSAMFileWriterFactory().setCompressionThreads(2).setCreateMd5File(true);
+        writeRecords(factory.makeSAMOrBAMWriter(header, true, outputFile), outputFile);
+
+        assertTrue(Arrays.equals(readBytes(md5File), readBytes(new File(expectedFile.getPath() + ".md5"))));
+    }
+
+    @Test
+    public void checkShardsAppended() throws Exception {
+        System.out.println("BAM shards appended block by block read back as written");
+
+        List<File> shards = new ArrayList<File>();
+        for (int i = 0; i < 2; i++) {
+            File shardFile = File.createTempFile("shard", ".bgzf");
+            ParallelSAMFileWriterFactory factory = new ParallelSAMFileWriterFactory().setCompressionThreads(i);
+            shards.add(writeRecords(factory.makeBAMShardWriter(header, shardFile), shardFile));
+        }
+
+        File outputFile = File.createTempFile("merged_shards", ".bam");
+        SAMFileWriter writer = new ParallelSAMFileWriterFactory().makeBAMWriter(header, true, outputFile);
+        writer.addAlignment(records.get(0));
+        for (File shard : shards) {
+            ((DirectBAMFileWriter) writer).appendShard(shard);
+        }
+        writeRecords(writer, outputFile);
+
+        SAMFileReader reader = new SAMFileReader(outputFile);
+        int count = 0;
+        for (SAMRecord record : reader) {
+            int index = (count == 0) ? 0 : (count - 1) % records.size();
+            assertEquals(records.get(index).getSAMString(), record.getSAMString());
+            count++;
+        }
+        reader.close();
+        assertEquals(1 + 3000 * records.size(), count);
+    }
+
+    @Test(expected = RuntimeIOException.class)
+    public void checkTruncatedShard() throws Exception {
+        System.out.println("Shard without end of file block");
+
+        File shardFile = File.createTempFile("shard", ".bgzf");
+        writeRecords(new ParallelSAMFileWriterFactory().makeBAMShardWriter(header, shardFile), shardFile);
+        RandomAccessFile file = new RandomAccessFile(shardFile, "rw");
+        file.setLength(shardFile.length() - 1);
+        file.close();
+        DirectBAMFileWriter.checkShard(shardFile);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkNoBlocksPending() {
+        System.out.println("At least one block pending");
+        new ParallelBlockCompressedOutputStream(System.out, 5, null, 0);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for BarcodeCensus
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.util.HashMap;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.npg.illumina.file.reader.BCLFileReader;
+
+/**
+ *
+ */
+public class BarcodeCensusTest {
+
+    private static String baseCallDir = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls/L001/";
+
+    private static ReadChunk loadChunk(int cycles, int clusters) throws Exception {
+
+        String[] bclFiles = {"C1.1/s_1_1101.bcl", "C2.1/s_1_1101.bcl", "C50.1/s_1_1101.bcl"};
+        BCLFileReader[] readers = new BCLFileReader[cycles];
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            readers[cycle] = new BCLFileReader(baseCallDir + bclFiles[cycle % bclFiles.length]);
+        }
+        ReadChunk chunk = new ReadChunk(cycles, clusters, true);
+        chunk.loadBaseCalls(readers, clusters);
+        for (BCLFileReader reader : readers) {
+            reader.close();
+        }
+        return chunk;
+    }
+
+    private static void checkCounts(ReadChunk indexChunk, ReadChunk index2Chunk) {
+
+        HashMap<String, long[]> expected = new HashMap<String, long[]>();
+        BarcodeCensus tileCensus1 = new BarcodeCensus();
+        BarcodeCensus tileCensus2 = new BarcodeCensus();
+        for (int cluster = 0; cluster < indexChunk.getClusters(); cluster++) {
+            boolean isPf = (cluster % 4 != 0);
+            String sequence = indexChunk.getBasesAsString(cluster)
+                    + (index2Chunk != null ? index2Chunk.getBasesAsString(cluster) : "");
+            long[] counts = expected.get(sequence);
+            if (counts == null) {
+                counts = new long[2];
+                expected.put(sequence, counts);
+            }
+            counts[0]++;
+            counts[1] += isPf ? 1 : 0;
+            (cluster < 1000 ? tileCensus1 : tileCensus2).add(indexChunk, index2Chunk, cluster, isPf);
+        }
+
+        BarcodeCensus census = new BarcodeCensus();
+        census.addAll(tileCensus1);
+        census.addAll(tileCensus2);
+        assertEquals(expected.size(), census.getSequenceCount());
+        assertEquals(indexChunk.getClusters(), census.getTotalReads());
+
+        List<BarcodeCensus.SequenceMetric> ranked = census.getRankedMetrics(expected.size());
+        assertEquals(expected.size(), ranked.size());
+        for (int i = 0; i < ranked.size(); i++) {
+            BarcodeCensus.SequenceMetric metric = ranked.get(i);
+            assertEquals(metric.BARCODE, expected.get(metric.BARCODE)[0], metric.READS);
+            assertEquals(metric.BARCODE, expected.get(metric.BARCODE)[1], metric.PF_READS);
+            if (i > 0) {
+                assertTrue(ranked.get(i - 1).READS >= metric.READS);
+            }
+        }
+
+        List<BarcodeCensus.SequenceMetric> top = census.getRankedMetrics(5);
+        assertEquals(5, top.size());
+        for (int i = 0; i < top.size(); i++) {
+            assertEquals(ranked.get(i).BARCODE, top.get(i).BARCODE);
+        }
+    }
+
+    @Test
+    public void checkPackedSequences() throws Exception {
+
+        System.out.println("Index read sequences counted in primitive hash table, ranked by count");
+        ReadChunk indexChunk = loadChunk(3, 5000);
+        checkCounts(indexChunk, null);
+        checkCounts(indexChunk, loadChunk(2, 5000));
+    }
+
+    @Test
+    public void checkLongSequences() throws Exception {
+
+        System.out.println("Index read sequences too long to be packed counted the same way");
+        checkCounts(loadChunk(14, 3000), loadChunk(13, 3000));
+    }
+}
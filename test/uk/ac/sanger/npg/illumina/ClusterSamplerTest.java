@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for ClusterSampler
+ */
+package uk.ac.sanger.npg.illumina;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.npg.illumina.file.reader.PFMask;
+
+/**
+ *
+ */
+public class ClusterSamplerTest {
+
+    @Test
+    public void checkSelection() {
+
+        System.out.println("Fraction of clusters selected the same each time for the same seed");
+        ClusterSampler sampler = new ClusterSampler(0.05, 7);
+        PFMask mask = sampler.select(1101, 100000);
+        assertEquals(100000, mask.getTotalClusters());
+        assertTrue(mask.getPfClusters() > 4700 && mask.getPfClusters() < 5300);
+        for (int i = 0; i < 100000; i++) {
+            assertEquals(sampler.isSelected(1101, i), mask.isPf(i));
+        }
+
+        PFMask sameSeed = new ClusterSampler(0.05, 7).select(1101, 100000);
+        PFMask otherSeed = new ClusterSampler(0.05, 8).select(1101, 100000);
+        PFMask otherTile = sampler.select(1102, 100000);
+        assertEquals(mask.getPfClusters(), mask.and(sameSeed).getPfClusters());
+        assertTrue(mask.and(otherSeed).getPfClusters() < 500);
+        assertTrue(mask.and(otherTile).getPfClusters() < 500);
+
+        assertEquals(1000, new ClusterSampler(1, 7).select(1101, 1000).getPfClusters());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkNoClusters() {
+
+        System.out.println("Fraction of clusters must be more than 0");
+        new ClusterSampler(0, 7);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for FastqFileWriter
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.util.BlockCompressedInputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
+import uk.ac.sanger.npg.illumina.file.reader.BCLFileReader;
+
+/**
+ *
+ */
+public class FastqFileWriterTest {
+
+    private static String baseCallDir = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls/L001/";
+
+    private final SAMFileHeader header = new SAMFileHeader();
+
+    private static List<String> readLines(InputStream in) throws Exception {
+
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        reader.close();
+        return lines;
+    }
+
+    private static File createTempFile(String suffix) throws Exception {
+
+        File file = File.createTempFile("fastq", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+
+    private SAMRecord createRecord(String bases, boolean paired, boolean firstRead) {
+
+        SAMRecord record = new SAMRecord(this.header);
+        record.setReadName("HS13_6000:1:1101:1126:1072#1");
+        record.setAttribute("ci", 300);
+        record.setReadBases(bases.getBytes());
+        record.setBaseQualities(new byte[] {0, 40, 2});
+        record.setReadUnmappedFlag(true);
+        record.setAttribute("RG", "1#1");
+        if (paired) {
+            record.setReadPairedFlag(true);
+            record.setFirstOfPairFlag(firstRead);
+            record.setSecondOfPairFlag(!firstRead);
+        }
+        if (!paired || firstRead) {
+            record.setAttribute("BC", "ACGT");
+            record.setAttribute("QT", "IIII");
+        }
+        return record;
+    }
+
+    @Test
+    public void checkFastqFileNames() {
+
+        System.out.println("FASTQ output chosen by file name");
+        assertTrue(FastqFileWriter.isFastqFile(new File("test.fastq")));
+        assertTrue(FastqFileWriter.isFastqFile(new File("test_1.fq.gz")));
+        assertTrue(FastqFileWriter.isFastqFile(new File("TEST.FASTQ.GZ")));
+        assertFalse(FastqFileWriter.isFastqFile(new File("test.bam")));
+        assertFalse(FastqFileWriter.isFastqFile(new File("test.gz")));
+    }
+
+    @Test
+    public void checkInterleavedRecords() throws Exception {
+
+        System.out.println("Read 1 and read 2 interleaved, cluster index and bar code after read name");
+        File output = createTempFile(".fastq");
+        FastqFileWriter writer = new FastqFileWriter(this.header, output, null, null, "BC", null,
+                new ParallelSAMFileWriterFactory());
+        writer.addAlignment(this.createRecord("NAC", true, true));
+        writer.addAlignment(this.createRecord("GTA", true, false));
+        writer.close();
+
+        List<String> lines = readLines(new FileInputStream(output));
+        assertEquals(8, lines.size());
+        assertEquals("@HS13_6000:1:1101:1126:1072#1/1\tci:i:300\tBC:Z:ACGT", lines.get(0));
+        assertEquals("NAC", lines.get(1));
+        assertEquals("+", lines.get(2));
+        assertEquals("!I#", lines.get(3));
+        assertEquals("@HS13_6000:1:1101:1126:1072#1/2\tci:i:300", lines.get(4));
+        assertEquals("GTA", lines.get(5));
+    }
+
+    @Test
+    public void checkSecondEndCompressed() throws Exception {
+
+        System.out.println("Read 2 to its own file, gzip and BGZF compressed");
+        File output = createTempFile(".fq.gz");
+        File secondEndOutput = createTempFile(".fq.gz");
+        FastqFileWriter writer = new FastqFileWriter(this.header, output, secondEndOutput,
+                FastqFileWriter.Compression.BGZF, "BC", null, new ParallelSAMFileWriterFactory());
+        writer.addAlignment(this.createRecord("NAC", true, true));
+        writer.addAlignment(this.createRecord("GTA", true, false));
+        writer.close();
+
+        List<String> lines = readLines(new BlockCompressedInputStream(output));
+        assertEquals(4, lines.size());
+        assertEquals("@HS13_6000:1:1101:1126:1072#1/1\tci:i:300\tBC:Z:ACGT", lines.get(0));
+        lines = readLines(new GZIPInputStream(new FileInputStream(secondEndOutput)));
+        assertEquals(4, lines.size());
+        assertEquals("GTA", lines.get(1));
+
+        output = createTempFile(".fastq.gz");
+        writer = new FastqFileWriter(this.header, output, null, null, "BC", null, new ParallelSAMFileWriterFactory());
+        writer.addAlignment(this.createRecord("NAC", false, true));
+        writer.close();
+        lines = readLines(new GZIPInputStream(new FileInputStream(output)));
+        assertEquals("@HS13_6000:1:1101:1126:1072#1\tci:i:300\tBC:Z:ACGT", lines.get(0));
+    }
+
+    @Test
+    public void checkChunkSameAsRecord() throws Exception {
+
+        System.out.println("Reads written from chunk buffers the same as from SAM records");
+        BCLFileReader [] readers = {new BCLFileReader(baseCallDir + "C1.1/s_1_1101.bcl"),
+                                    new BCLFileReader(baseCallDir + "C2.1/s_1_1101.bcl")};
+        ReadChunk chunk = new ReadChunk(2, 500, true);
+        chunk.loadBaseCalls(readers, 500);
+
+        File chunkOutput = createTempFile(".fastq");
+        File recordOutput = createTempFile(".fastq");
+        FastqFileWriter chunkWriter = new FastqFileWriter(this.header, chunkOutput, null, null, "BC", null,
+                new ParallelSAMFileWriterFactory());
+        FastqFileWriter recordWriter = new FastqFileWriter(this.header, recordOutput, null, null, "BC", null,
+                new ParallelSAMFileWriterFactory());
+
+        byte[] readName = "HS13_6000:1:1101:1126:1072".getBytes();
+        for (int cluster = 0; cluster < chunk.getClusters(); cluster++) {
+            chunkWriter.addRead(readName, readName.length, 1, cluster + 1, chunk, cluster, chunk, null);
+
+            byte[][] baseQuals = chunk.getBaseQuals(cluster);
+            SAMRecord record = new SAMRecord(this.header);
+            record.setReadName("HS13_6000:1:1101:1126:1072");
+            record.setAttribute("ci", cluster + 1);
+            record.setReadBases(baseQuals[0]);
+            record.setBaseQualities(baseQuals[1]);
+            record.setReadPairedFlag(true);
+            record.setFirstOfPairFlag(true);
+            record.setAttribute("BC", new String(baseQuals[0]));
+            recordWriter.addAlignment(record);
+        }
+        chunkWriter.close();
+        recordWriter.close();
+
+        assertEquals(readLines(new FileInputStream(recordOutput)), readLines(new FileInputStream(chunkOutput)));
+    }
+}
@@ -95,7 +95,7 @@ public class Illumina2bamTest {
                 + " STUDY_NAME=testStudy RUN_START_DATE=2011-03-23T00:00:00+0000 FIRST_TILE=1101 TILE_LIMIT=1"
                 + " TMP_DIR=[testdata] VALIDATION_STRINGENCY=STRICT COMPRESSION_LEVEL=1"
                 + " CREATE_MD5_FILE=true    GENERATE_SECONDARY_BASE_CALLS=false PF_FILTER=true READ_GROUP_ID=1"
-                + " SEQUENCING_CENTER=SC PLATFORM=ILLUMINA BARCODE_SEQUENCE_TAG_NAME=BC BARCODE_QUALITY_TAG_NAME=QT"
+                + " SEQUENCING_CENTER=SC PLATFORM=ILLUMINA BARCODE_SEQUENCE_TAG_NAME=BC BARCODE_QUALITY_TAG_NAME=QT MEMORY_MAP_BCL=true CLUSTER_CHUNK_SIZE=32768 DECOMPRESSION_THREADS=0 DECOMPRESSION_READ_AHEAD=4 LOADING_THREADS=1 PREFETCH_TILES=1 TILE_THREADS=1 TILE_BUFFER_RECORDS=500000 PREFLIGHT_CHECK=false PREFLIGHT_ONLY=false TILES_PER_SHARD=1 MERGE_SHARDS=true RESUME=false MAX_MISMATCHES=1 MIN_MISMATCH_DELTA=1 MAX_NO_CALLS=2 CONVERT_LOW_QUALITY_TO_NO_CALL=false MAX_LOW_QUALITY_TO_CONVERT=15 SPLIT_BY_BARCODE=false MAX_CENSUS_SEQUENCES=1000 SAMPLE_SEED=1"
                 + " VERBOSITY=INFO QUIET=false MAX_RECORDS_IN_RAM=500000 CREATE_INDEX=false",
                 testData.illumina2bam.getCommandLine()
                );
@@ -143,7 +143,7 @@ public class Illumina2bamTest {
                 + " STUDY_NAME=testStudy RUN_START_DATE=2011-03-23T00:00:00+0000 TILE_LIMIT=1"
                 + " TMP_DIR=[testdata] VALIDATION_STRINGENCY=STRICT COMPRESSION_LEVEL=1"
                 + " CREATE_MD5_FILE=true    GENERATE_SECONDARY_BASE_CALLS=false PF_FILTER=true READ_GROUP_ID=1"
-                + " SEQUENCING_CENTER=SC PLATFORM=ILLUMINA BARCODE_SEQUENCE_TAG_NAME=BC BARCODE_QUALITY_TAG_NAME=QT"
+                + " SEQUENCING_CENTER=SC PLATFORM=ILLUMINA BARCODE_SEQUENCE_TAG_NAME=BC BARCODE_QUALITY_TAG_NAME=QT MEMORY_MAP_BCL=true CLUSTER_CHUNK_SIZE=32768 DECOMPRESSION_THREADS=0 DECOMPRESSION_READ_AHEAD=4 LOADING_THREADS=1 PREFETCH_TILES=1 TILE_THREADS=1 TILE_BUFFER_RECORDS=500000 PREFLIGHT_CHECK=false PREFLIGHT_ONLY=false TILES_PER_SHARD=1 MERGE_SHARDS=true RESUME=false MAX_MISMATCHES=1 MIN_MISMATCH_DELTA=1 MAX_NO_CALLS=2 CONVERT_LOW_QUALITY_TO_NO_CALL=false MAX_LOW_QUALITY_TO_CONVERT=15 SPLIT_BY_BARCODE=false MAX_CENSUS_SEQUENCES=1000 SAMPLE_SEED=1"
                 + " VERBOSITY=INFO QUIET=false MAX_RECORDS_IN_RAM=500000 CREATE_INDEX=false",
                 testData.illumina2bam.getCommandLine()
                );
@@ -185,7 +185,7 @@ public class Illumina2bamTest {
                 + " FIRST_CYCLE=[50] FINAL_CYCLE=[51]"
                 + " TMP_DIR=[testdata] VALIDATION_STRINGENCY=STRICT COMPRESSION_LEVEL=1"
                 + " CREATE_MD5_FILE=true    GENERATE_SECONDARY_BASE_CALLS=false PF_FILTER=true READ_GROUP_ID=1"
-                + " SEQUENCING_CENTER=SC PLATFORM=ILLUMINA BARCODE_SEQUENCE_TAG_NAME=BC BARCODE_QUALITY_TAG_NAME=QT"
+                + " SEQUENCING_CENTER=SC PLATFORM=ILLUMINA BARCODE_SEQUENCE_TAG_NAME=BC BARCODE_QUALITY_TAG_NAME=QT MEMORY_MAP_BCL=true CLUSTER_CHUNK_SIZE=32768 DECOMPRESSION_THREADS=0 DECOMPRESSION_READ_AHEAD=4 LOADING_THREADS=1 PREFETCH_TILES=1 TILE_THREADS=1 TILE_BUFFER_RECORDS=500000 PREFLIGHT_CHECK=false PREFLIGHT_ONLY=false TILES_PER_SHARD=1 MERGE_SHARDS=true RESUME=false MAX_MISMATCHES=1 MIN_MISMATCH_DELTA=1 MAX_NO_CALLS=2 CONVERT_LOW_QUALITY_TO_NO_CALL=false MAX_LOW_QUALITY_TO_CONVERT=15 SPLIT_BY_BARCODE=false MAX_CENSUS_SEQUENCES=1000 SAMPLE_SEED=1"
                 + " VERBOSITY=INFO QUIET=false MAX_RECORDS_IN_RAM=500000 CREATE_INDEX=false",
                 testData.illumina2bam.getCommandLine()
                );
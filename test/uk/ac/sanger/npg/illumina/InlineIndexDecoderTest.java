@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for InlineIndexDecoder
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.sf.picard.metrics.MetricsFile;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMReadGroupRecord;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.npg.illumina.file.reader.BCLFileReader;
+import uk.ac.sanger.npg.picard.IndexDecoder;
+
+/**
+ *
+ */
+public class InlineIndexDecoderTest {
+
+    private static String baseCallDir = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls/L001/";
+
+    private static IndexDecoder prepareDecoder() {
+
+        IndexDecoder indexDecoder = new IndexDecoder(Arrays.asList("AT", "GC", "TT"));
+        indexDecoder.setMaxMismatches(0);
+        ArrayList<String> messages = new ArrayList<String>();
+        indexDecoder.prepareDecode(messages);
+        assertTrue(messages.toString(), messages.isEmpty());
+        return indexDecoder;
+    }
+
+    private static List<String> readMetrics(File metricsFile) throws Exception {
+
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(metricsFile));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.startsWith("#")) {
+                lines.add(line);
+            }
+        }
+        reader.close();
+        return lines;
+    }
+
+    @Test
+    public void checkDecodingSettings() {
+
+        System.out.println("Decoding settings change with bar codes and thresholds");
+        String settings = new InlineIndexDecoder(prepareDecoder(), "1", false, 15).getDecodingSettings();
+        assertEquals(settings, new InlineIndexDecoder(prepareDecoder(), "1", false, 15).getDecodingSettings());
+        assertTrue(settings.contains("maxMismatches=0 "));
+        assertTrue(settings.contains("barcode\tGC\t2\n"));
+
+        assertFalse(settings.equals(new InlineIndexDecoder(prepareDecoder(), "1", true, 15).getDecodingSettings()));
+        assertFalse(settings.equals(new InlineIndexDecoder(prepareDecoder(), "1", false, 20).getDecodingSettings()));
+
+        IndexDecoder otherThreshold = prepareDecoder();
+        otherThreshold.setMaxNoCalls(0);
+        assertFalse(settings.equals(new InlineIndexDecoder(otherThreshold, "1", false, 15).getDecodingSettings()));
+
+        IndexDecoder otherBarcodes = new IndexDecoder(Arrays.asList("AT", "GC", "TA"));
+        otherBarcodes.setMaxMismatches(0);
+        otherBarcodes.prepareDecode(new ArrayList<String>());
+        assertFalse(settings.equals(new InlineIndexDecoder(otherBarcodes, "1", false, 15).getDecodingSettings()));
+    }
+
+    @Test
+    public void checkDecodeHeader() {
+
+        System.out.println("Read group for each bar code, 0 for no match");
+        InlineIndexDecoder decoder = new InlineIndexDecoder(prepareDecoder(), "1", false, 15);
+
+        SAMFileHeader header = new SAMFileHeader();
+        SAMReadGroupRecord readGroup = new SAMReadGroupRecord("1");
+        readGroup.setPlatformUnit("run_1");
+        header.addReadGroup(readGroup);
+
+        SAMFileHeader decodedHeader = decoder.decodeHeader(header, "Illumina2bam", null);
+        assertEquals(4, decodedHeader.getReadGroups().size());
+        assertEquals("1#0", decodedHeader.getReadGroups().get(0).getId());
+        assertEquals("1#2", decodedHeader.getReadGroups().get(2).getId());
+        assertEquals("run_1#2", decodedHeader.getReadGroups().get(2).getPlatformUnit());
+        assertEquals("Illumina2bam", decodedHeader.getReadGroups().get(2).getAttribute("PG"));
+        assertEquals(1, header.getReadGroups().size());
+
+        SAMFileHeader barcodeHeader = decoder.decodeHeader(header, null, "GC");
+        assertEquals(1, barcodeHeader.getReadGroups().size());
+        assertEquals("1#2", barcodeHeader.getReadGroups().get(0).getId());
+        assertEquals("1#2", decoder.getReadGroupId("GC"));
+        assertEquals("1#0", decoder.getReadGroupId(""));
+        assertEquals("#3", new String(decoder.getReadNameSuffix("TT")));
+    }
+
+    @Test
+    public void checkDecodeSameAsIndexDecoder() throws Exception {
+
+        System.out.println("Index reads of a chunk decoded the same as IndexDecoder in two tiles");
+        IndexDecoder expectedDecoder = prepareDecoder();
+        InlineIndexDecoder decoder = new InlineIndexDecoder(prepareDecoder(), "1", false, 15);
+
+        BCLFileReader [] readers = {new BCLFileReader(baseCallDir + "C1.1/s_1_1101.bcl"),
+                                    new BCLFileReader(baseCallDir + "C2.1/s_1_1101.bcl")};
+        ReadChunk chunk = new ReadChunk(2, 1000, true);
+        for (int tile = 0; tile < 2; tile++) {
+            chunk.loadBaseCalls(readers, 1000);
+            IndexDecoder tileDecoder = decoder.newTileDecoder();
+            for (int cluster = 0; cluster < chunk.getClusters(); cluster++) {
+                boolean isPf = (cluster % 3 != 0);
+                IndexDecoder.BarcodeMatch match = expectedDecoder.extractBarcode(chunk.getBasesAsString(cluster), isPf);
+                String expected = match.isMatched() ? match.getBarcode().toUpperCase() : "";
+                assertEquals(expected, decoder.decode(tileDecoder, chunk, cluster, isPf));
+            }
+            decoder.addTileMetrics(tileDecoder);
+        }
+
+        File expectedMetrics = File.createTempFile("expected", ".metrics");
+        File metrics = File.createTempFile("inline", ".metrics");
+        expectedMetrics.deleteOnExit();
+        metrics.deleteOnExit();
+        expectedDecoder.writeMetrics(new MetricsFile<IndexDecoder.BarcodeMetric, Integer>(), expectedMetrics);
+        decoder.writeMetrics(new MetricsFile<IndexDecoder.BarcodeMetric, Integer>(), metrics);
+        assertEquals(readMetrics(expectedMetrics), readMetrics(metrics));
+    }
+
+    @Test
+    public void checkLowQualityConverted() throws Exception {
+
+        System.out.println("Low quality bases of the index read converted to no call");
+        InlineIndexDecoder decoder = new InlineIndexDecoder(prepareDecoder(), "1", true, 63);
+
+        BCLFileReader [] readers = {new BCLFileReader(baseCallDir + "C1.1/s_1_1101.bcl"),
+                                    new BCLFileReader(baseCallDir + "C2.1/s_1_1101.bcl")};
+        ReadChunk chunk = new ReadChunk(2, 100, true);
+        chunk.loadBaseCalls(readers, 100);
+        IndexDecoder tileDecoder = decoder.newTileDecoder();
+        for (int cluster = 0; cluster < chunk.getClusters(); cluster++) {
+            assertEquals("", decoder.decode(tileDecoder, chunk, cluster, true));
+        }
+    }
+}
@@ -32,6 +32,7 @@ import org.junit.AfterClass;
 import static org.junit.Assert.*;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import uk.ac.sanger.npg.bam.util.ParallelSAMFileWriterFactory;
 
 /**
  *
@@ -321,7 +322,7 @@ public class LaneTest {
 
         System.out.println("Generate output stream");
         
-        SAMFileWriterFactory.setDefaultCreateMd5File(true);
+        ParallelSAMFileWriterFactory.setDefaultCreateMd5File(true);
         SAMFileWriter outputSam = lane.generateOutputSamStream();
         assertNotNull(outputSam);
         outputSam.close();
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * This is the test class for ReadChunk
+ *
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import uk.ac.sanger.npg.illumina.file.reader.BCLFileReader;
+import uk.ac.sanger.npg.illumina.file.reader.BGZFBCLFileReader;
+import uk.ac.sanger.npg.illumina.file.reader.FilterFileReader;
+import uk.ac.sanger.npg.illumina.file.reader.PFMask;
+import uk.ac.sanger.npg.illumina.file.reader.SCLFileReader;
+
+/**
+ *
+ */
+public class ReadChunkTest {
+
+    private static String baseCallDir = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls/L001/";
+
+    private static File createBGZFFile(String bclFile) throws Exception {
+
+        File bgzfFile = File.createTempFile("s_1_1101", ".bcl.bgzf");
+        bgzfFile.deleteOnExit();
+        FileInputStream in = new FileInputStream(bclFile);
+        BlockCompressedOutputStream out = new BlockCompressedOutputStream(bgzfFile);
+        byte [] buffer = new byte[100000];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        out.close();
+        return bgzfFile;
+    }
+
+    @Test
+    public void checkTranspose() {
+
+        System.out.println("Transpose a matrix bigger than one block");
+        int rows = 37;
+        int columns = 70;
+        byte [] src = new byte[rows * 100];
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                src[row * 100 + column] = (byte) (row * 7 + column);
+            }
+        }
+        byte [] dst = new byte[rows * columns];
+        ReadChunk.transpose(src, 100, dst, rows, rows, columns);
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < columns; column++) {
+                assertEquals(src[row * 100 + column], dst[column * rows + row]);
+            }
+        }
+    }
+
+    @Test
+    public void checkLoadBaseCalls() throws Exception {
+
+        System.out.println("Load two cycles in chunks and compare with reading cluster by cluster");
+        String [] bclFiles = {baseCallDir + "C1.1/s_1_1101.bcl", baseCallDir + "C2.1/s_1_1101.bcl"};
+        BCLFileReader [] chunkReaders = {new BCLFileReader(bclFiles[0]), new BCLFileReader(bclFiles[1])};
+        BCLFileReader [] clusterReaders = {new BCLFileReader(bclFiles[0]), new BCLFileReader(bclFiles[1])};
+
+        ReadChunk chunk = new ReadChunk(2, 1000, true);
+        for (int loaded = 0; loaded < 3; loaded++) {
+            chunk.loadBaseCalls(chunkReaders, 1000);
+            assertEquals(chunk.getClusters(), 1000);
+            for (int cluster = 0; cluster < 1000; cluster++) {
+                byte [][] baseQuals = chunk.getBaseQuals(cluster);
+                for (int cycle = 0; cycle < 2; cycle++) {
+                    byte [] expected = clusterReaders[cycle].next();
+                    assertEquals(expected[0], baseQuals[0][cycle]);
+                    assertEquals(expected[1], baseQuals[1][cycle]);
+                }
+            }
+        }
+
+        for (int cycle = 0; cycle < 2; cycle++) {
+            chunkReaders[cycle].close();
+            clusterReaders[cycle].close();
+        }
+    }
+
+    @Test
+    public void checkLoadBaseCallsInParallel() throws Exception {
+
+        System.out.println("Load cycles in parallel, splitting a bgzf bcl file by blocks");
+        String bclFile = baseCallDir + "C1.1/s_1_1101_uncompressed.bcl";
+        File bgzfFile = createBGZFFile(bclFile);
+
+        BCLFileReader [] parallelReaders = {new BGZFBCLFileReader(bgzfFile.getPath()), new BCLFileReader(baseCallDir + "C2.1/s_1_1101.bcl")};
+        BCLFileReader [] sequentialReaders = {new BCLFileReader(bclFile), new BCLFileReader(baseCallDir + "C2.1/s_1_1101.bcl")};
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        ReadChunk parallelChunk = new ReadChunk(2, 200000, true);
+        ReadChunk sequentialChunk = new ReadChunk(2, 200000, true);
+        for (int loaded = 0; loaded < 2; loaded++) {
+            parallelChunk.loadBaseCalls(parallelReaders, 200000, executor);
+            sequentialChunk.loadBaseCalls(sequentialReaders, 200000);
+            for (int cluster = 0; cluster < 200000; cluster++) {
+                byte [][] parallelBaseQuals = parallelChunk.getBaseQuals(cluster);
+                byte [][] sequentialBaseQuals = sequentialChunk.getBaseQuals(cluster);
+                assertArrayEquals(sequentialBaseQuals[0], parallelBaseQuals[0]);
+                assertArrayEquals(sequentialBaseQuals[1], parallelBaseQuals[1]);
+            }
+        }
+        assertEquals(parallelReaders[0].getCurrentCluster(), 400000);
+
+        executor.shutdown();
+        for (int cycle = 0; cycle < 2; cycle++) {
+            parallelReaders[cycle].close();
+            sequentialReaders[cycle].close();
+        }
+        bgzfFile.delete();
+    }
+
+    @Test
+    public void checkLoadPFBaseCallsOnly() throws Exception {
+
+        System.out.println("Load only PF clusters in chunks and compare with reading cluster by cluster");
+        FilterFileReader filterFileReader = new FilterFileReader(baseCallDir + "s_1_1101.filter");
+        PFMask mask = filterFileReader.readPFMask();
+        filterFileReader.close();
+
+        String [] bclFiles = {baseCallDir + "C1.1/s_1_1101.bcl", baseCallDir + "C2.1/s_1_1101.bcl"};
+        BCLFileReader [] chunkReaders = {new BCLFileReader(bclFiles[0]), new BCLFileReader(bclFiles[1])};
+        BCLFileReader [] clusterReaders = {new BCLFileReader(bclFiles[0]), new BCLFileReader(bclFiles[1])};
+        SCLFileReader [] sclChunkReaders = {new SCLFileReader(baseCallDir + "C1.1/s_1_1101.scl")};
+        SCLFileReader sclClusterReader = new SCLFileReader(baseCallDir + "C1.1/s_1_1101.scl");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+
+        ReadChunk chunk = new ReadChunk(2, 1000, true);
+        ReadChunk secondCallChunk = new ReadChunk(1, 1000, false);
+        int firstCluster = 0;
+        for (int loaded = 0; loaded < 3; loaded++) {
+            chunk.loadBaseCalls(chunkReaders, 1000, mask, firstCluster, (loaded == 1) ? executor : null);
+            secondCallChunk.loadSecondCalls(sclChunkReaders, 1000, mask, firstCluster);
+            assertEquals(chunk.getClusters(), mask.countPf(firstCluster, firstCluster + 1000));
+            assertEquals(secondCallChunk.getClusters(), chunk.getClusters());
+            int pfCluster = 0;
+            for (int cluster = firstCluster; cluster < firstCluster + 1000; cluster++) {
+                byte [][] expected = {clusterReaders[0].next(), clusterReaders[1].next()};
+                char secondBase = sclClusterReader.next();
+                if (!mask.isPf(cluster)) {
+                    continue;
+                }
+                byte [][] baseQuals = chunk.getBaseQuals(pfCluster);
+                for (int cycle = 0; cycle < 2; cycle++) {
+                    assertEquals(expected[cycle][0], baseQuals[0][cycle]);
+                    assertEquals(expected[cycle][1], baseQuals[1][cycle]);
+                }
+                assertEquals(secondCallChunk.getBasesAsString(pfCluster), String.valueOf(secondBase));
+                pfCluster++;
+            }
+            assertEquals(pfCluster, chunk.getClusters());
+            firstCluster += 1000;
+        }
+
+        executor.shutdown();
+        for (int cycle = 0; cycle < 2; cycle++) {
+            chunkReaders[cycle].close();
+            clusterReaders[cycle].close();
+        }
+        sclChunkReaders[0].close();
+        sclClusterReader.close();
+    }
+
+    @Test
+    public void checkLoadPFBaseCallsInParallel() throws Exception {
+
+        System.out.println("Load only PF clusters in parallel, splitting a bgzf bcl file by blocks");
+        FilterFileReader filterFileReader = new FilterFileReader(baseCallDir + "s_1_1101.filter");
+        PFMask mask = filterFileReader.readPFMask();
+        filterFileReader.close();
+
+        String bclFile = baseCallDir + "C1.1/s_1_1101_uncompressed.bcl";
+        File bgzfFile = createBGZFFile(bclFile);
+        BGZFBCLFileReader bgzfReader = new BGZFBCLFileReader(bgzfFile.getPath());
+        BCLFileReader [] parallelReaders = {bgzfReader, new BCLFileReader(baseCallDir + "C2.1/s_1_1101.bcl")};
+        BCLFileReader [] sequentialReaders = {new BCLFileReader(bclFile), new BCLFileReader(baseCallDir + "C2.1/s_1_1101.bcl")};
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+
+        ReadChunk parallelChunk = new ReadChunk(2, 200000, true);
+        ReadChunk sequentialChunk = new ReadChunk(2, 200000, true);
+        int firstCluster = 0;
+        for (int loaded = 0; loaded < 2; loaded++) {
+            assertTrue(bgzfReader.getBlockBoundaries(firstCluster, 200000).length > 2);
+            parallelChunk.loadBaseCalls(parallelReaders, 200000, mask, firstCluster, executor);
+            sequentialChunk.loadBaseCalls(sequentialReaders, 200000);
+            assertEquals(parallelChunk.getClusters(), mask.countPf(firstCluster, firstCluster + 200000));
+            int pfCluster = 0;
+            for (int cluster = 0; cluster < 200000; cluster++) {
+                if (!mask.isPf(firstCluster + cluster)) {
+                    continue;
+                }
+                byte [][] parallelBaseQuals = parallelChunk.getBaseQuals(pfCluster++);
+                byte [][] sequentialBaseQuals = sequentialChunk.getBaseQuals(cluster);
+                assertArrayEquals(sequentialBaseQuals[0], parallelBaseQuals[0]);
+                assertArrayEquals(sequentialBaseQuals[1], parallelBaseQuals[1]);
+            }
+            firstCluster += 200000;
+        }
+        assertEquals(bgzfReader.getCurrentCluster(), 400000);
+
+        executor.shutdown();
+        for (int cycle = 0; cycle < 2; cycle++) {
+            parallelReaders[cycle].close();
+            sequentialReaders[cycle].close();
+        }
+        bgzfFile.delete();
+    }
+
+    @Test
+    public void checkLoadSecondCalls() throws Exception {
+
+        System.out.println("Load second calls in a chunk");
+        SCLFileReader [] sclReaders = {new SCLFileReader(baseCallDir + "C1.1/s_1_1101.scl")};
+
+        ReadChunk chunk = new ReadChunk(1, 400, false);
+        chunk.loadSecondCalls(sclReaders, 307);
+        assertEquals(chunk.getBasesAsString(0), "A");
+        assertEquals(chunk.getBasesAsString(306), "T");
+        sclReaders[0].close();
+    }
+
+    @Test
+    public void checkInterruptedLoadWaitsForRunningTasks() throws Exception {
+
+        System.out.println("An interrupted load only returns once the loading tasks have stopped");
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        tasks.add(new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                started.countDown();
+                long end = System.currentTimeMillis() + 500;
+                while (System.currentTimeMillis() < end) {
+                    Thread.yield();
+                }
+                finished.set(true);
+                return null;
+            }
+        });
+        for (int i = 0; i < 10; i++) {
+            tasks.add(Executors.callable(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(1);
+        final AtomicBoolean finishedOnReturn = new AtomicBoolean(false);
+        Thread loader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ReadChunk.runTasks(tasks, executor);
+                } catch (Exception ex) {
+                    finishedOnReturn.set(finished.get());
+                }
+            }
+        };
+        loader.start();
+        started.await();
+        loader.interrupt();
+        loader.join();
+        assertTrue(finishedOnReturn.get());
+        executor.shutdown();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void checkClusterOutOfChunk() throws Exception {
+
+        System.out.println("Get a cluster not loaded");
+        ReadChunk chunk = new ReadChunk(1, 10, true);
+        chunk.getBaseQuals(0);
+    }
+}
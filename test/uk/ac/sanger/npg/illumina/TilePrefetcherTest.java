@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for TilePrefetcher
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class TilePrefetcherTest {
+
+    private static String intensityDir = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities";
+    private static String baseCallDir  = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls";
+
+    private Tile createTile(int lastCycle) {
+
+        HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>(1);
+        cycleRangeByRead.put("read1", new int[] {1, lastCycle});
+        return new Tile(intensityDir, baseCallDir, "HS13_6000", 1, 1101, cycleRangeByRead, false, true, "BC", "QT");
+    }
+
+    @Test
+    public void checkTilesOpenedInOrder() throws Exception {
+        System.out.println("Open tiles ahead of the reading thread in order");
+        List<Tile> tiles = new ArrayList<Tile>();
+        for (int i = 0; i < 3; i++) {
+            tiles.add(this.createTile(2));
+        }
+        TilePrefetcher prefetcher = new TilePrefetcher(tiles, 1);
+        prefetcher.start();
+        try {
+            for (Tile expected : tiles) {
+                Tile tile = prefetcher.nextTile();
+                assertSame(tile, expected);
+                assertEquals(tile.getBclFileReaderListByRead().get("read1").length, 2);
+                assertNotNull(tile.getPFMask());
+                tile.closeBaseCallFiles();
+            }
+            assertNull(prefetcher.nextTile());
+        } finally {
+            prefetcher.shutdown();
+        }
+        assertTrue(prefetcher.getStallNanos() >= 0);
+        assertTrue(prefetcher.getWaitNanos() >= 0);
+    }
+
+    @Test
+    public void checkErrorPassedToReadingThread() throws Exception {
+        System.out.println("Error opening a tile thrown when taking it");
+        List<Tile> tiles = new ArrayList<Tile>();
+        tiles.add(this.createTile(2));
+        tiles.add(this.createTile(3));
+        tiles.add(this.createTile(2));
+        TilePrefetcher prefetcher = new TilePrefetcher(tiles, 2);
+        prefetcher.start();
+        try {
+            prefetcher.nextTile().closeBaseCallFiles();
+            try {
+                prefetcher.nextTile();
+                fail("A tile with base call files missing should not be opened");
+            } catch (Exception ex) {
+                assertFalse(ex instanceof InterruptedException);
+            }
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkNoTilesAhead() {
+        System.out.println("At least one tile must be opened ahead");
+        new TilePrefetcher(new ArrayList<Tile>(), 0);
+    }
+}
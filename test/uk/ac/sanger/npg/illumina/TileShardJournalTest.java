@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for TileShardJournal
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class TileShardJournalTest {
+
+    private static File createShard(File dir, String name, int length) throws Exception {
+
+        File shard = new File(dir, name);
+        shard.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(shard);
+        for (int i = 0; i < length; i++) {
+            out.write(i);
+        }
+        out.close();
+        return shard;
+    }
+
+    private static File createDir() throws Exception {
+
+        File dir = File.createTempFile("shards", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    @Test
+    public void checkResume() throws Exception {
+
+        System.out.println("Shards in the journal reused when resuming, unless changed");
+        File dir = createDir();
+        File journalFile = new File(dir, "s_1.journal");
+        journalFile.deleteOnExit();
+        File shard1 = createShard(dir, "s_1_1101.bgzf", 1000);
+        File shard2 = createShard(dir, "s_1_1102.bgzf", 2000);
+        File shard3 = createShard(dir, "s_1_1103.bgzf", 3000);
+
+        TileShardJournal journal = new TileShardJournal(journalFile, "settings", false);
+        journal.addShard(shard1, 1);
+        journal.addShard(shard2, 1);
+        journal.close();
+
+        //a line cut short when stopped
+        FileOutputStream out = new FileOutputStream(journalFile, true);
+        out.write("s_1_1103.bgzf\t1\t30".getBytes());
+        out.close();
+
+        RandomAccessFile changed = new RandomAccessFile(shard2, "rw");
+        changed.seek(10);
+        changed.write(0);
+        changed.close();
+
+        journal = new TileShardJournal(journalFile, "settings", true);
+        assertTrue(journal.isComplete(shard1));
+        assertFalse(journal.isComplete(shard2));
+        assertFalse(journal.isComplete(shard3));
+        journal.addShard(shard2, 1);
+        journal.close();
+
+        journal = new TileShardJournal(journalFile, "settings", true);
+        assertTrue(journal.isComplete(shard1));
+        assertTrue(journal.isComplete(shard2));
+        journal.close();
+
+        journal = new TileShardJournal(journalFile, "settings", false);
+        assertFalse(journal.isComplete(shard1));
+        journal.close();
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void checkDifferentSettings() throws Exception {
+
+        System.out.println("No resuming from shards written with different settings");
+        File dir = createDir();
+        File journalFile = new File(dir, "s_1.journal");
+        journalFile.deleteOnExit();
+
+        TileShardJournal journal = new TileShardJournal(journalFile, "settings", false);
+        journal.addShard(createShard(dir, "s_1_1101.bgzf", 100), 1);
+        journal.close();
+
+        new TileShardJournal(journalFile, "other settings", true);
+    }
+}
@@ -21,9 +21,11 @@ package uk.ac.sanger.npg.illumina;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMFileWriterFactory;
@@ -117,6 +119,16 @@ public class TileTest {
         assertEquals(tile.getReadName(pos), "HS13_6000:1:1101:21238:9999");
     }
 
+    @Test
+    public void checkReadNameFromCoordinates() {
+        
+        System.out.println("getReadName from coordinates");
+        assertEquals(tile.getReadName(21238, 9999), "HS13_6000:1:1101:21238:9999");
+        assertEquals(tile.getReadName(1000, 0), "HS13_6000:1:1101:1000:0");
+        assertEquals(tile.getReadName(-5, Integer.MAX_VALUE), "HS13_6000:1:1101:-5:2147483647");
+        assertEquals(tile.getReadName(Integer.MIN_VALUE, 10), "HS13_6000:1:1101:-2147483648:10");
+    }
+
     @Test
     public void checkOneSAMRecord() {
         
@@ -244,6 +256,52 @@ public class TileTest {
         outputSam.close();
     }
 
+    private static void writeFile(File runDir, String fileName, int[] header, int dataBytes) throws IOException {
+
+        //directories deleted on exit after their files, registered before them
+        File file = runDir;
+        for (String name : fileName.split("/")) {
+            file = new File(file, name);
+            file.deleteOnExit();
+        }
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        for (int value : header) {
+            out.write(new byte[] {(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)});
+        }
+        out.write(new byte[dataBytes]);
+        out.close();
+    }
+
+    @Test
+    public void checkFilesFromHeadersAndSizes() throws Exception {
+
+        System.out.println("Check files of a tile from their headers and sizes");
+        File runDir = File.createTempFile("check_files", "");
+        runDir.delete();
+        runDir.deleteOnExit();
+        File baseCalls = new File(runDir, "BaseCalls");
+
+        writeFile(runDir, "BaseCalls/L001/s_1_1101.filter", new int[] {0, 3, 10}, 10);
+        writeFile(runDir, "L001/s_1_1101.locs", new int[] {1, 0, 10}, 80);
+        writeFile(runDir, "BaseCalls/L001/C1.1/s_1_1101.bcl", new int[] {10}, 10);
+        writeFile(runDir, "BaseCalls/L001/C1.1/s_1_1101.scl", new int[] {10}, 3);
+        //truncated bcl, scl with a wrong number of clusters and scl missing
+        writeFile(runDir, "BaseCalls/L001/C2.1/s_1_1101.bcl", new int[] {10}, 6);
+        writeFile(runDir, "BaseCalls/L001/C2.1/s_1_1101.scl", new int[] {9}, 3);
+        writeFile(runDir, "BaseCalls/L001/C3.1/s_1_1101.bcl", new int[] {10}, 10);
+
+        HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>(1);
+        cycleRangeByRead.put("read1", new int[] {1, 3});
+        Tile tileToCheck = new Tile(runDir.getPath(), baseCalls.getPath(), id, lane, tileNumber, cycleRangeByRead, true, true, barcodeSeqTagName, barcodeQualTagName);
+
+        List<String> problems = tileToCheck.checkFiles();
+        assertEquals(problems.size(), 3);
+        assertTrue(problems.get(0).startsWith("Size of file " + new File(baseCalls, "L001/C2.1/s_1_1101.bcl").getPath() + " 10 not as expected: 14"));
+        assertTrue(problems.get(1).startsWith("Number of Clusters in SCL file"));
+        assertTrue(problems.get(2).startsWith("Problem to read SCL file"));
+    }
+
     @Test
     public void processAnotherTile() throws Exception {
         
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for TileWorkerPool
+ */
+package uk.ac.sanger.npg.illumina;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMRecord;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class TileWorkerPoolTest {
+
+    private static final int[] TILES = {1101, 1102, 1103, 1104, 1105};
+    private static final int CLUSTERS = 50;
+    private static File runDir;
+
+    /**
+     * write filter, locs and two cycles of bcl files for each tile, cycle 2 of the last tile missing
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+
+        runDir = File.createTempFile("tile_workers", "");
+        runDir.delete();
+        for (int t = 0; t < TILES.length; t++) {
+            String tileName = "s_1_" + TILES[t];
+
+            byte[] flags = new byte[CLUSTERS];
+            byte[] locs = new byte[8 * CLUSTERS];
+            byte[] bcl = new byte[CLUSTERS];
+            for (int i = 0; i < CLUSTERS; i++) {
+                flags[i] = (byte) ((i % 3 == 0) ? 0 : 1);
+                putInt(locs, 8 * i, Float.floatToIntBits(t + i));
+                putInt(locs, 8 * i + 4, Float.floatToIntBits(2 * i));
+                bcl[i] = (byte) (((i + t) % 4) | ((10 + i % 30) << 2));
+            }
+            writeFile("BaseCalls/L001/" + tileName + ".filter", new int[] {0, 3, CLUSTERS}, flags);
+            writeFile("L001/" + tileName + ".locs", new int[] {1, 0, CLUSTERS}, locs);
+            for (int cycle = 1; cycle <= 2; cycle++) {
+                if (cycle == 2 && t == TILES.length - 1) {
+                    continue;
+                }
+                writeFile("BaseCalls/L001/C" + cycle + ".1/" + tileName + ".bcl", new int[] {CLUSTERS}, bcl);
+            }
+        }
+    }
+
+    private static void putInt(byte[] dst, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            dst[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private static void writeFile(String fileName, int[] header, byte[] data) throws IOException {
+
+        //directories deleted on exit after their files, registered before them
+        runDir.deleteOnExit();
+        File file = runDir;
+        for (String name : fileName.split("/")) {
+            file = new File(file, name);
+            file.deleteOnExit();
+        }
+        file.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        for (int value : header) {
+            out.writeInt(Integer.reverseBytes(value));
+        }
+        out.write(data);
+        out.close();
+    }
+
+    private List<Tile> createTiles(int tileCount) {
+
+        HashMap<String, int[]> cycleRangeByRead = new HashMap<String, int[]>(1);
+        cycleRangeByRead.put("read1", new int[] {1, 2});
+        List<Tile> tiles = new ArrayList<Tile>();
+        for (int t = 0; t < tileCount; t++) {
+            Tile tile = new Tile(runDir.getPath(), new File(runDir, "BaseCalls").getPath(), "HS13_6000", 1, TILES[t],
+                    cycleRangeByRead, false, true, "BC", "QT");
+            tile.setClusterChunkSize(7);
+            tiles.add(tile);
+        }
+        return tiles;
+    }
+
+    /**
+     * output writer keeping records as strings
+     */
+    private static class RecordCollector implements SAMFileWriter {
+
+        private final SAMFileHeader header = new SAMFileHeader();
+        private final List<String> records = new ArrayList<String>();
+
+        @Override
+        public void addAlignment(SAMRecord record) {
+            records.add(record.getSAMString());
+        }
+
+        @Override
+        public SAMFileHeader getFileHeader() {
+            return header;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void checkSameOutputAsOneTileAfterAnother() throws Exception {
+        System.out.println("Convert tiles at the same time and write them in order");
+
+        RecordCollector expected = new RecordCollector();
+        for (Tile tile : this.createTiles(TILES.length - 1)) {
+            tile.openBaseCallFiles();
+            tile.processTile(expected);
+            tile.closeBaseCallFiles();
+        }
+        assertEquals(expected.records.size(), (TILES.length - 1) * (CLUSTERS - 17));
+
+        for (int threads = 1; threads <= 4; threads++) {
+            RecordCollector output = new RecordCollector();
+            new TileWorkerPool(this.createTiles(TILES.length - 1), threads, 5).writeTiles(output);
+            assertEquals(output.records, expected.records);
+        }
+    }
+
+    @Test
+    public void checkSharedExecutor() throws Exception {
+        System.out.println("Pools of several lanes writing at the same time with tiles converted on one executor");
+
+        RecordCollector expected = new RecordCollector();
+        new TileWorkerPool(this.createTiles(TILES.length - 1), 1, 5).writeTiles(expected);
+
+        final ExecutorService executor = TileWorkerPool.newExecutor(2);
+        try {
+            final List<RecordCollector> outputs = new ArrayList<RecordCollector>();
+            List<Thread> writers = new ArrayList<Thread>();
+            final List<Exception> errors = new ArrayList<Exception>();
+            for (int lane = 0; lane < 3; lane++) {
+                final RecordCollector output = new RecordCollector();
+                final TileWorkerPool workerPool = new TileWorkerPool(this.createTiles(TILES.length - 1), 2, 5);
+                outputs.add(output);
+                writers.add(new Thread() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            workerPool.writeTiles(output, executor);
+                        } catch (Exception ex) {
+                            synchronized (errors) {
+                                errors.add(ex);
+                            }
+                        }
+                    }
+                });
+            }
+            for (Thread writer : writers) {
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            assertTrue(errors.isEmpty());
+            for (RecordCollector output : outputs) {
+                assertEquals(output.records, expected.records);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void checkErrorInTileOrder() throws Exception {
+        System.out.println("Problem converting the last tile thrown after writing tiles before it");
+
+        RecordCollector output = new RecordCollector();
+        try {
+            new TileWorkerPool(this.createTiles(TILES.length), 2, 5).writeTiles(output);
+            fail("The last tile has a bcl file missing");
+        } catch (Exception ex) {
+            assertEquals(output.records.size(), (TILES.length - 1) * (CLUSTERS - 17));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkNoThreads() {
+        System.out.println("At least one thread to convert tiles");
+        new TileWorkerPool(this.createTiles(1), 0, 5);
+    }
+}
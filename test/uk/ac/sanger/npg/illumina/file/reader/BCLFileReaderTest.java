@@ -18,6 +18,8 @@
  */
 package uk.ac.sanger.npg.illumina.file.reader;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
 import org.junit.BeforeClass;
@@ -116,4 +118,72 @@ public class BCLFileReaderTest {
         assertEquals(totalCluster, 0);
         bclFileReaderCorrupt.close();
     }
+
+    @Test
+    public void checkReadClustersInBatch() throws Exception {
+        System.out.println("Read all clusters in batches and compare with iterator");
+        BCLFileReader batchReader = new BCLFileReader(testBCLFile);
+        BCLFileReader iteratorReader = new BCLFileReader(testBCLFile);
+        byte [] bases = new byte[65536];
+        byte [] quals = new byte[65536];
+        int read;
+        while ((read = batchReader.read(bases, quals, 0, bases.length)) != -1) {
+            for (int i = 0; i < read; i++) {
+                byte [] cluster = iteratorReader.next();
+                assertEquals(cluster[0], bases[i]);
+                assertEquals(cluster[1], quals[i]);
+            }
+        }
+        assertEquals(batchReader.getCurrentCluster(), 2609912);
+        assertFalse(iteratorReader.hasNext());
+        batchReader.close();
+        iteratorReader.close();
+    }
+
+    @Test
+    public void checkDecodeAllBytes() throws Exception {
+        System.out.println("Decode every bcl byte value");
+        File bclFile = File.createTempFile("s_1_1101", ".bcl");
+        bclFile.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(bclFile);
+        out.write(new byte[] {(byte) 244, 0, 0, 0});
+        for (int value = 0; value < 244; value++) {
+            out.write(value);
+        }
+        out.close();
+
+        BCLFileReader reader = new BCLFileReader(bclFile.getPath());
+        byte [] bases = new byte[244];
+        byte [] quals = new byte[244];
+        assertEquals(reader.read(bases, quals, 0, 244), 244);
+        for (int value = 0; value < 244; value++) {
+            int quality = value >> 2;
+            assertEquals(quals[value], quality);
+            assertEquals((char) bases[value], (quality == 0) ? 'N' : "ACGT".charAt(value & 3));
+        }
+        reader.close();
+        bclFile.delete();
+    }
+
+    @Test
+    public void checkInvalidQuality() throws Exception {
+        System.out.println("Decode a quality out of range");
+        File bclFile = File.createTempFile("s_1_1101", ".bcl");
+        bclFile.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(bclFile);
+        out.write(new byte[] {3, 0, 0, 0, 10, (byte) 245, 10});
+        out.close();
+
+        BCLFileReader reader = new BCLFileReader(bclFile.getPath());
+        byte [] bases = new byte[3];
+        byte [] quals = new byte[3];
+        try {
+            reader.read(bases, quals, 0, 3);
+            fail("Invalid quality not found");
+        } catch (IllegalArgumentException ex) {
+            assertEquals(ex.getMessage(), "Invalid quality score: 61 in bcl file " + bclFile.getPath() + " in position 1");
+        }
+        reader.close();
+        bclFile.delete();
+    }
 }
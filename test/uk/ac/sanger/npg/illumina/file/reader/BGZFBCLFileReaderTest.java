@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for BGZFBCLFileReader and BGZFBlockIndex
+ */
+package uk.ac.sanger.npg.illumina.file.reader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+import org.junit.AfterClass;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class BGZFBCLFileReaderTest {
+
+    private static String testBCLFile = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls/L001/C1.1/s_1_1101_uncompressed.bcl";
+    private static File bgzfFile;
+
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        bgzfFile = File.createTempFile("s_1_1101", ".bcl.bgzf");
+        bgzfFile.deleteOnExit();
+        FileInputStream in = new FileInputStream(testBCLFile);
+        BlockCompressedOutputStream out = new BlockCompressedOutputStream(bgzfFile);
+        byte [] buffer = new byte[100000];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        out.close();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        bgzfFile.delete();
+        new File(bgzfFile.getPath() + BGZFBlockIndex.INDEX_FILE_SUFFIX).delete();
+    }
+
+    @Test
+    public void checkSameAsUncompressedReader() throws Exception {
+        System.out.println("Read bgzf bcl file and compare with uncompressed bcl file");
+        BCLFileReader bclFileReader = new BCLFileReader(testBCLFile);
+        BGZFBCLFileReader bgzfFileReader = new BGZFBCLFileReader(bgzfFile.getPath());
+        assertEquals(bgzfFileReader.getTotalClusters(), 2609912);
+
+        byte [] bases = new byte[7777];
+        byte [] quals = new byte[7777];
+        while (bgzfFileReader.read(bases, quals, 0, bases.length) != -1) {
+            for (int i = 0; i < bases.length && bclFileReader.hasNext(); i++) {
+                byte [] cluster = bclFileReader.next();
+                assertEquals(cluster[0], bases[i]);
+                assertEquals(cluster[1], quals[i]);
+            }
+        }
+        assertEquals(bgzfFileReader.getCurrentCluster(), 2609912);
+        assertFalse(bgzfFileReader.hasNext());
+        bclFileReader.close();
+        bgzfFileReader.close();
+    }
+
+    @Test
+    public void checkSeekAndReadAtPosition() throws Exception {
+        System.out.println("Seek to a cluster and read clusters at any position");
+        BGZFBCLFileReader bgzfFileReader = new BGZFBCLFileReader(bgzfFile.getPath());
+
+        bgzfFileReader.seek(306);
+        byte [] cluster = bgzfFileReader.next();
+        assertEquals((char) cluster[0], 'A');
+        assertEquals((char) (cluster[1] + 64), '^');
+
+        bgzfFileReader.seek(2609911);
+        cluster = bgzfFileReader.next();
+        assertEquals((char) cluster[0], 'G');
+        assertEquals((char) (cluster[1] + 64), 'T');
+        assertFalse(bgzfFileReader.hasNext());
+
+        byte [] bases = new byte[10];
+        byte [] quals = new byte[10];
+        assertEquals(bgzfFileReader.read(bases, quals, 1, 306, 3), 3);
+        assertEquals((char) bases[1], 'A');
+        assertEquals((char) (quals[1] + 64), '^');
+        assertEquals(bgzfFileReader.read(bases, quals, 0, 2609910, 10), 2);
+        assertEquals((char) bases[1], 'G');
+        assertEquals(bgzfFileReader.getCurrentCluster(), 2609912);
+        bgzfFileReader.close();
+    }
+
+    @Test
+    public void checkBlockBoundaries() throws Exception {
+        System.out.println("Split clusters at block boundaries");
+        BGZFBCLFileReader bgzfFileReader = new BGZFBCLFileReader(bgzfFile.getPath());
+        BGZFBlockIndex blockIndex = bgzfFileReader.getBlockIndex();
+
+        //first block holds header and 65494 clusters
+        assertEquals(blockIndex.getUncompressedSize(0), 65498);
+        int [] boundaries = bgzfFileReader.getBlockBoundaries(0, 200000);
+        assertArrayEquals(boundaries, new int [] {0, 65494, 130992, 196490, 200000});
+
+        boundaries = bgzfFileReader.getBlockBoundaries(100, 1000);
+        assertArrayEquals(boundaries, new int [] {100, 1100});
+
+        boundaries = bgzfFileReader.getBlockBoundaries(2600000, 9912);
+        assertEquals(boundaries[0], 2600000);
+        assertEquals(boundaries[boundaries.length - 1], 2609912);
+        bgzfFileReader.close();
+    }
+
+    @Test
+    public void checkIndexWriteAndLoad() throws Exception {
+        System.out.println("Write block index and load it again");
+        BGZFBlockIndex builtIndex = BGZFBlockIndex.build(bgzfFile);
+        File indexFile = new File(bgzfFile.getPath() + BGZFBlockIndex.INDEX_FILE_SUFFIX);
+        builtIndex.write(indexFile);
+
+        BGZFBlockIndex loadedIndex = BGZFBlockIndex.getIndex(bgzfFile);
+        assertEquals(loadedIndex.getBlockCount(), builtIndex.getBlockCount());
+        assertEquals(loadedIndex.getUncompressedLength(), 2609916);
+        for (int block = 0; block < builtIndex.getBlockCount(); block++) {
+            assertEquals(loadedIndex.getBlockOffset(block), builtIndex.getBlockOffset(block));
+            assertEquals(loadedIndex.getUncompressedStart(block), builtIndex.getUncompressedStart(block));
+        }
+        //last block is the empty end of file block
+        assertEquals(loadedIndex.getUncompressedSize(loadedIndex.getBlockCount() - 1), 0);
+        assertEquals(loadedIndex.findBlock(2609915), loadedIndex.getBlockCount() - 2);
+        assertEquals(loadedIndex.findBlock(2609916), loadedIndex.getBlockCount());
+        indexFile.delete();
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for CBCLFileReader
+ */
+package uk.ac.sanger.npg.illumina.file.reader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class CBCLFileReaderTest {
+
+    private static final int [] QUALITY_BINS = {0, 12, 23, 37};
+    private static final String BASES = "ACGT";
+
+    /**
+     * write a cbcl file with two tiles, 1102 before 1101,
+     * cluster i of tile 1101 stored as four bits i % 16
+     */
+    private File writeCBCLFile(int clusters1101, boolean pfExcluded) throws IOException {
+
+        byte [][] blocks = new byte[2][];
+        int [] clusterCounts = {10, clusters1101};
+        for (int tile = 0; tile < 2; tile++) {
+            byte [] packed = new byte[(clusterCounts[tile] + 1) / 2];
+            for (int i = 0; i < clusterCounts[tile]; i++) {
+                packed[i / 2] |= (byte) ((tile == 0 ? 5 : i % 16) << ((i % 2) * 4));
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(packed);
+            gzip.close();
+            blocks[tile] = compressed.toByteArray();
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        int headerSize = 2 + 4 + 1 + 1 + 4 + QUALITY_BINS.length * 8 + 4 + 2 * 16 + 1;
+        writeShort(header, 1);
+        writeInt(header, headerSize);
+        header.write(2);
+        header.write(2);
+        writeInt(header, QUALITY_BINS.length);
+        for (int bin = 0; bin < QUALITY_BINS.length; bin++) {
+            writeInt(header, bin);
+            writeInt(header, QUALITY_BINS[bin]);
+        }
+        writeInt(header, 2);
+        int [] tiles = {1102, 1101};
+        for (int tile = 0; tile < 2; tile++) {
+            writeInt(header, tiles[tile]);
+            writeInt(header, clusterCounts[tile]);
+            writeInt(header, (clusterCounts[tile] + 1) / 2);
+            writeInt(header, blocks[tile].length);
+        }
+        header.write(pfExcluded ? 1 : 0);
+        assertEquals(header.size(), headerSize);
+
+        File cbclFile = File.createTempFile("L001_1", ".cbcl");
+        cbclFile.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(cbclFile);
+        header.writeTo(out);
+        out.write(blocks[0]);
+        out.write(blocks[1]);
+        out.close();
+        return cbclFile;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value);
+        writeShort(out, value >> 16);
+    }
+
+    private void checkStoredCluster(byte base, byte quality, int stored) {
+        int bin = (stored % 16) >> 2;
+        if (bin == 0) {
+            assertEquals((char) base, 'N');
+            assertEquals(quality, 0);
+        } else {
+            assertEquals((char) base, BASES.charAt(stored % 4));
+            assertEquals(quality, QUALITY_BINS[bin]);
+        }
+    }
+
+    @Test
+    public void checkHeaderOK() throws Exception {
+        System.out.println("Read cbcl header");
+        File cbclFile = this.writeCBCLFile(101, false);
+        CBCLFileReader.Header header = CBCLFileReader.readHeader(cbclFile);
+        assertEquals(header.getVersion(), 1);
+        assertArrayEquals(header.getTileNumbers(), new int [] {1102, 1101});
+        assertArrayEquals(header.getQualityByBin(), QUALITY_BINS);
+        assertEquals(header.getClusterCount(1101), 101);
+        assertFalse(header.isPfExcluded());
+        cbclFile.delete();
+    }
+
+    @Test
+    public void checkReadTileOK() throws Exception {
+        System.out.println("Read the second tile in a cbcl file");
+        File cbclFile = this.writeCBCLFile(101, false);
+        CBCLFileReader cbclFileReader = new CBCLFileReader(cbclFile.getPath(), 1101, null);
+        assertEquals(cbclFileReader.getTotalClusters(), 101);
+
+        byte [] bases = new byte[101];
+        byte [] quals = new byte[101];
+        assertEquals(cbclFileReader.read(bases, quals, 0, 60), 60);
+        assertEquals(cbclFileReader.read(bases, quals, 60, 100), 41);
+        for (int i = 0; i < 101; i++) {
+            this.checkStoredCluster(bases[i], quals[i], i);
+        }
+        assertFalse(cbclFileReader.hasNext());
+        assertEquals(cbclFileReader.read(bases, quals, 0, 1), -1);
+        cbclFileReader.close();
+
+        CBCLFileReader firstTileReader = new CBCLFileReader(cbclFile.getPath(), 1102, null);
+        byte [] cluster = firstTileReader.next();
+        assertEquals((char) cluster[0], 'C');
+        assertEquals(cluster[1], 12);
+        firstTileReader.close();
+        cbclFile.delete();
+    }
+
+    @Test
+    public void checkPfExcludedOK() throws Exception {
+        System.out.println("Read a tile with non-PF clusters excluded");
+        File cbclFile = this.writeCBCLFile(6, true);
+        byte [] pfFlags = {1, 0, 1, 1, 0, 0, 1, 1, 1};
+        CBCLFileReader cbclFileReader = new CBCLFileReader(cbclFile.getPath(), 1101, new PFMask(pfFlags));
+        assertEquals(cbclFileReader.getTotalClusters(), 9);
+
+        int stored = 0;
+        for (int i = 0; i < pfFlags.length; i++) {
+            byte [] cluster = cbclFileReader.next();
+            if (pfFlags[i] == 0) {
+                assertEquals((char) cluster[0], 'N');
+                assertEquals(cluster[1], 0);
+            } else {
+                this.checkStoredCluster(cluster[0], cluster[1], stored++);
+            }
+        }
+        assertFalse(cbclFileReader.hasNext());
+        cbclFileReader.close();
+        cbclFile.delete();
+    }
+
+    @Test
+    public void checkReadAcrossWindows() throws Exception {
+        System.out.println("Read a tile inflated in several windows, with and without non-PF clusters excluded");
+        File cbclFile = this.writeCBCLFile(40001, false);
+        CBCLFileReader cbclFileReader = new CBCLFileReader(cbclFile.getPath(), 1101, null);
+        byte [] bases = new byte[40001];
+        byte [] quals = new byte[40001];
+        int total = 0;
+        int read;
+        while ((read = cbclFileReader.read(bases, quals, total, 7777)) != -1) {
+            total += read;
+        }
+        assertEquals(total, 40001);
+        for (int i = 0; i < 40001; i++) {
+            this.checkStoredCluster(bases[i], quals[i], i);
+        }
+        cbclFileReader.close();
+        cbclFile.delete();
+
+        byte [] pfFlags = new byte[100000];
+        int pfClusters = 0;
+        for (int i = 0; i < pfFlags.length; i++) {
+            if ((i / 1000) % 3 != 0 || i % 7 == 0) {
+                pfFlags[i] = 1;
+                pfClusters++;
+            }
+        }
+        cbclFile = this.writeCBCLFile(pfClusters, true);
+        cbclFileReader = new CBCLFileReader(cbclFile.getPath(), 1101, new PFMask(pfFlags));
+        bases = new byte[pfFlags.length];
+        quals = new byte[pfFlags.length];
+        total = 0;
+        while ((read = cbclFileReader.read(bases, quals, total, 3333)) != -1) {
+            total += read;
+        }
+        assertEquals(total, pfFlags.length);
+        int stored = 0;
+        for (int i = 0; i < pfFlags.length; i++) {
+            if (pfFlags[i] == 0) {
+                assertEquals((char) bases[i], 'N');
+                assertEquals(quals[i], 0);
+            } else {
+                this.checkStoredCluster(bases[i], quals[i], stored++);
+            }
+        }
+        cbclFileReader.close();
+        cbclFile.delete();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkPfFlagsMissing() throws Exception {
+        System.out.println("Read a tile with non-PF clusters excluded but no PF mask");
+        File cbclFile = this.writeCBCLFile(6, true);
+        try {
+            new CBCLFileReader(cbclFile.getPath(), 1101, null);
+        } finally {
+            cbclFile.delete();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkTileNotInFile() throws Exception {
+        System.out.println("Read a tile not in cbcl file");
+        File cbclFile = this.writeCBCLFile(6, false);
+        try {
+            new CBCLFileReader(cbclFile.getPath(), 2101, null);
+        } finally {
+            cbclFile.delete();
+        }
+    }
+}
@@ -127,4 +127,18 @@ public class CLocsFileReaderTest {
         assertEquals(cLocsFileReader2.getCurrentTotalClusters(), 3658339);
         cLocsFileReader2.close();
     }
+
+    @Test
+    public void checkSkipClustersOK() throws Exception {
+        System.out.println("Skip clusters without decoding them");
+        CLocsFileReader skipReader = new CLocsFileReader(testCLocsFile);
+        assertEquals(skipReader.skip(306), 306);
+        String[] cluster = skipReader.next().toArray();
+        assertEquals(cluster[0], "1279");
+        assertEquals(cluster[1], "2120");
+        assertEquals(skipReader.getCurrentBlock(), 330);
+        assertEquals(skipReader.skip(3000000), 2609912 - 307);
+        assertEquals(skipReader.getCurrentTotalClusters(), 2609912);
+        skipReader.close();
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for DecompressionPool
+ */
+package uk.ac.sanger.npg.illumina.file.reader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class DecompressionPoolTest {
+
+    private static String testBCLFile = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls/L001/C1.1/s_1_1101.bcl.gz";
+    private DecompressionPool decompressionPool;
+
+    @Before
+    public void setUp() {
+        //fewer threads and blocks than files to make sure one reader behind never blocks the others
+        decompressionPool = new DecompressionPool(1, 1);
+    }
+
+    @After
+    public void tearDown() {
+        decompressionPool.shutdown();
+    }
+
+    @Test
+    public void checkSameAsInlineInflating() throws Exception {
+        System.out.println("Read gzipped bcl files through the pool and compare with inflating when reading");
+        BCLFileReader inlineReader = new BCLFileReader(testBCLFile);
+        BCLFileReader [] pooledReaders = {
+            new BCLFileReader(testBCLFile, decompressionPool),
+            new BCLFileReader(testBCLFile, decompressionPool),
+            new BCLFileReader(testBCLFile, decompressionPool)
+        };
+        assertEquals(pooledReaders[0].getTotalClusters(), 2609912);
+
+        byte [] bases = new byte[10000];
+        byte [] quals = new byte[10000];
+        byte [][] pooledBases = new byte[pooledReaders.length][10000];
+        byte [][] pooledQuals = new byte[pooledReaders.length][10000];
+        int read;
+        while ((read = inlineReader.read(bases, quals, 0, bases.length)) != -1) {
+            for (int i = 0; i < pooledReaders.length; i++) {
+                int count = 0;
+                while (count < read) {
+                    count += pooledReaders[i].read(pooledBases[i], pooledQuals[i], count, read - count);
+                }
+                for (int j = 0; j < read; j++) {
+                    assertEquals(bases[j], pooledBases[i][j]);
+                    assertEquals(quals[j], pooledQuals[i][j]);
+                }
+            }
+        }
+        for (BCLFileReader pooledReader : pooledReaders) {
+            assertEquals(pooledReader.read(pooledBases[0], pooledQuals[0], 0, 1), -1);
+            assertEquals(pooledReader.getCurrentCluster(), 2609912);
+            pooledReader.close();
+        }
+        inlineReader.close();
+    }
+
+    @Test
+    public void checkCloseBeforeEnd() throws Exception {
+        System.out.println("Close a gzipped file before reading it to the end");
+        InputStream inputStream = decompressionPool.openGzipFile(new File(testBCLFile));
+        byte [] header = new byte[4];
+        assertEquals(inputStream.read(header, 0, 4), 4);
+        inputStream.close();
+        assertEquals(inputStream.read(header, 0, 4), -1);
+
+        BCLFileReader pooledReader = new BCLFileReader(testBCLFile, decompressionPool);
+        assertNotNull(pooledReader.next());
+        pooledReader.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void checkReadAfterShutdown() throws Exception {
+        System.out.println("Read a gzipped file after the pool shut down");
+        InputStream inputStream = decompressionPool.openGzipFile(new File(testBCLFile));
+        decompressionPool.shutdown();
+        byte [] buffer = new byte[DecompressionPool.BLOCK_SIZE];
+        while (inputStream.read(buffer, 0, buffer.length) != -1) {
+        }
+    }
+}
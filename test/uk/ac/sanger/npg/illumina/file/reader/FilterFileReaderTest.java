@@ -107,4 +107,21 @@ public class FilterFileReaderTest {
         //TODO: This number of pf clusters from RTA possibly doesn't match the one from Bustard
         assertEquals(gaFilterFileReader.getCurrentPFClusters(), 308795);
     }
+
+    @Test
+    public void checkReadClustersInBatch() throws Exception {
+        System.out.println("Read all clusters in batches");
+        FilterFileReader batchReader = new FilterFileReader(testFilterFile);
+        byte [] filters = new byte[65536];
+        int count = 0;
+        int read;
+        while ((read = batchReader.read(filters, 0, filters.length)) != -1) {
+            count += read;
+        }
+        assertEquals(filters[(count - 1) % filters.length], 0);
+        assertEquals(batchReader.getCurrentCluster(), 2609912);
+        assertEquals(batchReader.getCurrentPFClusters(), 2425954);
+        assertFalse(batchReader.hasNext());
+        batchReader.close();
+    }
 }
@@ -19,8 +19,12 @@
  */
 package uk.ac.sanger.npg.illumina.file.reader;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import org.junit.Test;
 
@@ -60,6 +64,58 @@ public class IlluminaFileReaderTest {
         fileReader.close();
     }
 
+    @Test
+    public void testShortReads() throws Exception {
+        System.out.println("Read numbers from a file shorter than them");
+        File shortFile = File.createTempFile("short", ".bcl");
+        shortFile.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(shortFile);
+        out.write(new byte[] {1, 2, 0, 0, 7, 8});
+        out.close();
+
+        IlluminaFileReader fileReader = new IlluminaFileReader(shortFile.getPath(), null, 8);
+        assertEquals(fileReader.readFourBytes(), 0x0201);
+        try {
+            fileReader.readFourBytes();
+            assertFalse("four bytes read from two bytes left", true);
+        } catch (EOFException ex) {
+            //expected
+        }
+        assertEquals(fileReader.readUnsignedByte(), 7);
+        assertEquals(fileReader.skipBytes(10), 1);
+        fileReader.close();
+
+        //bcl file without a complete header has no cluster
+        out = new FileOutputStream(shortFile);
+        out.write(new byte[] {5, 6});
+        out.close();
+        BCLFileReader bclFileReader = new BCLFileReader(shortFile.getPath());
+        assertEquals(bclFileReader.getTotalClusters(), 0);
+        bclFileReader.close();
+        shortFile.delete();
+    }
+
+    @Test
+    public void testReadRawBytes() throws Exception {
+        System.out.println("Read raw bytes in runs until the end of the file");
+        File rawFile = File.createTempFile("raw", ".bcl");
+        rawFile.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(rawFile);
+        out.write(new byte[] {1, 2, 3, 4, 5, 6, 7});
+        out.close();
+
+        IlluminaFileReader fileReader = new IlluminaFileReader(rawFile.getPath(), null, 8);
+        byte [] dst = new byte[10];
+        assertEquals(fileReader.read(dst, 1, 4), 4);
+        assertEquals(dst[1], 1);
+        assertEquals(dst[4], 4);
+        assertEquals(fileReader.read(dst, 0, 10), 3);
+        assertEquals(dst[2], 7);
+        assertEquals(fileReader.read(dst, 0, 10), -1);
+        fileReader.close();
+        rawFile.delete();
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testConstructorExpectedException3() throws Exception {
         System.out.println("The given file is a directory");
@@ -77,7 +133,7 @@ public class IlluminaFileReaderTest {
     @Test(expected = IllegalArgumentException.class)
     public void testConstructorExpectedException1() throws Exception {
         System.out.println("No file given to read");
-        IlluminaFileReader fileReader = new IlluminaFileReader(null);
+        IlluminaFileReader fileReader = new IlluminaFileReader((String) null);
         assertNull(fileReader);
     }
 }
@@ -76,6 +76,19 @@ public class LocsFileReaderTest {
         assertEquals(locsFileReader.getCurrentTotalClusters(), 235085);
     }
     
+    @Test
+    public void testSkip() throws Exception {
+        System.out.println("test skip method");
+        LocsFileReader skipReader = new LocsFileReader("testdata/111014_M00119_0028_AMS0001310-00300/Data/Intensities/L001/s_1_1.locs");
+        assertEquals(skipReader.skip(235084), 235084);
+        String [] lastPos = skipReader.next().toArray();
+        assertEquals(lastPos[0], "15605");
+        assertEquals(lastPos[1], "29408");
+        assertEquals(skipReader.skip(10), 0);
+        assertEquals(skipReader.getCurrentTotalClusters(), 235085);
+        skipReader.close();
+    }
+
     @Test (expected= RuntimeException.class)
     public void testNoMoreNext(){
         System.out.println("test no more next method");
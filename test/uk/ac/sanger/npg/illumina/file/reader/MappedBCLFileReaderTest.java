@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for MappedBCLFileReader
+ */
+package uk.ac.sanger.npg.illumina.file.reader;
+
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class MappedBCLFileReaderTest {
+
+    private static String testBCLFile = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls/L001/C1.1/s_1_1101_uncompressed.bcl";
+    private MappedBCLFileReader bclFileReader;
+
+    @Before
+    public void setUp() throws Exception {
+        bclFileReader = new MappedBCLFileReader(testBCLFile);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        bclFileReader.close();
+    }
+
+    @Test
+    public void checkBCLHeaderOK() {
+        System.out.println("Read bcl header");
+        assertEquals(bclFileReader.getTotalClusters(), 2609912);
+        assertEquals(bclFileReader.getCurrentCluster(), 0);
+        assertTrue(bclFileReader.hasNext());
+    }
+
+    @Test
+    public void checkNextFirstClusterOK() {
+        System.out.println("check first cluster");
+        byte [] cluster = bclFileReader.next();
+        assertEquals((char) cluster[0], 'N');
+        assertEquals((char) (cluster[1]+ 64), 64);
+        assertEquals(bclFileReader.getCurrentCluster(), 1);
+        assertTrue(bclFileReader.hasNext());
+    }
+
+    @Test
+    public void checkReadMiddleClustersOK() throws Exception {
+        System.out.println("Read the first clusters in one go and check the 307th one");
+        byte [] bases = new byte[311];
+        byte [] quals = new byte[311];
+        assertEquals(bclFileReader.read(bases, quals, 4, 307), 307);
+        assertEquals((char) bases[4], 'N');
+        assertEquals((char)bases[310], 'A');
+        assertEquals((char)(quals[310] + 64 ), '^');
+        assertEquals(bclFileReader.getCurrentCluster(), 307);
+        assertTrue(bclFileReader.hasNext());
+    }
+
+    @Test
+    public void checkReadLastClusterOK() throws Exception {
+        System.out.println("Read clusters in blocks until last one");
+
+        byte [] bases = new byte[65536];
+        byte [] quals = new byte[65536];
+        int count = 0;
+        int read;
+        while ((read = bclFileReader.read(bases, quals, 0, bases.length)) != -1) {
+            count = read;
+        }
+        assertEquals((char)bases[count - 1], 'G');
+        assertEquals((char) (quals[count - 1] + 64), 'T');
+        assertEquals(bclFileReader.getCurrentCluster(), 2609912);
+        assertFalse(bclFileReader.hasNext());
+        assertNull(bclFileReader.next());
+    }
+
+    @Test
+    public void checkSameAsStreamReader() throws Exception {
+        System.out.println("Compare with bcl file stream reader");
+        BCLFileReader streamReader = new BCLFileReader(testBCLFile);
+        MappedBCLFileReader mappedReader = new MappedBCLFileReader(testBCLFile);
+        byte [] bases = new byte[1000];
+        byte [] quals = new byte[1000];
+        while (mappedReader.read(bases, quals, 0, bases.length) != -1) {
+            for (int i = 0; i < 1000 && streamReader.hasNext(); i++) {
+                byte [] cluster = streamReader.next();
+                assertEquals(cluster[0], bases[i]);
+                assertEquals(cluster[1], quals[i]);
+            }
+        }
+        assertEquals(streamReader.getCurrentCluster(), mappedReader.getCurrentCluster());
+        streamReader.close();
+        mappedReader.close();
+    }
+
+    @Test
+    public void checkLoadBeforeReading() throws Exception {
+        System.out.println("Load mapped file into memory before reading from the first cluster");
+        bclFileReader.load();
+        assertEquals(bclFileReader.getCurrentCluster(), 0);
+        byte [] cluster = bclFileReader.next();
+        assertEquals((char) cluster[0], 'N');
+        assertEquals(bclFileReader.getCurrentCluster(), 1);
+    }
+
+    @Test
+    public void checkMappingReleased() throws Exception {
+        System.out.println("Mapping released when closed, many more files than the limit of mappings opened and closed");
+        for (int i = 0; i < 70000; i++) {
+            MappedBCLFileReader reader = new MappedBCLFileReader(testBCLFile);
+            assertEquals(reader.getTotalClusters(), 2609912);
+            reader.close();
+        }
+        bclFileReader.close();
+        assertEquals(bclFileReader.read(new byte[10], 0, 10), -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkCorruptedFileReading() throws Exception{
+        System.out.println("Read a corrupted bcl file ");
+        String testBCLFileCorrupt = "testdata/110405_HS17_06067_A_B035CABXX/Data/Intensities/BaseCalls/L003/C59.1/s_3_1101.bcl";
+        MappedBCLFileReader bclFileReaderCorrupt = new MappedBCLFileReader(testBCLFileCorrupt);
+        byte [] bases = new byte[4096];
+        byte [] quals = new byte[4096];
+        while (bclFileReaderCorrupt.read(bases, quals, 0, bases.length) != -1) {
+        }
+        bclFileReaderCorrupt.close();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2012 GRL
+ *
+ * This library is free software. You can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * the test class for PFMask
+ */
+package uk.ac.sanger.npg.illumina.file.reader;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class PFMaskTest {
+
+    private static String testFilterFile = "testdata/110323_HS13_06000_B_B039WABXX/Data/Intensities/BaseCalls/L001/s_1_1101.filter";
+
+    @Test
+    public void checkMaskFromFilterFile() throws Exception {
+        System.out.println("Load PF mask from filter file and compare with flags read in batches");
+        FilterFileReader maskReader = new FilterFileReader(testFilterFile);
+        PFMask mask = maskReader.readPFMask();
+        maskReader.close();
+        assertEquals(mask.getTotalClusters(), 2609912);
+        assertEquals(mask.getPfClusters(), 2425954);
+        assertFalse(mask.isPf(0));
+        assertTrue(mask.isPf(318));
+
+        FilterFileReader batchReader = new FilterFileReader(testFilterFile);
+        byte [] filters = new byte[10000];
+        int cluster = 0;
+        int read;
+        while ((read = batchReader.read(filters, 0, filters.length)) != -1) {
+            for (int i = 0; i < read; i++, cluster++) {
+                assertEquals(mask.isPf(cluster), filters[i] == 1);
+            }
+        }
+        batchReader.close();
+    }
+
+    @Test
+    public void checkNextPf() {
+        System.out.println("Find next PF cluster across words");
+        byte [] flags = new byte[200];
+        flags[3] = 1;
+        flags[64] = 1;
+        flags[199] = 3;
+        PFMask mask = new PFMask(flags);
+        assertEquals(mask.getTotalClusters(), 200);
+        assertEquals(mask.getPfClusters(), 3);
+        assertEquals(mask.nextPf(0), 3);
+        assertEquals(mask.nextPf(3), 3);
+        assertEquals(mask.nextPf(4), 64);
+        assertEquals(mask.nextPf(65), 199);
+        assertEquals(mask.nextPf(200), 200);
+
+        flags[199] = 0;
+        assertEquals(new PFMask(flags).nextPf(65), 200);
+    }
+
+    @Test
+    public void checkAndMasks() {
+        System.out.println("Clusters set in both a PF mask and a mask built from bits");
+        byte [] flags = new byte[130];
+        flags[3] = 1;
+        flags[64] = 1;
+        flags[129] = 1;
+        long [] bits = {1L << 3 | 1L << 5, 1L, -1L};
+        PFMask selected = new PFMask(bits, 130);
+        assertEquals(selected.getPfClusters(), 5);
+
+        PFMask both = new PFMask(flags).and(selected);
+        assertEquals(both.getTotalClusters(), 130);
+        assertEquals(both.getPfClusters(), 3);
+        assertEquals(both.nextPf(0), 3);
+        assertEquals(both.nextPf(4), 64);
+        assertEquals(both.nextPf(65), 129);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void checkOutOfRange() {
+        System.out.println("Cluster out of range of PF mask");
+        new PFMask(new byte[10]).isPf(10);
+    }
+}
@@ -19,7 +19,9 @@
 
 package uk.ac.sanger.npg.illumina.file.reader;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileWriter;
 import java.io.IOException;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
@@ -77,4 +79,32 @@ public class PosFileReaderTest {
         PositionFileReader.Position firstPos = posFileReader.next();
         assertNull(firstPos);
     }
+
+    @Test
+    public void testParseSameAsDouble() throws IOException{
+        System.out.println("test coordinates parsed the same as rounding double values");
+        String [][] lines = {{"12.35", "-0.05"}, {"1547.449", "997.45"}, {"0.25", "3"}, {"1.5E2", "2."}, {"-12.3456789", "+7.05"}};
+        File posFile = File.createTempFile("s_1_1", "_pos.txt");
+        posFile.deleteOnExit();
+        FileWriter writer = new FileWriter(posFile);
+        for (int i = 0; i < lines.length; i++) {
+            writer.write(lines[i][0] + " " + lines[i][1] + ((i % 2 == 0) ? "\r\n" : "\n"));
+        }
+        writer.close();
+
+        PosFileReader reader = new PosFileReader(posFile.getPath());
+        int [] xy = new int[2];
+        for (String [] line : lines) {
+            assertTrue(reader.nextXY(xy));
+            for (int i = 0; i < 2; i++) {
+                double tempCoor = Math.round( Double.parseDouble(line[i]) * 10.0 );
+                assertEquals(xy[i], (int)tempCoor + 1000);
+            }
+        }
+        assertFalse(reader.hasNext());
+        assertFalse(reader.nextXY(xy));
+        assertEquals(reader.getCurrentTotalClusters(), lines.length);
+        reader.close();
+        posFile.delete();
+    }
 }
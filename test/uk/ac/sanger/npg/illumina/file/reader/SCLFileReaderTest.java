@@ -19,6 +19,8 @@
  */
 package uk.ac.sanger.npg.illumina.file.reader;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
 import org.junit.BeforeClass;
@@ -92,4 +94,71 @@ public class SCLFileReaderTest {
         assertFalse(sclFileReader.hasNext());
         assertNull(sclFileReader.next());
     }
+
+    @Test
+    public void checkReadClustersInBatch() throws Exception {
+        System.out.println("Read all clusters in batches and compare with iterator");
+        SCLFileReader batchReader = new SCLFileReader(testSCLFile);
+        SCLFileReader iteratorReader = new SCLFileReader(testSCLFile);
+        byte [] bases = new byte[65536];
+        int read;
+        while ((read = batchReader.read(bases, 0, bases.length)) != -1) {
+            for (int i = 0; i < read; i++) {
+                assertEquals((char) bases[i], (char) iteratorReader.next());
+            }
+        }
+        assertEquals(batchReader.getCurrentCluster(), 2609912);
+        assertFalse(iteratorReader.hasNext());
+        batchReader.close();
+        iteratorReader.close();
+    }
+
+    @Test
+    public void checkReadPFClustersOnly() throws Exception {
+        System.out.println("Read clusters in batches unpacking PF clusters only and compare with iterator");
+        byte [] pfFlags = new byte[2609912];
+        for (int i = 0; i < pfFlags.length; i++) {
+            if ((i / 1000) % 3 != 0 || i % 7 == 0) {
+                pfFlags[i] = 1;
+            }
+        }
+        PFMask pfMask = new PFMask(pfFlags);
+        SCLFileReader pfReader = new SCLFileReader(testSCLFile);
+        SCLFileReader iteratorReader = new SCLFileReader(testSCLFile);
+        byte [] bases = new byte[33333];
+        int read;
+        while ((read = pfReader.readPF(bases, 0, bases.length, pfMask)) != -1) {
+            int kept = 0;
+            for (int i = 0; i < read; i++) {
+                char base = iteratorReader.next();
+                if (pfFlags[iteratorReader.getCurrentCluster() - 1] == 1) {
+                    assertEquals((char) bases[kept++], base);
+                }
+            }
+            assertEquals(kept, pfMask.countPf(pfReader.getCurrentCluster() - read, pfReader.getCurrentCluster()));
+        }
+        assertEquals(pfReader.getCurrentCluster(), 2609912);
+        assertFalse(iteratorReader.hasNext());
+        pfReader.close();
+        iteratorReader.close();
+    }
+
+    @Test
+    public void checkTruncatedFile() throws Exception {
+        System.out.println("Read a scl file with fewer clusters than its header");
+        File truncatedFile = File.createTempFile("s_1_1101", ".scl");
+        truncatedFile.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(truncatedFile);
+        out.write(new byte [] {100, 0, 0, 0, 0x1B, 0x1B, 0x1B, 0x1B, 0x1B});
+        out.close();
+
+        SCLFileReader truncatedReader = new SCLFileReader(truncatedFile.getPath());
+        assertEquals(truncatedReader.getTotalClusters(), 100);
+        byte [] bases = new byte[100];
+        assertEquals(truncatedReader.read(bases, 0, 100), 20);
+        assertEquals(new String(bases, 0, 8), "ACGTACGT");
+        assertEquals(truncatedReader.read(bases, 0, 100), -1);
+        truncatedReader.close();
+        truncatedFile.delete();
+    }
 }